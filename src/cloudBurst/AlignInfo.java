@@ -7,8 +7,6 @@ public class AlignInfo {
 	public int [] what;
 	public int distlen;
 	
-	private static final StringBuilder builder = new StringBuilder();
-	
 	
 	//------------------------- Constructor --------------------------
 	public AlignInfo(int len, int k, int [] pdist, int [] pwhat, int dlen)
@@ -31,11 +29,23 @@ public class AlignInfo {
 	//------------------------- isBazeaYatesSeed --------------------------
 	// Since an alignment may be recompute k+1 times for each of the k+1 seeds,
 	// see if the current alignment is the leftmost alignment by checking for
-	// differences in the proceeding chunks of the query
+	// differences in the proceeding chunks of the query. The query may end in a
+	// piece shorter than a chunk, which no seed was taken from, so it doesn't count.
 	
 	public boolean isBazeaYatesSeed(int qlen, int kmerlen)
+	{
+		return isBazeaYatesSeed(qlen, kmerlen, 0);
+	}
+	
+	
+	//------------------------- isBazeaYatesSeed --------------------------
+	// Like isBazeaYatesSeed for a seed that doesn't start its chunk, but is the minimizer
+	// of it, offset bases into it. Those offset bases are the start of the flank, and have
+	// to match for the chunk to be the exact one, the chunks before it start after them.
+	
+	public boolean isBazeaYatesSeed(int qlen, int kmerlen, int offset)
 	{	
-		int numBuckets = qlen / kmerlen;
+		int numBuckets = (qlen - offset) / kmerlen;
 		
 		int lastbucket = -1;
 		int distdelta = 0;
@@ -54,20 +64,66 @@ public class AlignInfo {
 			else if (what[i] == -1)
 			{
 				// gap character occurs between pos and pos+1
-				if (pos % kmerlen == 0)
+				if ((pos - offset) % kmerlen == 0)
 				{
 					// occurs right between buckets, skip
 					continue;
 				}
 			}
+			
+			// a difference in the chunk of the seed
+			if (pos < offset) { return false; }
 	
-			int bucket = pos / kmerlen;
+			int bucket = (pos - offset) / kmerlen;
+			if (bucket >= numBuckets) { continue; }
+
 			if (bucket - lastbucket > 1) { return false; }
 			lastbucket = bucket;
 		}
 		
 		return (lastbucket == numBuckets-1);
 	}
+	
+	
+	//------------------------- matchesFirst --------------------------
+	// True if the first len bases of the query align without a difference, a gap
+	// right after them doesn't count
+	
+	public boolean matchesFirst(int len)
+	{
+		int pos = 0;
+		
+		for (int i = 0; (i < distlen) && (len > 0); i++)
+		{
+			pos += dist[i];
+			
+			if ((what[i] != 2) && (pos < len)) { return false; }
+		}
+		
+		return true;
+	}
+
+
+	//------------------------- differencePositions --------------------------
+	// Put the query positions of the differences in out from num on, counting from origin
+	// in the direction step, and return the new number of them
+	
+	public int differencePositions(int [] out, int num, int origin, int step)
+	{
+		int pos = 0;
+		
+		for (int i = 0; i < distlen; i++)
+		{
+			pos += dist[i];
+			
+			if (what[i] != 2)
+			{
+				out[num++] = origin + step * pos;
+			}
+		}
+		
+		return num;
+	}
 
 
 	//------------------------- isBazeaYatesSeed --------------------------
@@ -133,7 +189,7 @@ public class AlignInfo {
 	//------------------------- toString --------------------------
 	public String toString()
 	{
-		builder.setLength(0);
+		StringBuilder builder = new StringBuilder();
 		
 		builder.append(alignlen);    builder.append(';');
 		builder.append(differences); builder.append(';');
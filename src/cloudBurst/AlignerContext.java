@@ -0,0 +1,147 @@
+package cloudBurst;
+
+import org.apache.hadoop.io.IntWritable;
+
+// Scratch state for one aligning thread. Everything an alignment writes to lives
+// here instead of in static fields, so each worker thread gets its own context and
+// a single JVM can align on every core.
+
+public class AlignerContext
+{
+	// Landau-Vishkin diagonals, backtrace, and the returned alignment
+	public int [][] L;
+	public int [][] B;
+	public int [] dist;
+	public int [] what;
+	public AlignInfo goodAlignment = new AlignInfo(0, 0, null, null, 0);
+	
+	// bit-vector k-difference buffers
+	public boolean bitvector = false;
+	public long [] peq = new long [16];
+	public long [][] peqw = new long [16][0];
+	public long [] pvw = new long [0];
+	public long [] mvw = new long [0];
+	public byte [] tcode = new byte [0];
+	public int tcodeLen = 0;
+	
+	// the flanks of the pair being extended
+	public PackedFlank refFlank = new PackedFlank();
+	public PackedFlank qryFlank = new PackedFlank();
+	
+	// read positions of the mismatches of the pair being extended, for spaced seeds
+	public int [] diffs;
+	
+	// mismatch counts of one query against the current block of reference flanks
+	public PackedBlock leftBlock  = new PackedBlock();
+	public PackedBlock rightBlock = new PackedBlock();
+	public int [] leftmm;
+	public int [] rightmm;
+	
+	// pairs rejected by each candidate filter, and the pairs that passed, since the last report
+	public long [] filterRejected = new long [0];
+	public long filterPassed = 0;
+	
+	// identical flank classes of the current seed group, and the record fanned out to each member
+	public FlankClasses refClasses = new FlankClasses();
+	public FlankClasses qryClasses = new FlankClasses();
+	public AlignmentRecord fanout = new AlignmentRecord();
+	
+	// reducer bookkeeping for the current block of queries
+	public AlignmentRecord fullalignment = new AlignmentRecord();
+	public IntWritable qryid = new IntWritable();
+	
+	public AlignmentRecord [] bestalignments;
+	public AlignmentRecord [] secondalignments;
+	public boolean [] recordsecond;
+	public int [] bestk;
+	public int [] secondidx;
+	
+	// 0, 1, 2, ... for blocking over every tuple of a store
+	private int [] identity = new int [0];
+	
+	
+	//------------------------- Constructor --------------------------
+	AlignerContext(int k)
+	{
+		this(k, false, 0, false);
+	}
+	
+	
+	//------------------------- Constructor --------------------------
+	// Allocate buffers for up to k differences, blocks of blocksize tuples,
+	// and best alignment slots if the alignments are filtered
+	
+	AlignerContext(int k, boolean useBitVector, int blocksize, boolean filter)
+	{
+		L    = new int [k*2+1][k+1];
+		B    = new int [k*2+1][k+1];
+		dist = new int [k+1];
+		what = new int [k+1];
+		diffs = new int [k+1];
+		
+		bitvector = useBitVector;
+		
+		leftmm  = new int [blocksize];
+		rightmm = new int [blocksize];
+		
+		if (filter)
+		{
+			bestalignments   = new AlignmentRecord[blocksize];
+			secondalignments = new AlignmentRecord[blocksize];
+			recordsecond     = new boolean[blocksize];
+			bestk            = new int[blocksize];
+			secondidx        = new int[blocksize];
+			
+			for (int i = 0; i < blocksize; i++)
+			{
+				bestalignments[i]   = new AlignmentRecord();
+				secondalignments[i] = new AlignmentRecord();
+			}
+		}
+	}
+	
+	
+	//------------------------- resetBest --------------------------
+	// Start tracking the best alignments of n queries, none better than k differences yet
+	
+	public void resetBest(int n, int k)
+	{
+		if (bestk.length < n)
+		{
+			int old = bestk.length;
+			
+			bestalignments   = java.util.Arrays.copyOf(bestalignments,   n);
+			secondalignments = java.util.Arrays.copyOf(secondalignments, n);
+			recordsecond     = new boolean[n];
+			bestk            = new int[n];
+			secondidx        = new int[n];
+			
+			for (int i = old; i < n; i++)
+			{
+				bestalignments[i]   = new AlignmentRecord();
+				secondalignments[i] = new AlignmentRecord();
+			}
+		}
+		
+		java.util.Arrays.fill(bestk, 0, n, k);
+	}
+	
+	
+	//------------------------- identity --------------------------
+	// An array holding 0 .. n-1 (at least)
+	
+	public int [] identity(int n)
+	{
+		if (identity.length < n)
+		{
+			identity = new int [n * 2];
+			
+			for (int i = 0; i < identity.length; i++)
+			{
+				identity[i] = i;
+			}
+		}
+		
+		return identity;
+	}
+}
@@ -13,8 +13,10 @@ public class AlignmentRecord
 	public boolean m_isRC = false;
 	
 	private static final StringBuilder builder = new StringBuilder();
-	private static final BytesWritable bytes = new BytesWritable();
-	private static final byte [] sbuffer = new byte[17];
+	
+	// per record, so records on different threads can be serialized at the same time
+	private final BytesWritable bytes = new BytesWritable();
+	private final byte [] sbuffer = new byte[17];
 	
 	AlignmentRecord()
 	{
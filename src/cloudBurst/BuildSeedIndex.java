@@ -0,0 +1,212 @@
+package cloudBurst;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+// One-time build of a SeedIndex for a .br reference, so reads can be aligned against it
+// map-only (SEED_INDEX=dir) instead of shuffling the reference seeds on every run. A job
+// sorts every seed without an N by key, and its single reducer writes the keys, starts
+// and positions files. The sequences are then reassembled from their chunks and
+// packed into the genome file. The index only depends on the seed length, so it can be
+// reused for any reads with the same MIN_READ_LEN / (K+1).
+
+public class BuildSeedIndex {
+
+	public static class IndexMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, LongWritable, LongWritable>
+	{
+		private FastaRecord record = new FastaRecord();
+		private LongWritable seed = new LongWritable();
+		private LongWritable position = new LongWritable();
+		private RollingSeed roll = null;
+		private PackedChunk chunk = new PackedChunk();
+		private int SEED_LEN;
+
+		public void configure(JobConf conf)
+		{
+			SEED_LEN   = Integer.parseInt(conf.get("SEED_LEN"));
+			roll       = new RollingSeed(SEED_LEN);
+		}
+
+		public void map(IntWritable id, BytesWritable rawRecord,
+				OutputCollector<LongWritable, LongWritable> output, Reporter reporter) throws IOException
+		{
+			record.fromBytes(rawRecord, chunk);
+
+			int realoffsetstart = record.m_offset;
+			int seqlen          = chunk.len;
+
+			// the positions of the whole sequence are known, so no room is needed for the flanks,
+			// just start where the previous chunk left off
+			int startoffset = 0;
+
+			if (realoffsetstart != 0)
+			{
+				startoffset = CloudBurst.CHUNK_OVERLAP + 1 - SEED_LEN;
+				realoffsetstart += startoffset;
+			}
+
+			int end = seqlen - SEED_LEN + 1;
+
+			if (startoffset < end)
+			{
+				roll.reset(chunk, startoffset);
+			}
+
+			for (int start = startoffset, realoffset = realoffsetstart; start < end; start++, realoffset++, roll.advance())
+			{
+				if (roll.hasN()) { continue; }
+
+				seed.set(roll.key());
+				position.set(SeedIndex.position(id.get(), realoffset));
+				output.collect(seed, position);
+			}
+		}
+	}
+
+
+	public static class IndexReduceClass extends MapReduceBase implements
+			Reducer<LongWritable, LongWritable, LongWritable, LongWritable>
+	{
+		private FileSystem fs;
+		private Path dir;
+		private int SEED_LEN;
+
+		private DataOutputStream keys;
+		private DataOutputStream starts;
+		private DataOutputStream positions;
+		private long numkeys = 0;
+		private long numpositions = 0;
+
+		public void configure(JobConf conf)
+		{
+			SEED_LEN = Integer.parseInt(conf.get("SEED_LEN"));
+
+			try
+			{
+				// the side files are promoted to the output directory when the task commits
+				fs  = FileSystem.get(conf);
+				dir = FileOutputFormat.getWorkOutputPath(conf);
+
+				keys      = fs.create(new Path(dir, SeedIndex.KEYS));
+				starts    = fs.create(new Path(dir, SeedIndex.STARTS));
+				positions = fs.create(new Path(dir, SeedIndex.POSITIONS));
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Couldn't create the index files: " + e.getMessage());
+			}
+		}
+
+		public void reduce(LongWritable seed, Iterator<LongWritable> values,
+				OutputCollector<LongWritable, LongWritable> output, Reporter reporter)
+				throws IOException
+		{
+			keys.writeLong(seed.get());
+			starts.writeLong(numpositions);
+			numkeys++;
+
+			while (values.hasNext())
+			{
+				positions.writeLong(values.next().get());
+				numpositions++;
+			}
+
+			if ((numkeys & 0xFFFF) == 0) { reporter.progress(); }
+		}
+
+		public void close() throws IOException
+		{
+			starts.writeLong(numpositions);
+
+			keys.close();
+			starts.close();
+			positions.close();
+
+			DataOutputStream info = fs.create(new Path(dir, SeedIndex.INFO));
+			info.writeInt(SEED_LEN);
+			info.writeLong(numkeys);
+			info.writeLong(numpositions);
+			info.close();
+		}
+	}
+
+
+	//------------------------- build --------------------------
+	// Index the reference in refpath into indexpath
+
+	public static void build(String refpath, String indexpath, int SEED_LEN, int NUM_MAP_TASKS) throws IOException
+	{
+		JobConf conf = new JobConf(BuildSeedIndex.class);
+		conf.setJobName("BuildSeedIndex");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(1);
+
+		FileInputFormat.addInputPath(conf, new Path(refpath));
+		conf.set("SEED_LEN", Integer.toString(SEED_LEN));
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(LongWritable.class);
+		conf.setMapOutputValueClass(LongWritable.class);
+
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(LongWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapperClass(IndexMapClass.class);
+		conf.setReducerClass(IndexReduceClass.class);
+
+		FileSystem fs = FileSystem.get(conf);
+		Path oPath = new Path(indexpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old index");
+		fs.delete(oPath);
+
+		JobClient.runJob(conf);
+
+		PackedSequenceStore.pack(fs, conf, new Path(refpath), new Path(oPath, SeedIndex.GENOME));
+
+		System.err.println("BuildSeedIndex Finished");
+	}
+
+
+	//------------------------- main --------------------------
+
+	public static void main(String[] args) throws IOException
+	{
+		if ((args.length != 3) && (args.length != 4))
+		{
+			System.err.println("Usage: BuildSeedIndex refpath indexpath seedlen [#mappers]");
+			System.err.println();
+			System.err.println("seedlen must be the minreadlen / (k+1) of the reads to be aligned with SEED_INDEX=indexpath");
+			System.exit(-1);
+		}
+
+		String refpath   = args[0];
+		String indexpath = args[1];
+		int seedlen      = Integer.parseInt(args[2]);
+		int nummappers   = (args.length == 4) ? Integer.parseInt(args[3]) : 1;
+
+		Timer all = new Timer();
+		build(refpath, indexpath, seedlen, nummappers);
+		System.err.println("Total Running time:  " + all.get());
+	}
+}
@@ -0,0 +1,17 @@
+package cloudBurst;
+
+// A cheap test run on a (qry, ref) pair before the full extension. A filter returns
+// a lower bound on the differences needed to align a query flank onto the start of
+// a reference flank, so a pair can be skipped when the left and right bounds add up
+// to more than K. The bound must never exceed the real distance, otherwise real
+// alignments would be lost.
+
+public interface CandidateFilter
+{
+	// Counters for the pairs rejected by each filter, and the pairs that got through
+	public static enum Counter { COMPOSITION_REJECTED, QGRAM_REJECTED, PASSED };
+
+	public Counter getCounter();
+
+	public int lowerBound(FlankSignature qry, FlankSignature ref, int k);
+}
@@ -2,6 +2,7 @@ package cloudBurst;
 
 import java.io.IOException;
 
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
@@ -14,6 +15,7 @@ import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.SequenceFileInputFormat;
 import org.apache.hadoop.mapred.SequenceFileOutputFormat;
 
+import cloudBurst.MerReduce.IndexedMapClass;
 import cloudBurst.MerReduce.MapClass;
 import cloudBurst.MerReduce.ReduceClass;
 import cloudBurst.FilterAlignments.FilterCombinerClass;
@@ -39,11 +41,71 @@ public class CloudBurst {
 			                          int NUM_MAP_TASKS,
 			                          int NUM_REDUCE_TASKS,
 			                          int BLOCK_SIZE,
-			                          int REDUNDANCY) throws IOException, Exception
+			                          int REDUNDANCY,
+			                          String [] OPTIONS) throws IOException, Exception
 	{
-		int SEED_LEN   = MIN_READ_LEN / (K+1);
+		// MINIMIZER_WINDOW=w: the reference only emits minimizers, so the seeds are w-1 shorter
+		// to leave room for a whole window of w seeds in each of the K+1 pieces of a read
+		int MINIMIZER_WINDOW = 1;
+		
+		// SEED_PATTERN=1101...|auto: spaced seeds in mismatch mode, auto picks one from SpacedSeeds.TABLE
+		String SEED_PATTERN = null;
+		
+		// MULTI_HIT=s: reads are cut into K+s pieces, and only the (read, diagonal) pairs with at 
+		// least s of them are extended, by a second job keyed by read, see MultiHit
+		int MULTI_HIT = 0;
+		
+		for (String option : OPTIONS)
+		{
+			if (option.startsWith("MINIMIZER_WINDOW=")) { MINIMIZER_WINDOW = Integer.parseInt(option.substring(17)); }
+			if (option.startsWith("SEED_PATTERN="))     { SEED_PATTERN = option.substring(13); }
+			if (option.startsWith("MULTI_HIT="))        { MULTI_HIT = Integer.parseInt(option.substring(10)); }
+		}
+		
+		if ("auto".equals(SEED_PATTERN))
+		{
+			SEED_PATTERN = null;
+			
+			if ((ALLOW_DIFFERENCES == 0) && (MINIMIZER_WINDOW == 1) && (MULTI_HIT == 0))
+			{
+				SEED_PATTERN = SpacedSeeds.choose(MIN_READ_LEN, K);
+			}
+			
+			if (SEED_PATTERN == null)
+			{
+				System.out.println("No spaced seed pattern beats contiguous seeds for " + MIN_READ_LEN + "bp with K=" + K);
+			}
+		}
+		
+		int PIECES     = (MULTI_HIT > 0) ? K + MULTI_HIT : K + 1;
+		int SEED_LEN   = MIN_READ_LEN / PIECES - (MINIMIZER_WINDOW-1);
 		int FLANK_LEN  = MAX_READ_LEN-SEED_LEN+K; 
 		
+		if ((MINIMIZER_WINDOW < 1) || (MULTI_HIT < 0) || (SEED_LEN < 1))
+		{
+			throw new IOException("MINIMIZER_WINDOW=" + MINIMIZER_WINDOW + " and MULTI_HIT=" + MULTI_HIT + 
+					              " don't fit in reads of " + MIN_READ_LEN + "bp with K=" + K);
+		}
+		
+		if (SEED_PATTERN != null)
+		{
+			SpacedSeeds pattern = new SpacedSeeds(SEED_PATTERN);
+			
+			if ((ALLOW_DIFFERENCES != 0) || (MINIMIZER_WINDOW > 1) || (MULTI_HIT > 0))
+			{
+				throw new IOException("SEED_PATTERN only works in mismatch mode (ALLOW_DIFFERENCES=0), without MINIMIZER_WINDOW or MULTI_HIT");
+			}
+			
+			if (!pattern.isFullySensitive(MIN_READ_LEN, K))
+			{
+				throw new IOException("SEED_PATTERN=" + SEED_PATTERN + " can miss alignments of " + MIN_READ_LEN + "bp reads with K=" + K);
+			}
+			
+			// the right flank covers the whole seed, and starts where it does
+			SEED_LEN  = pattern.weight;
+			FLANK_LEN = MAX_READ_LEN+K;
+		}
+		
 		
 		System.out.println("refath: "            + refpath);
 		System.out.println("qrypath: "           + qrypath);
@@ -60,6 +122,21 @@ public class CloudBurst {
 		System.out.println("BLOCK_SIZE: "        + BLOCK_SIZE);
 		System.out.println("REDUNDANCY: "        + REDUNDANCY);
 		
+		if (SEED_PATTERN != null)
+		{
+			System.out.println("SEED_PATTERN: "  + SEED_PATTERN);
+		}
+		
+		if (MULTI_HIT > 0)
+		{
+			System.out.println("MULTI_HIT: "     + MULTI_HIT);
+		}
+		
+		for (String option : OPTIONS)
+		{
+			System.out.println("OPTION: "        + option);
+		}
+		
 		JobConf conf = new JobConf(MerReduce.class);
 		conf.setJobName("CloudBurst");
 		conf.setNumMapTasks(NUM_MAP_TASKS);
@@ -70,7 +147,19 @@ public class CloudBurst {
 		//conf.addInputPath(new Path(qrypath));
 		
 		// new style
-		FileInputFormat.addInputPath(conf, new Path(refpath));
+		String SEED_INDEX = null;
+		
+		for (String option : OPTIONS)
+		{
+			if (option.startsWith("SEED_INDEX=")) { SEED_INDEX = option.substring(11); }
+		}
+		
+		// with a seed index the reference is looked up by the mappers instead of read
+		if (SEED_INDEX == null)
+		{
+			FileInputFormat.addInputPath(conf, new Path(refpath));
+		}
+		
 		FileInputFormat.addInputPath(conf, new Path(qrypath));
 
 		conf.set("refpath",           refpath);
@@ -85,23 +174,214 @@ public class CloudBurst {
 		conf.set("REDUNDANCY",        Integer.toString(REDUNDANCY));
 		conf.set("FILTER_ALIGNMENTS", (FILTER_ALIGNMENTS ? "1" : "0"));
 		
-		conf.setMapperClass(MapClass.class);
+		// optional NAME=value settings override the defaults used by the tasks
+		for (String option : OPTIONS)
+		{
+			// auto has already been resolved to a pattern, or to contiguous seeds
+			if (option.startsWith("SEED_PATTERN=")) { continue; }
+			
+			int eq = option.indexOf('=');
+			conf.set(option.substring(0, eq), option.substring(eq+1));
+		}
+		
+		if (SEED_PATTERN != null)
+		{
+			conf.set("SEED_PATTERN", SEED_PATTERN);
+		}
+		
+		if (MULTI_HIT > 0)
+		{
+			// the hits are verified against the pieces they came from, so the read seeds have to be
+			// the plain pieces of both strands, and every reference seed has to be there
+			if ((MINIMIZER_WINDOW > 1) || (SEED_INDEX != null) || 
+				(Integer.parseInt(conf.get("CANONICAL_SEEDS", "0")) == 1) || 
+				conf.get("REPEAT_MASK", "drop").equals("sample"))
+			{
+				throw new IOException("MULTI_HIT can't be used with MINIMIZER_WINDOW, SEED_INDEX, CANONICAL_SEEDS or REPEAT_MASK=sample");
+			}
+			
+			// the seed job only joins positions, the verify job decodes the flanks of the hits it extends
+			conf.set("POSITION_ONLY_REFS",  "1");
+			conf.set("POSITION_ONLY_READS", "1");
+		}
+		
+		if (MerReduce.keyShards(conf) > 256)
+		{
+			throw new IOException("Seeds can be spread over at most 256 shards");
+		}
+		
+		// the reducers orient flipped tuples by their flanks, so they have to be shuffled with them
+		boolean CANONICAL_SEEDS = Integer.parseInt(conf.get("CANONICAL_SEEDS", "0")) == 1;
+		
+		if (CANONICAL_SEEDS && ((SEED_INDEX != null) || 
+				                (Integer.parseInt(conf.get("POSITION_ONLY_REFS", "0")) == 1) || 
+				                (Integer.parseInt(conf.get("POSITION_ONLY_READS", "0")) == 1)))
+		{
+			throw new IOException("CANONICAL_SEEDS can't be used with SEED_INDEX, POSITION_ONLY_REFS or POSITION_ONLY_READS");
+		}
+		
+		// the index has every reference seed, and is built for the full length seeds
+		if ((MINIMIZER_WINDOW > 1) && (SEED_INDEX != null))
+		{
+			throw new IOException("MINIMIZER_WINDOW can't be used with SEED_INDEX");
+		}
+		
+		// the index, the packed flanks and the seed counting jobs all use contiguous seeds
+		if ((SEED_PATTERN != null) && 
+			(CANONICAL_SEEDS || (SEED_INDEX != null) || (conf.get("MAX_SEED_OCCURRENCES") != null) ||
+			 (Integer.parseInt(conf.get("HOT_SEED_SHARDS", "1")) > 1) ||
+			 (Integer.parseInt(conf.get("POSITION_ONLY_REFS", "0")) == 1) || 
+			 (Integer.parseInt(conf.get("POSITION_ONLY_READS", "0")) == 1)))
+		{
+			throw new IOException("SEED_PATTERN can't be used with CANONICAL_SEEDS, SEED_INDEX, HOT_SEED_SHARDS, MAX_SEED_OCCURRENCES, POSITION_ONLY_REFS or POSITION_ONLY_READS");
+		}
+		
+		if (Integer.parseInt(conf.get("HOT_SEED_SHARDS", "1")) > 1)
+		{
+			// count the reference seeds first, so the mappers can spread out the frequent ones
+			Timer tsketch = new Timer();
+			int width = Integer.parseInt(conf.get("HOT_SEED_SKETCH_WIDTH", Integer.toString(SketchSeeds.DEFAULT_WIDTH)));
+			Path sketchPath = SketchSeeds.sketch(refpath, outpath + "-sketch", SEED_LEN, FLANK_LEN, CANONICAL_SEEDS, 
+			                                     width, NUM_MAP_TASKS);
+			
+			DistributedCache.addCacheFile(sketchPath.toUri(), conf);
+			conf.set("HOT_SEED_SKETCH", sketchPath.toString());
+			System.err.println("Sketch time: " + tsketch.get());
+		}
+		
+		if (conf.get("MAX_SEED_OCCURRENCES") != null)
+		{
+			// find the over-represented reference seeds to drop or sample
+			String mode = conf.get("REPEAT_MASK", "drop");
+			
+			if (!mode.equals("drop") && !mode.equals("sample"))
+			{
+				throw new IOException("Unknown REPEAT_MASK: " + mode);
+			}
+			
+			Timer tcount = new Timer();
+			Path maskedPath = CountSeeds.count(refpath, outpath + "-masked", SEED_LEN, FLANK_LEN, CANONICAL_SEEDS, 
+					                           Integer.parseInt(conf.get("MAX_SEED_OCCURRENCES")), 
+					                           NUM_MAP_TASKS, NUM_REDUCE_TASKS);
+			
+			DistributedCache.addCacheFile(maskedPath.toUri(), conf);
+			conf.set("MASKED_SEEDS", maskedPath.toString());
+			System.err.println("Seed count time: " + tcount.get());
+		}
+		
+		if (Integer.parseInt(conf.get("POSITION_ONLY_REFS", "0")) == 1)
+		{
+			// the reference tuples are shuffled without flanks, the reducers decode them from a packed copy
+			if (SEED_INDEX != null)
+			{
+				throw new IOException("POSITION_ONLY_REFS only applies to the shuffle, and can't be used with SEED_INDEX");
+			}
+			
+			if (conf.get("PACKED_GENOME") == null)
+			{
+				Timer tpack = new Timer();
+				Path genomePath = new Path(outpath + "-genome", SeedIndex.GENOME);
+				PackedSequenceStore.pack(FileSystem.get(conf), conf, new Path(refpath), genomePath);
+				
+				conf.set("PACKED_GENOME", genomePath.toString());
+				System.err.println("Genome packing time: " + tpack.get());
+			}
+			
+			DistributedCache.addCacheFile(new Path(conf.get("PACKED_GENOME")).toUri(), conf);
+		}
+		
+		if (Integer.parseInt(conf.get("POSITION_ONLY_READS", "0")) == 1)
+		{
+			// the query seeds are shuffled without flanks, the reducers decode them from a packed copy of the reads
+			if (conf.get("READ_STORE") == null)
+			{
+				Timer tpack = new Timer();
+				Path storePath = new Path(outpath + "-reads", "reads.packed");
+				PackedSequenceStore.pack(FileSystem.get(conf), conf, new Path(qrypath), storePath);
+				
+				conf.set("READ_STORE", storePath.toString());
+				System.err.println("Read packing time: " + tpack.get());
+			}
+			
+			DistributedCache.addCacheFile(new Path(conf.get("READ_STORE")).toUri(), conf);
+		}
 		
 		conf.setInputFormat(SequenceFileInputFormat.class);			
-		conf.setMapOutputKeyClass(BytesWritable.class);
-		conf.setMapOutputValueClass(BytesWritable.class);
-
-		// The order of seeds is not important, but make sure the reference seeds are seen before the qry seeds
-		conf.setPartitionerClass(MerReduce.PartitionMers.class); 
-		conf.setOutputValueGroupingComparator(MerReduce.GroupMersWC.class);
 		
-		conf.setReducerClass(ReduceClass.class);		
+		if (SEED_INDEX != null)
+		{
+			// map-only: each mapper memory-maps the index and aligns its reads against it
+			if (Integer.parseInt(conf.get("HOT_SEED_SHARDS", "1")) > 1)
+			{
+				throw new IOException("HOT_SEED_SHARDS balances the reducers, and can't be used with SEED_INDEX");
+			}
+			
+			FileSystem fs = FileSystem.get(conf);
+			int indexSeedLen = SeedIndex.readSeedLen(fs.open(new Path(SEED_INDEX, SeedIndex.INFO)));
+			
+			if (indexSeedLen != SEED_LEN)
+			{
+				throw new IOException("The seed index in " + SEED_INDEX + " is for " + indexSeedLen + "bp seeds, not " + SEED_LEN);
+			}
+			
+			for (String name : SeedIndex.FILES)
+			{
+				DistributedCache.addCacheFile(new Path(SEED_INDEX, name).toUri(), conf);
+			}
+			
+			conf.setMapperClass(IndexedMapClass.class);
+			conf.setNumReduceTasks(0);
+			conf.setMapOutputKeyClass(IntWritable.class);
+			conf.setMapOutputValueClass(BytesWritable.class);
+		}
+		else
+		{
+			conf.setMapperClass(MapClass.class);
+			conf.setMapOutputValueClass(MerRecordWritable.class);
+			
+			// short seeds are keyed by a single long that sorts with one compare, unless LONG_SEED_KEYS=0
+			String longKeys = conf.get("LONG_SEED_KEYS", "");
+			boolean fits = SeedKey.fits(SEED_LEN, MerReduce.keyShards(conf));
+			
+			if (longKeys.equals("1") && !fits)
+			{
+				throw new IOException("LONG_SEED_KEYS needs the seed, shard and flag bits to fit in 64 bits");
+			}
+			
+			conf.set("LONG_SEED_KEYS", (fits && !longKeys.equals("0")) ? "1" : "0");
+	
+			// The order of seeds is not important, but make sure the reference seeds are seen before the qry seeds
+			if (conf.get("LONG_SEED_KEYS").equals("1"))
+			{
+				conf.setMapOutputKeyClass(SeedKey.class);
+				conf.setPartitionerClass(MerReduce.PartitionSeedKeys.class); 
+				conf.setOutputValueGroupingComparator(MerReduce.GroupSeedKeys.class);
+			}
+			else
+			{
+				conf.setMapOutputKeyClass(BytesWritable.class);
+				conf.setPartitionerClass(MerReduce.PartitionMers.class); 
+				conf.setOutputValueGroupingComparator(MerReduce.GroupMersWC.class);
+			}
+			
+			if (MULTI_HIT > 0)
+			{
+				conf.setReducerClass(MultiHit.JoinReduceClass.class);
+			}
+			else
+			{
+				conf.setReducerClass(ReduceClass.class);
+			}
+		}
+		
 		conf.setOutputKeyClass(IntWritable.class);
 		conf.setOutputValueClass(BytesWritable.class);
 		conf.setOutputFormat(SequenceFileOutputFormat.class);
 		
+		// with MULTI_HIT the seed job writes the hits, and the alignments come from the verify job
+		String hitpath = outpath + "-hits";
 		
-		Path oPath = new Path(outpath);
+		Path oPath = new Path((MULTI_HIT > 0) ? hitpath : outpath);
 		//conf.setOutputPath(oPath);
 		FileOutputFormat.setOutputPath(conf, oPath);
 		System.err.println("  Removing old results");
@@ -110,6 +390,15 @@ public class CloudBurst {
 		
 		RunningJob rj = JobClient.runJob(conf);
 		System.err.println("CloudBurst Finished");
+		
+		if (MULTI_HIT > 0)
+		{
+			Timer tverify = new Timer();
+			rj = MultiHit.verify(conf, hitpath, outpath, NUM_MAP_TASKS, NUM_REDUCE_TASKS);
+			FileSystem.get(conf).delete(oPath);
+			System.err.println("Verify time: " + tverify.get());
+		}
+		
 		return rj;
 	}
 	
@@ -181,6 +470,7 @@ public class CloudBurst {
 		int redundancy   = 1;
 		
 		boolean filteralignments = false;
+		String [] options = new String [0];
 		
 		int local = 0; // set to zero to use command line arguments
 		
@@ -216,9 +506,9 @@ public class CloudBurst {
 			filteralignments = false;
 			redundancy       = 1;
 		}
-		else if (args.length != 14)
+		else if (args.length < 14)
 		{
-			System.err.println("Usage: CloudBurst refpath qrypath outpath minreadlen maxreadlen k allowdifferences filteralignments #mappers #reduces #fmappers #freducers blocksize redundancy");
+			System.err.println("Usage: CloudBurst refpath qrypath outpath minreadlen maxreadlen k allowdifferences filteralignments #mappers #reduces #fmappers #freducers blocksize redundancy [NAME=value ...]");
   
 //			System.err.println();
 //			System.err.println("1.  refpath:          path in hdfs to the reference file");
@@ -235,6 +525,31 @@ public class CloudBurst {
 			System.err.println("12. #freducers:       number of reducers for filtration alg. suggested: #processor-cores");
 			System.err.println("13. blocksize:        number of qry and ref tuples to consider at a time in the reduce phase. suggested: 128"); 
 			System.err.println("14. redundancy:       number of copies of low complexity seeds to use. suggested: # processor cores");
+			System.err.println();
+			System.err.println("Optional settings:");
+			System.err.println("  BITVECTOR_KDIFF=1:  use the bit-vector k-difference kernel (faster for larger k)");
+			System.err.println("  REDUCE_THREADS=n:   align seed groups on n threads inside each reduce task");
+			System.err.println("  CANDIDATE_FILTERS=composition,qgram:  skip pairs that provably can't align before extending (differences mode)");
+			System.err.println("  MEMOIZE_FLANKS=1:   align identical flanks in a seed group once and share the result");
+			System.err.println("  REF_BUFFER_BYTES=n: spill the reference tuples of a seed beyond n bytes to REF_SPILL_DIR (default 1/4 heap)");
+			System.err.println("  HEAVY_GROUP_THREADS=n: split seed groups of at least HEAVY_GROUP_PAIRS pairs (default 1000000) across n threads");
+			System.err.println("  HOT_SEED_SHARDS=n:  sketch the reference seeds first, and spread seeds seen more than HOT_SEED_COUNT (default 1000) times over n reducers");
+			System.err.println("  MAX_SEED_OCCURRENCES=n: count the reference seeds first, and drop seeds seen more than n times (REPEAT_MASK=drop),");
+			System.err.println("                      or keep a sample of n of their reference positions (REPEAT_MASK=sample)");
+			System.err.println("  SEED_INDEX=dir:     align map-only against a seed index of the reference made by BuildSeedIndex");
+			System.err.println("  POSITION_ONLY_REFS=1: shuffle reference seeds without flanks, and decode them from a packed copy of the");
+			System.err.println("                      reference (PACKED_GENOME=path, default: packed into outpath-genome)");
+			System.err.println("  LONG_SEED_KEYS=0:   key seeds by their packed bytes even if they fit in a long (SEED_LEN <= 30)");
+			System.err.println("  POSITION_ONLY_READS=1: shuffle read seeds without flanks, and decode them from a packed copy of the");
+			System.err.println("                      reads (READ_STORE=path, default: packed into outpath-reads)");
+			System.err.println("  CANONICAL_SEEDS=1:  key seeds by the smaller of the seed and its reverse complement, so each read");
+			System.err.println("                      seed is shuffled once instead of once per strand");
+			System.err.println("  MINIMIZER_WINDOW=w: only shuffle the reference seeds that are the smallest of some window of w seeds,");
+			System.err.println("                      with seeds w-1 shorter so each read piece holds a whole window");
+			System.err.println("  SEED_PATTERN=1101...: spaced seeds for mismatch mode, the pattern has to be fully sensitive for");
+			System.err.println("                      MIN_READ_LEN and K. auto picks the heaviest one from a table of designs");
+			System.err.println("  MULTI_HIT=s:        cut reads into K+s pieces, and only extend the reads that share at least s of them");
+			System.err.println("                      with a spot of the reference, counted by a second job keyed by read");
 			
 			return;
 		}
@@ -254,6 +569,12 @@ public class CloudBurst {
 			numfreducers     = Integer.parseInt(args[11]);
 			blocksize        = Integer.parseInt(args[12]);
 			redundancy       = Integer.parseInt(args[13]);
+			options          = java.util.Arrays.copyOfRange(args, 14, args.length);
+		}
+		
+		for (String option : options)
+		{
+			if (option.indexOf('=') <= 0) { System.err.println("options must be NAME=value: " + option); return; }
 		}
 		
 		if (redundancy < 1) { System.err.println("minimum redundancy is 1"); return; }
@@ -274,7 +595,7 @@ public class CloudBurst {
 		// run the alignments
 		Timer talign = new Timer();
 		alignall(refpath,  qrypath, alignpath, minreadlen, maxreadlen, K, allowdifferences, filteralignments, 
-				 nummappers, numreducers, blocksize, redundancy);
+				 nummappers, numreducers, blocksize, redundancy, options);
 		System.err.println("Alignment time: " + talign.get());
 		
 		// filter to report best alignments
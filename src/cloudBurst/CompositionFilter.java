@@ -0,0 +1,37 @@
+package cloudBurst;
+
+// Base composition bound: every query base that is not matched costs a difference,
+// so the query needs at least as many differences as it has bases in excess of the
+// same base in the reachable reference window. n is treated as a 5th base since
+// the aligners let n match n.
+
+public class CompositionFilter implements CandidateFilter
+{
+	public Counter getCounter()
+	{
+		return Counter.COMPOSITION_REJECTED;
+	}
+
+
+	//------------------------- lowerBound --------------------------
+	public int lowerBound(FlankSignature qry, FlankSignature ref, int k)
+	{
+		int w = FlankSignature.window(qry, ref, k);
+		if ((w < 0) || (qry.len == 0)) { return 0; }
+		
+		int bound = 0;
+
+		for (int code = 0; code < 5; code++)
+		{
+			int q = qry.composition[code];
+
+			if (q != 0)
+			{
+				int excess = q - ref.windowCount(code, w);
+				if (excess > 0) { bound += excess; }
+			}
+		}
+
+		return bound;
+	}
+}
@@ -151,13 +151,16 @@ public class ConvertFastaForCloud {
 	 */
 	public static void main(String[] args) throws IOException 
 	{
-		if (args.length != 2) {
-			System.err.println("Usage: ConvertFastaForCloud file.fa outfile.br");
+		if ((args.length != 2) && !((args.length == 3) && args[2].equals("2bit"))) {
+			System.err.println("Usage: ConvertFastaForCloud file.fa outfile.br [2bit]");
+			System.err.println();
+			System.err.println("2bit: store the chunks at 2 bits / bp with their N runs listed separately");
 			System.exit(-1);
 		}
 		
 		String infile = args[0];
 		String outfile = args[1];
+		record.m_packed = (args.length == 3);
 		
 		System.err.println("Converting " + infile + " into " + outfile);
 		
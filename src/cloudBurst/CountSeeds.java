@@ -0,0 +1,240 @@
+package cloudBurst;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+// Pre-pass over the reference that counts every seed the alignment mappers will emit,
+// like CountKmers, but only keeps the seeds that occur more than MAX_SEED_OCCURRENCES
+// times. They are collected into one sorted MaskedSeeds file that is shipped to the
+// alignment tasks through the distributed cache.
+
+public class CountSeeds {
+
+	public static class SeedMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, LongWritable, IntWritable>
+	{
+		private FastaRecord record = new FastaRecord();
+		private LongWritable seed = new LongWritable();
+		private IntWritable one = new IntWritable(1);
+		private RollingSeed roll = null;
+		private PackedChunk chunk = new PackedChunk();
+		private int SEED_LEN;
+		private int FLANK_LEN;
+
+		public void configure(JobConf conf)
+		{
+			SEED_LEN   = Integer.parseInt(conf.get("SEED_LEN"));
+			FLANK_LEN  = Integer.parseInt(conf.get("FLANK_LEN"));
+			roll       = new RollingSeed(SEED_LEN, Integer.parseInt(conf.get("CANONICAL_SEEDS", "0")) == 1);
+		}
+
+		public void map(IntWritable id, BytesWritable rawRecord,
+				OutputCollector<LongWritable, IntWritable> output, Reporter reporter) throws IOException
+		{
+			record.fromBytes(rawRecord, chunk);
+
+			int realoffsetstart = record.m_offset;
+			boolean isLast      = record.m_lastChunk;
+			int seqlen          = chunk.len;
+
+			// the same seeds as MerReduce.MapClass, so the overlap between chunks is only counted once
+			int startoffset = 0;
+
+			if (realoffsetstart != 0)
+			{
+				startoffset = CloudBurst.CHUNK_OVERLAP + 1 - FLANK_LEN - SEED_LEN;
+			}
+
+			int end = seqlen - SEED_LEN + 1;
+
+			if (!isLast)
+			{
+				end -= FLANK_LEN;
+			}
+
+			if (startoffset < end)
+			{
+				roll.reset(chunk, startoffset);
+			}
+
+			for (int start = startoffset; start < end; start++, roll.advance())
+			{
+				if (roll.hasN()) { continue; }
+
+				seed.set(roll.key());
+				output.collect(seed, one);
+			}
+		}
+	}
+
+
+	public static class SeedCombineClass extends MapReduceBase implements
+			Reducer<LongWritable, IntWritable, LongWritable, IntWritable>
+	{
+		private IntWritable count = new IntWritable();
+
+		public void reduce(LongWritable seed, Iterator<IntWritable> values,
+				OutputCollector<LongWritable, IntWritable> output, Reporter reporter)
+				throws IOException
+		{
+			int cnt = 0;
+
+			while (values.hasNext())
+			{
+				cnt += values.next().get();
+			}
+
+			count.set(cnt);
+			output.collect(seed, count);
+		}
+	}
+
+
+	public static class SeedReduceClass extends MapReduceBase implements
+			Reducer<LongWritable, IntWritable, LongWritable, IntWritable>
+	{
+		private IntWritable count = new IntWritable();
+		private int MAX_SEED_OCCURRENCES;
+
+		public void configure(JobConf conf)
+		{
+			MAX_SEED_OCCURRENCES = Integer.parseInt(conf.get("MAX_SEED_OCCURRENCES"));
+		}
+
+		public void reduce(LongWritable seed, Iterator<IntWritable> values,
+				OutputCollector<LongWritable, IntWritable> output, Reporter reporter)
+				throws IOException
+		{
+			int cnt = 0;
+
+			while (values.hasNext())
+			{
+				cnt += values.next().get();
+			}
+
+			if (cnt > MAX_SEED_OCCURRENCES)
+			{
+				count.set(cnt);
+				output.collect(seed, count);
+			}
+		}
+	}
+
+
+	//------------------------- count --------------------------
+	// Run the pre-pass over the reference in refpath, and return the path of the masked seeds file
+
+	public static Path count(String refpath, String outpath, int SEED_LEN, int FLANK_LEN, boolean CANONICAL_SEEDS,
+			                 int MAX_SEED_OCCURRENCES, int NUM_MAP_TASKS, int NUM_REDUCE_TASKS) throws IOException
+	{
+		JobConf conf = new JobConf(CountSeeds.class);
+		conf.setJobName("CountSeeds");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(NUM_REDUCE_TASKS);
+
+		FileInputFormat.addInputPath(conf, new Path(refpath));
+		conf.set("SEED_LEN",             Integer.toString(SEED_LEN));
+		conf.set("FLANK_LEN",            Integer.toString(FLANK_LEN));
+		conf.set("CANONICAL_SEEDS",      (CANONICAL_SEEDS ? "1" : "0"));
+		conf.set("MAX_SEED_OCCURRENCES", Integer.toString(MAX_SEED_OCCURRENCES));
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(LongWritable.class);
+		conf.setMapOutputValueClass(IntWritable.class);
+
+		conf.setOutputKeyClass(LongWritable.class);
+		conf.setOutputValueClass(IntWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapperClass(SeedMapClass.class);
+		conf.setCombinerClass(SeedCombineClass.class);
+		conf.setReducerClass(SeedReduceClass.class);
+
+		FileSystem fs = FileSystem.get(conf);
+		Path oPath = new Path(outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old seed counts");
+		fs.delete(oPath);
+
+		JobClient.runJob(conf);
+
+		// each reducer's output is sorted, but the seeds were hashed across the reducers
+		List<long []> masked = new ArrayList<long []>();
+		LongWritable seed = new LongWritable();
+		IntWritable count = new IntWritable();
+
+		for (FileStatus part : fs.listStatus(oPath))
+		{
+			if (!part.getPath().getName().startsWith("part-")) { continue; }
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, part.getPath(), conf);
+
+			while (reader.next(seed, count))
+			{
+				masked.add(new long [] { seed.get(), count.get() });
+			}
+
+			reader.close();
+		}
+
+		Collections.sort(masked, new Comparator<long []>()
+		{
+			public int compare(long [] a, long [] b) { return (a[0] < b[0]) ? -1 : ((a[0] == b[0]) ? 0 : 1); }
+		});
+
+		MaskedSeeds seeds = new MaskedSeeds();
+
+		for (long [] m : masked)
+		{
+			seeds.add(m[0], (int) m[1]);
+		}
+
+		Path maskedPath = new Path(oPath, "seeds.masked");
+		FSDataOutputStream out = fs.create(maskedPath);
+		seeds.write(out);
+		out.close();
+
+		System.err.println("CountSeeds Finished: " + seeds.size + " seeds occur more than " + MAX_SEED_OCCURRENCES + " times");
+		return maskedPath;
+	}
+
+
+	//------------------------- load --------------------------
+	// Read the masked seeds named by MASKED_SEEDS
+
+	public static MaskedSeeds load(JobConf conf) throws IOException
+	{
+		MaskedSeeds seeds = new MaskedSeeds();
+
+		DataInputStream in = MerReduce.openCacheFile(conf, conf.get("MASKED_SEEDS"));
+		seeds.readFields(in);
+		in.close();
+
+		return seeds;
+	}
+}
@@ -148,10 +148,18 @@ public class DNAString {
 	//------------------------- dnaArrLen --------------------------
 	public static int dnaArrLen(byte [] arr)
 	{
-		int retval = arr.length * 2;
-		if (arr.length > 0)
+		return dnaArrLen(arr, 0, arr.length);
+	}
+	
+	
+	//------------------------- dnaArrLen --------------------------
+	// number of bases in the len bytes of a DNAString starting at off
+	public static int dnaArrLen(byte [] arr, int off, int len)
+	{
+		int retval = len * 2;
+		if (len > 0)
 		{
-			if ((arr[arr.length-1] & 0x0F) == space)
+			if ((arr[off+len-1] & 0x0F) == space)
 			{
 				retval--;
 			}
@@ -159,6 +167,22 @@ public class DNAString {
 		
 		return retval;
 	}
+	
+	
+	//------------------------- dnaAt --------------------------
+	// read the 4-bit code of base pos directly out of a packed DNAString
+	public static int dnaAt(byte [] dna, int pos)
+	{
+		return (dna[pos >> 1] >> ((~pos & 1) << 2)) & 0x0F;
+	}
+	
+	
+	//------------------------- dnaAt --------------------------
+	// same, for a DNAString that starts at byte off
+	public static int dnaAt(byte [] dna, int off, int pos)
+	{
+		return (dna[off + (pos >> 1)] >> ((~pos & 1) << 2)) & 0x0F;
+	}
 
 	//------------------------- byteToDNA --------------------------
 	public static byte byteToDNA(byte letter)
@@ -251,6 +275,69 @@ public class DNAString {
 		return seedlen;
 	}
 	
+	//------------------------- arrToSeedBits --------------------------
+	// The bases of a seed at 2 bits each, first base in the highest bits, like arrToSeed
+	public static long arrToSeedBits(byte[] arr, int arrpos, int len)
+	{
+		long bits = 0;
+		
+		for (int i = arrpos; i < arrpos + len; i++)
+		{
+			bits = (bits << 2) | byteToSeed(arr[i]);
+		}
+		
+		return bits;
+	}
+	
+	//------------------------- arrToSeedBits --------------------------
+	// Like arrToSeedBits for the bases under the care positions of a spaced seed pattern
+	public static long arrToSeedBits(byte[] arr, int arrpos, SpacedSeeds pattern)
+	{
+		long bits = 0;
+		
+		for (int i = 0; i < pattern.span; i++)
+		{
+			if ((pattern.care & (1L << i)) != 0)
+			{
+				bits = (bits << 2) | byteToSeed(arr[arrpos + i]);
+			}
+		}
+		
+		return bits;
+	}
+	
+	//------------------------- arrToSeed --------------------------
+	// arrToSeed for a spaced seed at arrpos, the care positions are packed together
+	public static int arrToSeed(byte[] arr, int arrpos, SpacedSeeds pattern, byte [] seed, int seedpos, int id, int REDUNDANCY, int ISQRY)
+	{
+		return seedBitsToSeed(arrToSeedBits(arr, arrpos, pattern), pattern.weight, seed, seedpos, id, REDUNDANCY, ISQRY);
+	}
+	
+	//------------------------- seedBitsToSeed --------------------------
+	// arrToSeed for a seed of len <= 32 bases already packed by arrToSeedBits
+	public static int seedBitsToSeed(long bits, int len, byte [] seed, int seedpos, int id, int REDUNDANCY, int ISQRY)
+	{
+		int seedlen = (len+3)/4+1;
+		
+		// the first base goes to the high bits of the first byte, and the last byte is padded with A's
+		for (int shift = 2*len - 8; shift > -8; shift -= 8)
+		{
+			seed[seedpos] = (byte) ((shift >= 0) ? (bits >>> shift) : (bits << -shift));
+			seedpos++;
+		}
+		
+		if (REDUNDANCY > 1)
+		{
+			seed[seedpos] = (byte) ((id % REDUNDANCY) & 0xff);
+			seedpos++;
+			seedlen++;
+		}
+		
+		seed[seedpos] = (byte) ISQRY;
+		
+		return seedlen;
+	}
+	
 	public static boolean repseed(byte [] seq, int start, int SEED_LEN)
 	{
 		byte first = seq[start];
@@ -375,7 +462,58 @@ public class DNAString {
 	{
 		return arrToDNA(arr, 0, arr.length);
 	}
-	
+
+	//------------------------- arrToPackedLen --------------------------
+	// bytes of len bases at 2 bits / bp
+	public static int arrToPackedLen(int len)
+	{
+		return (len+3) >> 2;
+	}
+
+	//------------------------- arrToPacked --------------------------
+	// 2 bits / bp with base i in bits [2(i%4), 2(i%4)+1] of byte i/4, the same lanes as
+	// PackedDNA. N's are packed as 'A', so the caller has to list them separately.
+	public static int arrToPacked(byte[] arr, int arrpos, int len, byte [] out, int outpos)
+	{
+		int packedlen = arrToPackedLen(len);
+		Arrays.fill(out, outpos, outpos + packedlen, (byte) 0);
+
+		for (int i = 0; i < len; i++)
+		{
+			out[outpos + (i >> 2)] |= byteToSeed(arr[arrpos + i]) << ((i & 3) << 1);
+		}
+
+		return packedlen;
+	}
+
+	//------------------------- arrToPackedRev --------------------------
+	// same, for the letters of arr[arrstart, arrstart+len) in reverse order
+	public static int arrToPackedRev(byte[] arr, int arrstart, int len, byte [] out, int outpos)
+	{
+		int packedlen = arrToPackedLen(len);
+		Arrays.fill(out, outpos, outpos + packedlen, (byte) 0);
+
+		for (int i = 0, arrpos = arrstart + len - 1; i < len; i++, arrpos--)
+		{
+			out[outpos + (i >> 2)] |= byteToSeed(arr[arrpos]) << ((i & 3) << 1);
+		}
+
+		return packedlen;
+	}
+
+	//------------------------- packedAt --------------------------
+	// the 2-bit code of base pos of a packed sequence that starts at byte off
+	public static int packedAt(byte [] packed, int off, int pos)
+	{
+		return (packed[off + (pos >> 2)] >> ((pos & 3) << 1)) & 0x03;
+	}
+
+	//------------------------- isN --------------------------
+	public static boolean isN(byte letter)
+	{
+		return letterToDNA[letter & 0xFF] == dna_n;
+	}
+
 	//------------------------- dnaToArr --------------------------
 	public static byte[] dnaToArr(byte [] dna, int dnapos, int dnalen)
 	{
@@ -639,8 +777,8 @@ public class DNAString {
 		MerReduce.PartitionMers par = new MerReduce.PartitionMers();
 		
 		int numPartitions = 11;
-		int refpart = par.getPartition(rbw, rbw, numPartitions);
-		int qrypart = par.getPartition(qbw, qbw, numPartitions);
+		int refpart = par.getPartition(rbw, null, numPartitions);
+		int qrypart = par.getPartition(qbw, null, numPartitions);
 		
 		System.err.println("refpart: " + refpart + " qrypart: " + qrypart);
 		
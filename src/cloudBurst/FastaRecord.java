@@ -3,12 +3,28 @@ package cloudBurst;
 import org.apache.hadoop.io.BytesWritable;
 import java.io.IOException;
 
+// A chunk of a sequence in a .br file. The first byte has the lastChunk flag, and
+// PACKED if the bases are at 2 bits / bp (DNAString.arrToPacked) instead of 4, with
+// the N runs listed ahead of them:
+//
+//   flags, offset, number of bases, number of N runs, per run start and end, bases
+//
+// with every field after the flags a 4 byte int. Either kind of chunk is read back
+// as letters, so the mappers don't care which one a file has, or as a PackedChunk
+// for the mappers of the reference, which never need the letters.
+
 public class FastaRecord 
 {	
+	public static final byte LAST_CHUNK = 0x01;
+	public static final byte PACKED     = 0x02;
+	
 	public byte[]   m_sequence = null;
 	public boolean  m_lastChunk = false;
 	public int      m_offset = 0;
 	
+	// write the chunk at 2 bits / bp
+	public boolean  m_packed = false;
+	
 	private static final StringBuilder builder = new StringBuilder();
 	
 	FastaRecord()
@@ -34,6 +50,11 @@ public class FastaRecord
 	
 	public BytesWritable toBytes()
 	{
+		if (m_packed)
+		{
+			return toPackedBytes();
+		}
+		
 		byte [] dna = DNAString.arrToDNA(m_sequence);
 		
 		int len = 1 + // lastChunk
@@ -42,17 +63,55 @@ public class FastaRecord
 		
 		byte [] buf = new byte[len];
 		
-		buf[0] = (byte) (m_lastChunk ? 1 : 0);
-		
-		buf[1] = (byte) ((m_offset & 0xFF000000) >> 24);
-		buf[2] = (byte) ((m_offset & 0x00FF0000) >> 16);
-		buf[3] = (byte) ((m_offset & 0x0000FF00) >> 8);
-		buf[4] = (byte) ((m_offset & 0x000000FF));
+		buf[0] = (byte) (m_lastChunk ? LAST_CHUNK : 0);
+		putInt(buf, 1, m_offset);
 		
 		System.arraycopy(dna, 0, buf, 5, dna.length);
 		
 		return new BytesWritable(buf);
 	}
+	
+	
+	private BytesWritable toPackedBytes()
+	{
+		int seqlen  = m_sequence.length;
+		int numruns = 0;
+		
+		for (int i = 0; i < seqlen; i++)
+		{
+			if (DNAString.isN(m_sequence[i]) && ((i == 0) || !DNAString.isN(m_sequence[i-1])))
+			{
+				numruns++;
+			}
+		}
+		
+		int basestart = 1 + 4 + 4 + 4 + 8 * numruns;
+		byte [] buf = new byte[basestart + DNAString.arrToPackedLen(seqlen)];
+		
+		buf[0] = (byte) ((m_lastChunk ? LAST_CHUNK : 0) | PACKED);
+		putInt(buf, 1, m_offset);
+		putInt(buf, 5, seqlen);
+		putInt(buf, 9, numruns);
+		
+		for (int i = 0, pos = 13; i < seqlen; i++)
+		{
+			if (DNAString.isN(m_sequence[i]))
+			{
+				int end = i;
+				while ((end < seqlen) && DNAString.isN(m_sequence[end])) { end++; }
+				
+				putInt(buf, pos, i);
+				putInt(buf, pos + 4, end);
+				pos += 8;
+				
+				i = end;
+			}
+		}
+		
+		DNAString.arrToPacked(m_sequence, 0, seqlen, buf, basestart);
+		
+		return new BytesWritable(buf);
+	}
 
 	
 	public void fromBytes(BytesWritable t)
@@ -60,15 +119,83 @@ public class FastaRecord
 		byte [] raw = t.get();
 		int rawlen = t.getSize();
 		
-		m_lastChunk   = raw[0] == 1;
+		readHeader(raw);
 		
-		m_offset =   (raw[1] & 0xFF) << 24 
-		           | (raw[2] & 0xFF) << 16
-		           | (raw[3] & 0xFF) << 8
-		           | (raw[4] & 0xFF);
+		if (!m_packed)
+		{
+			int sl = rawlen - 5;
+			m_sequence = DNAString.dnaToArr(raw, 5, sl);
+			return;
+		}
+		
+		int seqlen  = getInt(raw, 5);
+		int numruns = getInt(raw, 9);
+		int basestart = 13 + 8 * numruns;
+		
+		m_sequence = new byte[seqlen];
+		
+		for (int i = 0; i < seqlen; i++)
+		{
+			m_sequence[i] = DNAString.seedToByte(DNAString.packedAt(raw, basestart, i));
+		}
 		
-		int sl = rawlen - 5;
-		m_sequence = DNAString.dnaToArr(raw, 5, sl);
+		for (int r = 0, pos = 13; r < numruns; r++, pos += 8)
+		{
+			java.util.Arrays.fill(m_sequence, getInt(raw, pos), getInt(raw, pos + 4), (byte) 'N');
+		}
+	}
+	
+	
+	// Read the header, and the bases into chunk instead of m_sequence. A PACKED chunk
+	// stays in the buffer of t, so chunk is only valid until t is reused.
+	
+	public void fromBytes(BytesWritable t, PackedChunk chunk)
+	{
+		byte [] raw = t.get();
+		int rawlen = t.getSize();
+		
+		readHeader(raw);
+		m_sequence = null;
+		
+		if (!m_packed)
+		{
+			chunk.setDNA(raw, 5, rawlen - 5);
+			return;
+		}
+		
+		int numruns = getInt(raw, 9);
+		chunk.set(raw, 13 + 8 * numruns, getInt(raw, 5));
+		
+		for (int r = 0, pos = 13; r < numruns; r++, pos += 8)
+		{
+			chunk.addRun(getInt(raw, pos), getInt(raw, pos + 4));
+		}
+	}
+	
+	
+	private void readHeader(byte [] raw)
+	{
+		m_lastChunk = (raw[0] & LAST_CHUNK) != 0;
+		m_packed    = (raw[0] & PACKED) != 0;
+		m_offset    = getInt(raw, 1);
+	}
+	
+	
+	private static void putInt(byte [] buf, int pos, int v)
+	{
+		buf[pos]   = (byte) ((v & 0xFF000000) >> 24);
+		buf[pos+1] = (byte) ((v & 0x00FF0000) >> 16);
+		buf[pos+2] = (byte) ((v & 0x0000FF00) >> 8);
+		buf[pos+3] = (byte) ((v & 0x000000FF));
+	}
+	
+	
+	private static int getInt(byte [] buf, int pos)
+	{
+		return   (buf[pos]   & 0xFF) << 24 
+		       | (buf[pos+1] & 0xFF) << 16
+		       | (buf[pos+2] & 0xFF) << 8
+		       | (buf[pos+3] & 0xFF);
 	}
 	
 	public static void main(String[] args) throws IOException 
@@ -80,17 +207,25 @@ public class FastaRecord
 		{
 			FastaRecord record = new FastaRecord();
 			
-			record.m_lastChunk = false;
+			record.m_lastChunk = (i & 2) != 0;
 			record.m_offset = 123456;
-			record.m_sequence = DNAString.stringToBytes("ACGTACGTA");
+			record.m_sequence = DNAString.stringToBytes((i & 4) != 0 ? "ACGTACGTA" : "NNACGTNACGTANN");
+			record.m_packed = (i & 1) != 0;
 			
 			BytesWritable bw = record.toBytes();
 			
 			FastaRecord record2 = new FastaRecord(bw);
 			
+			FastaRecord record3 = new FastaRecord();
+			PackedChunk chunk = new PackedChunk();
+			record3.fromBytes(bw, chunk);
+			
 			if (record.m_lastChunk   != record2.m_lastChunk ||
 			    record.m_offset      != record2.m_offset ||
-			    DNAString.bytesToString(record.m_sequence).compareTo(DNAString.bytesToString(record2.m_sequence)) != 0)
+			    record.m_lastChunk   != record3.m_lastChunk ||
+			    record.m_offset      != record3.m_offset ||
+			    DNAString.bytesToString(record.m_sequence).compareTo(DNAString.bytesToString(record2.m_sequence)) != 0 ||
+			    DNAString.bytesToString(record.m_sequence).compareTo(chunk.toString()) != 0)
 			{
 				throw new IOException("Mismatch\norg: " + record.toString() + "\nnew: " + record2.toString());
 			}			
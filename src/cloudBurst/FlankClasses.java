@@ -0,0 +1,186 @@
+package cloudBurst;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Partition the tuples of a seed group into classes with byte-identical flanks.
+// Every tuple of a class extends the same way, so each distinct (qry, ref) pair of
+// classes only has to be aligned once and the result is fanned out to the members.
+// Classes are numbered in order of their first member, and the members of class c
+// are members[start[c]] .. members[start[c+1]-1] in increasing order.
+
+public class FlankClasses
+{
+	public static enum Counter { PAIRS, DISTINCT_PAIRS };
+
+	// index of the first tuple of each class
+	public int [] distinct = new int [0];
+	public int numDistinct = 0;
+	
+	public int [] start   = new int [1];
+	public int [] members = new int [0];
+
+	private HashMap<FlankKey, Integer> classes = new HashMap<FlankKey, Integer>();
+	private int [] classOf = new int [0];
+
+
+	//------------------------- FlankKey --------------------------
+	// Hash key for the left and right flanks of a tuple
+
+	private static class FlankKey
+	{
+		private final TupleStore store;
+		private final int tuple;
+		private final int hash;
+
+		FlankKey(TupleStore s, int i)
+		{
+			store = s;
+			tuple = i;
+			hash  = (hashBytes(s.flanks, s.flankStart[i], s.packedLen(i)) * 31 + s.leftLen[i]) * 31 + s.runEnd[i] - s.runStart[i];
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		// N's are packed as 'A', so the flanks are only the same if their N runs are too.
+		// A flipped tuple extends the other way in reference coordinates, so it is never
+		// in the same class as one that isn't.
+		public boolean equals(Object o)
+		{
+			FlankKey other = (FlankKey) o;
+			TupleStore a = store;
+			TupleStore b = other.store;
+			int i = tuple;
+			int j = other.tuple;
+
+			return (a.leftLen[i] == b.leftLen[j]) && 
+			       (a.rightLen[i] == b.rightLen[j]) &&
+			       (a.isFlipped(i) == b.isFlipped(j)) &&
+			       (a.runRight[i] - a.runStart[i] == b.runRight[j] - b.runStart[j]) &&
+			       sameBytes(a.flanks, a.flankStart[i], a.packedLen(i), 
+			                 b.flanks, b.flankStart[j], b.packedLen(j)) &&
+			       sameInts(a.runs, 2*a.runStart[i], 2*(a.runEnd[i] - a.runStart[i]),
+			                b.runs, 2*b.runStart[j], 2*(b.runEnd[j] - b.runStart[j]));
+		}
+	}
+
+
+	//------------------------- hashBytes --------------------------
+	private static int hashBytes(byte [] b, int off, int len)
+	{
+		int h = 1;
+
+		for (int i = off; i < off + len; i++)
+		{
+			h = 31 * h + b[i];
+		}
+
+		return h;
+	}
+
+
+	//------------------------- sameBytes --------------------------
+	private static boolean sameBytes(byte [] a, int aoff, int alen, byte [] b, int boff, int blen)
+	{
+		if (alen != blen) { return false; }
+
+		for (int i = 0; i < alen; i++)
+		{
+			if (a[aoff + i] != b[boff + i]) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- sameInts --------------------------
+	private static boolean sameInts(int [] a, int aoff, int alen, int [] b, int boff, int blen)
+	{
+		if (alen != blen) { return false; }
+
+		for (int i = 0; i < alen; i++)
+		{
+			if (a[aoff + i] != b[boff + i]) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- build --------------------------
+	// Group the records into classes
+
+	public void build(TupleStore tuples)
+	{
+		int n = tuples.size;
+
+		numDistinct = 0;
+		classes.clear();
+
+		if (classOf.length < n)
+		{
+			classOf  = new int [n * 2];
+			members  = new int [n * 2];
+			distinct = new int [n * 2];
+		}
+
+		for (int i = 0; i < n; i++)
+		{
+			FlankKey key = new FlankKey(tuples, i);
+
+			Integer c = classes.get(key);
+
+			if (c == null)
+			{
+				c = numDistinct;
+				classes.put(key, c);
+				distinct[numDistinct++] = i;
+			}
+
+			classOf[i] = c;
+		}
+
+		int numclasses = numDistinct;
+
+		if (start.length < numclasses + 1)
+		{
+			start = new int [(numclasses + 1) * 2];
+		}
+
+		// counting sort of the record indices by class
+		Arrays.fill(start, 0, numclasses + 1, 0);
+
+		for (int i = 0; i < n; i++)
+		{
+			start[classOf[i] + 1]++;
+		}
+
+		for (int c = 0; c < numclasses; c++)
+		{
+			start[c + 1] += start[c];
+		}
+
+		for (int i = 0; i < n; i++)
+		{
+			members[start[classOf[i]]++] = i;
+		}
+
+		// filling advanced each start to the next class, shift them back
+		for (int c = numclasses; c > 0; c--)
+		{
+			start[c] = start[c - 1];
+		}
+
+		start[0] = 0;
+	}
+
+
+	//------------------------- size --------------------------
+	public int size(int c)
+	{
+		return start[c + 1] - start[c];
+	}
+}
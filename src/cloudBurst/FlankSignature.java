@@ -0,0 +1,123 @@
+package cloudBurst;
+
+// Precomputed summary of one flank for the candidate filters: its base composition,
+// how often each q-gram occurs, and where each q-gram first occurs. The first
+// occurrences let a reference flank answer "is this q-gram in your first w bases"
+// for any window w without rescanning the flank.
+
+public class FlankSignature
+{
+	public static final int Q         = 3;
+	public static final int NUM_GRAMS = 1 << (2*Q);
+	public static final int ABSENT    = Integer.MAX_VALUE;
+
+	public PackedDNA seq;
+	public int  len = 0;
+
+	// number of a, c, g, t, n in the flank
+	public int [] composition = new int [5];
+
+	// q-grams with an n are skipped
+	public long  gramMask  = 0;
+	public int [] gramCount = new int [NUM_GRAMS];
+	public int [] firstPos  = new int [NUM_GRAMS];
+
+
+	//------------------------- set --------------------------
+	// Summarize a packed flank
+
+	public void set(PackedDNA packed)
+	{
+		seq = packed;
+		len = packed.len;
+
+		java.util.Arrays.fill(composition, 0);
+		java.util.Arrays.fill(gramCount, 0);
+		java.util.Arrays.fill(firstPos, ABSENT);
+		gramMask = 0;
+
+		int gram = 0;
+		int run  = 0; // number of bases since the last n
+
+		for (int i = 0; i < len; i++)
+		{
+			int lane = (i & 31) << 1;
+
+			if (((packed.nmask[i >> 5] >>> lane) & 1) != 0)
+			{
+				composition[4]++;
+				run = 0;
+				continue;
+			}
+
+			int code = (int) (packed.bits[i >> 5] >>> lane) & 3;
+			composition[code]++;
+
+			gram = ((gram << 2) | code) & (NUM_GRAMS - 1);
+			run++;
+
+			if (run >= Q)
+			{
+				gramCount[gram]++;
+				gramMask |= 1L << gram;
+
+				if (firstPos[gram] == ABSENT)
+				{
+					firstPos[gram] = i - Q + 1;
+				}
+			}
+		}
+	}
+
+
+	//------------------------- window --------------------------
+	// Number of text bases that a query flank with at most k differences can reach, 
+	// or -1 if the text is shorter than that. The aligners stop without penalty when 
+	// they run off the end of the text, so no bound is possible then.
+
+	public static int window(FlankSignature qry, FlankSignature ref, int k)
+	{
+		int w = qry.len + k;
+		return (w <= ref.len) ? w : -1;
+	}
+
+
+	//------------------------- windowCount --------------------------
+	// Number of times code (0-3 for a, c, g, t or 4 for n) occurs in the first w bases,
+	// counted 32 bases at a time on the packed flank
+
+	public int windowCount(int code, int w)
+	{
+		long [] bits  = seq.bits;
+		long [] nmask = seq.nmask;
+
+		long pattern = code * PackedDNA.LANE_MASK;
+		int words = (w + 31) >> 5;
+		int count = 0;
+
+		for (int i = 0; i < words; i++)
+		{
+			long x;
+
+			if (code == 4)
+			{
+				x = nmask[i];
+			}
+			else
+			{
+				x = bits[i] ^ pattern;
+				x = ~(x | (x >>> 1)) & PackedDNA.LANE_MASK & ~nmask[i];
+			}
+
+			int remaining = w - (i << 5);
+			if (remaining < 32)
+			{
+				x &= (1L << (remaining << 1)) - 1;
+			}
+
+			count += Long.bitCount(x);
+		}
+
+		return count;
+	}
+}
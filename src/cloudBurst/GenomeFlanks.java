@@ -0,0 +1,78 @@
+package cloudBurst;
+
+// Rebuilds full reference tuples from a PackedSequenceStore, for reference seeds that
+// only travel as a position: the window of up to FLANK_LEN bases on either side of the
+// seed is decoded into letters and serialized like MapClass would have.
+
+public class GenomeFlanks
+{
+	private PackedSequenceStore genome;
+	private int SEED_LEN;
+	private int FLANK_LEN;
+
+	private MerRecord refInfo = new MerRecord();
+	private MerRecordWritable tuple = new MerRecordWritable();
+
+	// the decoded window around the last seed loaded, and where the seed starts in it
+	public byte [] window;
+	public int windowLen;
+	public int seedStart;
+
+
+	//------------------------- Constructor --------------------------
+	public GenomeFlanks(PackedSequenceStore genome, int SEED_LEN, int FLANK_LEN)
+	{
+		this.genome    = genome;
+		this.SEED_LEN  = SEED_LEN;
+		this.FLANK_LEN = FLANK_LEN;
+
+		window = new byte[SEED_LEN + 2*FLANK_LEN];
+
+		refInfo.isReference = true;
+		refInfo.isRC        = false;
+	}
+
+
+	//------------------------- load --------------------------
+	// Decode the window around the seed at offset of reference sequence id
+
+	public void load(int id, int offset)
+	{
+		int s = genome.indexOf(id);
+
+		if (s == -1)
+		{
+			throw new IllegalArgumentException("Reference sequence " + id + " isn't in the packed genome");
+		}
+
+		int wstart = Math.max(0, offset - FLANK_LEN);
+		int wend   = Math.min(genome.length(s), offset + SEED_LEN + FLANK_LEN);
+
+		windowLen = wend - wstart;
+		seedStart = offset - wstart;
+
+		genome.decode(s, wstart, windowLen, window, 0);
+
+		refInfo.id     = id;
+		refInfo.offset = offset;
+	}
+
+
+	//------------------------- toBytes --------------------------
+	// The reference tuple of the loaded seed, reused by the next call
+
+	public MerRecordWritable toBytes()
+	{
+		tuple.set(refInfo, window, 0, seedStart, seedStart + SEED_LEN, windowLen - seedStart - SEED_LEN);
+		return tuple;
+	}
+
+
+	//------------------------- position --------------------------
+	// The SeedIndex position of a position-only reference tuple
+
+	public static long position(MerRecordWritable tuple)
+	{
+		return SeedIndex.position(tuple.id, tuple.offset);
+	}
+}
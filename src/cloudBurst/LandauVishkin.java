@@ -14,32 +14,19 @@ import java.io.IOException;
 
 public final class LandauVishkin {
 
-	private static AlignInfo noAlignment   = new AlignInfo(0,  0, null, null, 0);
-	private static AlignInfo badAlignment  = new AlignInfo(-1,-1, null, null, 0);
-	private static AlignInfo goodAlignment = new AlignInfo(0, 0, null, null, 0);
+	private static final AlignInfo noAlignment  = new AlignInfo(0,  0, null, null, 0);
+	private static final AlignInfo badAlignment = new AlignInfo(-1,-1, null, null, 0);
 	
-	private static int [][] L = null;
-	private static int [][] B = null;
-	private static int [] dist = null;
-	private static int [] what = null;	
+	// text code of an N in kdifference_bv_2bit, never set in the match masks
+	private static final byte BV_NO_MATCH = 4;
 	
-	
-	//------------------------- configure --------------------------
-	// initialize runtime buffers
-	
-	public static void configure(int k)
-	{
-		L    = new int [k*2+1][k+1];
-		B    = new int [k*2+1][k+1];
-		dist = new int [k+1];
-		what = new int [k+1];
-	}
+	// All of the runtime buffers live in the AlignerContext, so each thread aligns with its own
 	
 	
 	//------------------------- kmismatch --------------------------
 	// count mismatches between ascii strings
 	
-	public static AlignInfo kmismatch(byte [] text, byte [] pattern, int k)
+	public static AlignInfo kmismatch(AlignerContext ctx, byte [] text, byte [] pattern, int k)
 	{		
 		int m = pattern.length;
 		int n = text.length;
@@ -57,8 +44,8 @@ public final class LandauVishkin {
 		{
 			if (text[pos] != pattern[pos])
 			{
-				what[mm] = 0;
-				dist[mm] = match;
+				ctx.what[mm] = 0;
+				ctx.dist[mm] = match;
 				match = 0;
 				
 				mm++;
@@ -72,21 +59,31 @@ public final class LandauVishkin {
 			match++;
 		}
 		
-		dist[mm] = match;
-		what[mm] = 2;
+		ctx.dist[mm] = match;
+		ctx.what[mm] = 2;
 				
-		goodAlignment.setVals(last, mm, dist, what, mm+1);	// say how far we reached in the text (reference)
-		return goodAlignment;
+		ctx.goodAlignment.setVals(last, mm, ctx.dist, ctx.what, mm+1);	// say how far we reached in the text (reference)
+		return ctx.goodAlignment;
 	}
 
 	
 	//------------------------- kmismatch_bin --------------------------
 	// count mismatches between 2 bases / byte binary strings
 	
-	public static AlignInfo kmismatch_bin(byte [] text, byte [] pattern, int k)
+	public static AlignInfo kmismatch_bin(AlignerContext ctx, byte [] text, byte [] pattern, int k)
 	{
-		int m = pattern.length;
-		int n = text.length;
+		return kmismatch_bin(ctx, text, 0, text.length, pattern, 0, pattern.length, k);
+	}
+	
+	
+	//------------------------- kmismatch_bin --------------------------
+	// same, for the tlen bytes of text at toff and the plen bytes of pattern at poff
+	
+	public static AlignInfo kmismatch_bin(AlignerContext ctx, byte [] text, int toff, int tlen, 
+			                              byte [] pattern, int poff, int plen, int k)
+	{
+		int m = plen;
+		int n = tlen;
 		
 		if (m == 0)
 		{
@@ -108,15 +105,15 @@ public final class LandauVishkin {
 		int pos = 0;
 		for (; pos < last; pos++)
 		{
-			if (text[pos] == pattern[pos])
+			if (text[toff+pos] == pattern[poff+pos])
 			{
 				match += 2;
 			}
 			else
 			{
-				if ((text[pos] & 0xF0) != (pattern[pos] & 0xF0))
+				if ((text[toff+pos] & 0xF0) != (pattern[poff+pos] & 0xF0))
 				{
-					dist[mm] = match;
+					ctx.dist[mm] = match;
 					match = 0;
 					mm++;
 					
@@ -128,9 +125,9 @@ public final class LandauVishkin {
 				
 				match++;
 				
-				if ((text[pos] & 0x0F) != (pattern[pos] & 0x0F))
+				if ((text[toff+pos] & 0x0F) != (pattern[poff+pos] & 0x0F))
 				{
-					dist[mm] = match;
+					ctx.dist[mm] = match;
 					match = 0;
 					mm++;
 					
@@ -147,19 +144,19 @@ public final class LandauVishkin {
 		int alignlen = last*2+1;
 
 		// explicitly check the last 2 characters since last 1 may be a space
-		if (((text[pos] & 0x0F) != DNAString.space) && ((pattern[pos] & 0x0F) != DNAString.space))
+		if (((text[toff+pos] & 0x0F) != DNAString.space) && ((pattern[poff+pos] & 0x0F) != DNAString.space))
 		{
 			alignlen++;
 			
-			if (text[pos] == pattern[pos])
+			if (text[toff+pos] == pattern[poff+pos])
 			{
 				match += 2;
 			}
 			else
 			{
-				if ((text[pos] & 0xF0) != (pattern[pos] & 0xF0))
+				if ((text[toff+pos] & 0xF0) != (pattern[poff+pos] & 0xF0))
 				{
-					dist[mm] = match;
+					ctx.dist[mm] = match;
 					match = 0;
 					mm++;
 
@@ -171,9 +168,9 @@ public final class LandauVishkin {
 
 				match++;
 
-				if ((text[pos] & 0x0F) != (pattern[pos] & 0x0F))
+				if ((text[toff+pos] & 0x0F) != (pattern[poff+pos] & 0x0F))
 				{
-					dist[mm] = match;
+					ctx.dist[mm] = match;
 					match = 0;
 					mm++;
 
@@ -188,9 +185,9 @@ public final class LandauVishkin {
 		}
 		else
 		{
-			if ((text[pos] & 0xF0) != (pattern[pos] & 0xF0))
+			if ((text[toff+pos] & 0xF0) != (pattern[poff+pos] & 0xF0))
 			{
-				dist[mm] = match;
+				ctx.dist[mm] = match;
 				match = 0;
 				mm++;
 
@@ -206,21 +203,174 @@ public final class LandauVishkin {
 		
 		// only fill in 'what' if there are <= k mismatches
 		for (int i = 0; i < mm; i++)
-			what[i] = 0;
+			ctx.what[i] = 0;
 		
-		dist[mm] = match;
-		what[mm] = 2;
+		ctx.dist[mm] = match;
+		ctx.what[mm] = 2;
 				
-		goodAlignment.setVals(alignlen, mm, dist, what, mm+1);	// say how far we reached in the text (reference)
-		return goodAlignment;
+		ctx.goodAlignment.setVals(alignlen, mm, ctx.dist, ctx.what, mm+1);	// say how far we reached in the text (reference)
+		return ctx.goodAlignment;
+	}
+
+
+	//------------------------- kmismatch_packed --------------------------
+	// count mismatches between 2 bit / base packed strings, 32 bases at a time
+	// same semantics as kmismatch_bin, except that an N is a mismatch even against
+	// another N: a trailing space in either string is not compared
+
+	public static AlignInfo kmismatch_packed(AlignerContext ctx, PackedDNA text, PackedDNA pattern, int k)
+	{
+		int m = pattern.len;
+
+		if (m == 0)
+		{
+			return noAlignment;
+		}
+
+		// require the entire query to align
+		if (text.byteLen() < pattern.byteLen())
+		{
+			return badAlignment;
+		}
+
+		int last  = (m < text.len) ? m : text.len;
+		int words = (last + 31) >> 5;
+
+		long [] tb = text.bits;
+		long [] pb = pattern.bits;
+		long [] tn = text.nmask;
+		long [] pn = pattern.nmask;
+
+		int mm = 0;
+		int prev = 0;
+
+		for (int w = 0; w < words; w++)
+		{
+			// fold each 2-bit lane of the xor down to its low bit
+			long x = tb[w] ^ pb[w];
+			x = ((x | (x >>> 1)) & PackedDNA.LANE_MASK) | tn[w] | pn[w];
+
+			int remaining = last - (w << 5);
+			if (remaining < 32)
+			{
+				x &= (1L << (remaining << 1)) - 1;
+			}
+
+			if (x == 0) { continue; }
+
+			if (mm + Long.bitCount(x) > k)
+			{
+				return badAlignment;
+			}
+
+			int base = w << 5;
+
+			do
+			{
+				int pos = base + (Long.numberOfTrailingZeros(x) >> 1);
+
+				ctx.dist[mm] = pos - prev;
+				ctx.what[mm] = 0;
+				prev = pos;
+				mm++;
+
+				x &= x - 1;
+			}
+			while (x != 0);
+		}
+
+		ctx.dist[mm] = last - prev;
+		ctx.what[mm] = 2;
+
+		ctx.goodAlignment.setVals(last, mm, ctx.dist, ctx.what, mm+1);	// say how far we reached in the text (reference)
+		return ctx.goodAlignment;
 	}
 
+
+	//------------------------- kmismatchMany --------------------------
+	// Count the mismatches between one packed query and every flank of a packed block,
+	// with the same semantics as kmismatch_packed. results[r] is the number of mismatches 
+	// with flank r, or -1 if it is more than k or the flank is too short. The block is 
+	// walked a word at a time across all flanks, so the inner loop is branch free, and 
+	// stops early once every flank is past k. Flanks shorter than the query fall back 
+	// to the single pair kernel.
+	
+	public static void kmismatchMany(AlignerContext ctx, PackedDNA query, PackedBlock refBlock, int k, int [] results)
+	{
+		int size = refBlock.size;
+		int m = query.len;
+		
+		if (m == 0)
+		{
+			java.util.Arrays.fill(results, 0, size, 0);
+			return;
+		}
+		
+		// only flanks at least as long as the query are scanned, so they cover every query word
+		int words = (m + 31) >> 5;
+		if (words > refBlock.words) { words = refBlock.words; }
+		
+		// flanks shorter than the query start past k so the scan ignores them
+		for (int r = 0; r < size; r++)
+		{
+			results[r] = (refBlock.seqs[r].len >= m) ? 0 : k+1;
+		}
+		
+		long [] bb = refBlock.bits;
+		long [] bn = refBlock.nmask;
+		
+		for (int w = 0, cell = 0; w < words; w++, cell += size)
+		{
+			long qb = query.bits[w];
+			long qn = query.nmask[w];
+			
+			int remaining = m - (w << 5);
+			long lanes = (remaining < 32) ? (1L << (remaining << 1)) - 1 : -1L;
+			
+			int over = 0;
+			
+			for (int r = 0; r < size; r++)
+			{
+				long x = bb[cell + r] ^ qb;
+				x = (((x | (x >>> 1)) & PackedDNA.LANE_MASK) | bn[cell + r] | qn) & lanes;
+				
+				results[r] += Long.bitCount(x);
+				over += (results[r] > k) ? 1 : 0;
+			}
+			
+			if (over == size) { break; }
+		}
+		
+		int qbytes = query.byteLen();
+		
+		for (int r = 0; r < size; r++)
+		{
+			PackedDNA ref = refBlock.seqs[r];
+			
+			if (ref.len < m)
+			{
+				if (ref.byteLen() < qbytes)
+				{
+					results[r] = -1; // require the entire query to align
+				}
+				else
+				{
+					// the trailing space of the flank ends the comparison early
+					results[r] = kmismatch_packed(ctx, ref, query, k).differences;
+				}
+			}
+			else if (results[r] > k)
+			{
+				results[r] = -1;
+			}
+		}
+	}
 	
 	
 	//------------------------- kdifference --------------------------
 	// Landau-Vishkin k-difference algorithm to align strings
 	
-	public static AlignInfo kdifference(byte [] text, byte [] pattern, int k)
+	public static AlignInfo kdifference(AlignerContext ctx, byte [] text, byte [] pattern, int k)
 	{	
 		int m = pattern.length;
 		int n = text.length;
@@ -241,20 +391,20 @@ public final class LandauVishkin {
 				{
 					if (java.lang.Math.abs(d) < e)
 					{
-						int up = L[k+d][e-1] + 1;
-						if (up > row) { row = up; B[k+d][e] = 0; }
+						int up = ctx.L[k+d][e-1] + 1;
+						if (up > row) { row = up; ctx.B[k+d][e] = 0; }
 					}
 					
 					if (d > -(e-1))
 					{
-						int left = L[k+d-1][e-1];
-						if (left > row) { row = left; B[k+d][e] = -1; }
+						int left = ctx.L[k+d-1][e-1];
+						if (left > row) { row = left; ctx.B[k+d][e] = -1; }
 					}
 					
 					if (d < e-1)
 					{
-						int right = L[k+d+1][e-1]+1;
-						if (right > row) { row = right; B[k+d][e] = +1; }
+						int right = ctx.L[k+d+1][e-1]+1;
+						if (right > row) { row = right; ctx.B[k+d][e] = +1; }
 					}
 				}
 				else
@@ -267,7 +417,7 @@ public final class LandauVishkin {
 					row++;
 				}
 				
-				L[k+d][e] = row;
+				ctx.L[k+d][e] = row;
 				
 				//System.out.println("L: k:" + k + " d:" + d + " e:" + e + " = " + row);
 				
@@ -278,22 +428,22 @@ public final class LandauVishkin {
 					int E = e;
 					int D = d;
 					
-					what[E] = 2; // always end at end-of-string
+					ctx.what[E] = 2; // always end at end-of-string
 					
 					while (e >= 0)
 					{
-						int b = B[k+d][e];
-						if (e > 0) { what[e-1] = b; }
+						int b = ctx.B[k+d][e];
+						if (e > 0) { ctx.what[e-1] = b; }
 						
-						dist[e] = L[k+d][e];	
-						if (e < E) { dist[e+1] -= dist[e]; }
+						ctx.dist[e] = ctx.L[k+d][e];	
+						if (e < E) { ctx.dist[e+1] -= ctx.dist[e]; }
 						
 						d += b;
 						e--;	
 					}
 					
-					goodAlignment.setVals(row+D, E, dist, what, distlen);	// say how far we reached in the text (reference)			
-					return goodAlignment;				
+					ctx.goodAlignment.setVals(row+D, E, ctx.dist, ctx.what, distlen);	// say how far we reached in the text (reference)			
+					return ctx.goodAlignment;				
 				}
 			}
 		}
@@ -302,82 +452,621 @@ public final class LandauVishkin {
 	}
 	
 	
-	//------------------------- extend --------------------------
-	// align the strings either for either k-mismatch or k-difference
+	//------------------------- kdifference_bin --------------------------
+	// Landau-Vishkin k-difference algorithm on 2 bases / byte binary strings,
+	// reading the bases in place so nothing is decoded or allocated per pair
 	
-	public static AlignInfo extend(byte [] refbin, byte [] qrybin, int K, boolean ALLOW_DIFFERENCES) throws IOException
+	public static AlignInfo kdifference_bin(AlignerContext ctx, byte [] text, byte [] pattern, int k)
 	{
-		if (ALLOW_DIFFERENCES)
+		return kdifference_bin(ctx, text, 0, text.length, pattern, 0, pattern.length, k);
+	}
+	
+	
+	//------------------------- kdifference_bin --------------------------
+	// same, for the tlen bytes of text at toff and the plen bytes of pattern at poff
+	
+	public static AlignInfo kdifference_bin(AlignerContext ctx, byte [] text, int toff, int tlen, 
+			                                byte [] pattern, int poff, int plen, int k)
+	{	
+		int m = DNAString.dnaArrLen(pattern, poff, plen);
+		int n = DNAString.dnaArrLen(text, toff, tlen);
+		
+		if (m == 0 || n == 0)
 		{
-			byte [] ref = DNAString.dnaToArr(refbin);
-			byte [] qry = DNAString.dnaToArr(refbin);
-			
-			return kdifference(ref, qry, K);						
+			return noAlignment;
 		}
-		else
+			
+		// Compute the dynamic programming to see how the strings align
+		for (int e = 0; e <= k; e++)
 		{
-			return kmismatch_bin(refbin, qrybin, K);
+			for (int d = -e; d <= e; d++)
+			{
+				int row = -1;
+				
+				if (e > 0)
+				{
+					if ((d < e) && (d > -e))
+					{
+						int up = ctx.L[k+d][e-1] + 1;
+						if (up > row) { row = up; ctx.B[k+d][e] = 0; }
+					}
+					
+					if (d > -(e-1))
+					{
+						int left = ctx.L[k+d-1][e-1];
+						if (left > row) { row = left; ctx.B[k+d][e] = -1; }
+					}
+					
+					if (d < e-1)
+					{
+						int right = ctx.L[k+d+1][e-1]+1;
+						if (right > row) { row = right; ctx.B[k+d][e] = +1; }
+					}
+				}
+				else
+				{
+					row = 0;
+				}
+				
+				while ((row < m) && (row+d < n) && (DNAString.dnaAt(pattern, poff, row) == DNAString.dnaAt(text, toff, row+d)))
+				{
+					row++;
+				}
+				
+				ctx.L[k+d][e] = row;
+				
+				if ((row+d == n) || (row == m)) // reached the end of the pattern or text
+				{		
+					int distlen = e+1;
+					
+					int E = e;
+					int D = d;
+					
+					ctx.what[E] = 2; // always end at end-of-string
+					
+					while (e >= 0)
+					{
+						int b = ctx.B[k+d][e];
+						if (e > 0) { ctx.what[e-1] = b; }
+						
+						ctx.dist[e] = ctx.L[k+d][e];	
+						if (e < E) { ctx.dist[e+1] -= ctx.dist[e]; }
+						
+						d += b;
+						e--;	
+					}
+					
+					ctx.goodAlignment.setVals(row+D, E, ctx.dist, ctx.what, distlen);	// say how far we reached in the text (reference)			
+					return ctx.goodAlignment;				
+				}
+			}
 		}
+		
+		return badAlignment;
 	}
 	
 	
+	//------------------------- kdifference_2bit --------------------------
+	// Landau-Vishkin k-difference algorithm on PackedFlanks. The diagonals are slid
+	// on the 2-bit codes, where an N reads as 'A', and then cut back to the first N
+	// they passed, so an N always ends a run of matches.
+	
+	public static AlignInfo kdifference_2bit(AlignerContext ctx, PackedFlank text, PackedFlank pattern, int k)
+	{	
+		int m = pattern.len;
+		int n = text.len;
+		
+		if (m == 0 || n == 0)
+		{
+			return noAlignment;
+		}
+		
+		boolean pn = pattern.hasN();
+		boolean tn = text.hasN();
+			
+		// Compute the dynamic programming to see how the strings align
+		for (int e = 0; e <= k; e++)
+		{
+			for (int d = -e; d <= e; d++)
+			{
+				int row = -1;
+				
+				if (e > 0)
+				{
+					if ((d < e) && (d > -e))
+					{
+						int up = ctx.L[k+d][e-1] + 1;
+						if (up > row) { row = up; ctx.B[k+d][e] = 0; }
+					}
+					
+					if (d > -(e-1))
+					{
+						int left = ctx.L[k+d-1][e-1];
+						if (left > row) { row = left; ctx.B[k+d][e] = -1; }
+					}
+					
+					if (d < e-1)
+					{
+						int right = ctx.L[k+d+1][e-1]+1;
+						if (right > row) { row = right; ctx.B[k+d][e] = +1; }
+					}
+				}
+				else
+				{
+					row = 0;
+				}
+				
+				int from = row;
+				
+				while ((row < m) && (row+d < n) && (pattern.at(row) == text.at(row+d)))
+				{
+					row++;
+				}
+				
+				if (pn) { row = pattern.firstN(from, row); }
+				if (tn) { row = text.firstN(from+d, row+d) - d; }
+				
+				ctx.L[k+d][e] = row;
+				
+				if ((row+d == n) || (row == m)) // reached the end of the pattern or text
+				{		
+					int distlen = e+1;
+					
+					int E = e;
+					int D = d;
+					
+					ctx.what[E] = 2; // always end at end-of-string
+					
+					while (e >= 0)
+					{
+						int b = ctx.B[k+d][e];
+						if (e > 0) { ctx.what[e-1] = b; }
+						
+						ctx.dist[e] = ctx.L[k+d][e];	
+						if (e < E) { ctx.dist[e+1] -= ctx.dist[e]; }
+						
+						d += b;
+						e--;	
+					}
+					
+					ctx.goodAlignment.setVals(row+D, E, ctx.dist, ctx.what, distlen);	// say how far we reached in the text (reference)			
+					return ctx.goodAlignment;				
+				}
+			}
+		}
+		
+		return badAlignment;
+	}
+	
 	
+	//------------------------- kdifference_bv --------------------------
+	// Bit-vector k-difference alignment of 2 bases / byte binary strings. Myers' 
+	// algorithm (with Hyyro's anchored start) finds the fewest differences needed to 
+	// reach the end of the pattern or text, the same stopping rule as kdifference. Most candidate pairs fail, 
+	// and are rejected here without touching the diagonals. For the few that align,
+	// Landau-Vishkin is rerun capped at that many differences to build the traceback, 
+	// so the dist/what arrays are exactly what kdifference would report.
 	
+	public static AlignInfo kdifference_bv(AlignerContext ctx, byte [] text, byte [] pattern, int k)
+	{
+		return kdifference_bv(ctx, text, 0, text.length, pattern, 0, pattern.length, k);
+	}
 	
 	
-	/////////////////////////////////////////////////////////////////////
-	//                    Debugging and Test code                      //
-    /////////////////////////////////////////////////////////////////////
+	//------------------------- kdifference_bv --------------------------
+	// same, for the tlen bytes of text at toff and the plen bytes of pattern at poff
 	
-
-	//------------------------- debugAlignment --------------------------
-	// run an alignment and generate some debugging info
-
-	public static void debugAlignment(byte[] tp, byte[] pp, int k, int kmerlen) throws IOException
+	public static AlignInfo kdifference_bv(AlignerContext ctx, byte [] text, int toff, int tlen, 
+			                               byte [] pattern, int poff, int plen, int k)
 	{
-		System.out.println("====   DEBUG  ====");
-		System.out.print("t: "); for (int i = 0; i < tp.length; i++) { System.out.print((char)tp[i]); } System.out.println();
-		System.out.print("p: " ); for (int i = 0; i < pp.length; i++) { System.out.print((char)pp[i]); } System.out.println();
-		
-		//alignPrint(tp, pp, k);
+		int m = DNAString.dnaArrLen(pattern, poff, plen);
+		int n = DNAString.dnaArrLen(text, toff, tlen);
 		
-		AlignInfo a = kdifference(tp, pp, k);
+		if (m == 0 || n == 0)
+		{
+			return noAlignment;
+		}
 		
-		System.out.println("There is an alignment ending at: " + a.alignlen + " k: " + a.differences);
+		bvReset(ctx, m, n, k);
 		
-		for (int i = 0; i < a.distlen; i++)
+		for (int i = 0; i < m; i++)
 		{
-			System.out.println("dist: " + a.dist[i] + " what: " + a.what[i]);
+			bvMatch(ctx, m, i, DNAString.dnaAt(pattern, poff, i));
 		}
 		
-		a.printAlignment(tp, pp);
-				
-		AlignInfo mm = kmismatch(tp, pp, k);
+		for (int j = 0; j < ctx.tcodeLen; j++)
+		{
+			ctx.tcode[j] = (byte) DNAString.dnaAt(text, toff, j);
+		}
 		
-		System.out.println("There is an alignment ending at: " + mm.alignlen + " k: " + mm.differences);
+		int e = (m <= 64) ? bvDistance(ctx, n, m, k) : bvDistanceBlocks(ctx, n, m, k);
 		
-		for (int i = 0; i < mm.distlen; i++)
+		if (e > k)
 		{
-			System.out.println("dist: " + mm.dist[i] + " what: " + mm.what[i]);
+			return badAlignment;
 		}
 		
-		mm.printAlignment(tp, pp);
-		
-		System.out.println("Bazea-Yates seed: " + a.isBazeaYatesSeed(pp.length, kmerlen));
+		return kdifference_bin(ctx, text, toff, tlen, pattern, poff, plen, e);
 	}
 	
 	
-	//------------------------- checkBYS --------------------------
-	// check the Bazea-Yates seeds are correct
-		
-	public static void checkBYS(int k, byte [] t, byte [] p, boolean shouldbeseed, String name, int kmerlen) throws IOException
+	//------------------------- kdifference_bv_2bit --------------------------
+	// kdifference_bv for PackedFlanks. The N's of the pattern match nothing, and the
+	// N's of the text get a code of their own that nothing matches.
+	
+	public static AlignInfo kdifference_bv_2bit(AlignerContext ctx, PackedFlank text, PackedFlank pattern, int k)
 	{
-		System.out.println("checking " + name + " (" + shouldbeseed + ")");
-		
-		if (p.length != 10) { throw new IOException("Read length wrong:" + p.length); }
+		int m = pattern.len;
+		int n = text.len;
 		
-		AlignInfo a = kdifference(t, p, k);
-		a.printAlignment(t, p);
+		if (m == 0 || n == 0)
+		{
+			return noAlignment;
+		}
+		
+		bvReset(ctx, m, n, k);
+		
+		for (int i = 0, r = pattern.runStart; i < m; i++)
+		{
+			if ((r < pattern.runEnd) && (i >= pattern.runs[2*r])) 
+			{
+				i = pattern.runs[2*r+1] - 1;
+				r++;
+				continue;
+			}
+			
+			bvMatch(ctx, m, i, pattern.at(i));
+		}
+		
+		for (int j = 0; j < ctx.tcodeLen; j++)
+		{
+			ctx.tcode[j] = (byte) text.at(j);
+		}
+		
+		for (int r = text.runStart; r < text.runEnd; r++)
+		{
+			int end = text.runs[2*r+1];
+			if (end > ctx.tcodeLen) { end = ctx.tcodeLen; }
+			
+			for (int j = text.runs[2*r]; j < end; j++)
+			{
+				ctx.tcode[j] = BV_NO_MATCH;
+			}
+		}
+		
+		int e = (m <= 64) ? bvDistance(ctx, n, m, k) : bvDistanceBlocks(ctx, n, m, k);
+		
+		if (e > k)
+		{
+			return badAlignment;
+		}
+		
+		return kdifference_2bit(ctx, text, pattern, e);
+	}
+	
+	
+	//------------------------- bvReset --------------------------
+	// Clear the match masks for a pattern of m bp, and make room for the codes of the
+	// text bases that can be reached with k differences
+	
+	private static void bvReset(AlignerContext ctx, int m, int n, int k)
+	{
+		if (m <= 64)
+		{
+			java.util.Arrays.fill(ctx.peq, 0);
+		}
+		else
+		{
+			int words = (m + 63) >> 6;
+			
+			if (ctx.pvw.length < words)
+			{
+				ctx.pvw = new long [words];
+				ctx.mvw = new long [words];
+				
+				for (int c = 0; c < 16; c++)
+				{
+					ctx.peqw[c] = new long [words];
+				}
+			}
+			
+			for (int c = 0; c < 16; c++)
+			{
+				java.util.Arrays.fill(ctx.peqw[c], 0, words, 0);
+			}
+		}
+		
+		ctx.tcodeLen = (n < m+k) ? n : m+k;
+		
+		if (ctx.tcode.length < ctx.tcodeLen)
+		{
+			ctx.tcode = new byte [ctx.tcodeLen * 2];
+		}
+	}
+	
+	
+	//------------------------- bvMatch --------------------------
+	// Base i of the pattern matches the text bases with code c
+	
+	private static void bvMatch(AlignerContext ctx, int m, int i, int c)
+	{
+		if (m <= 64)
+		{
+			ctx.peq[c] |= 1L << i;
+		}
+		else
+		{
+			ctx.peqw[c][i >> 6] |= 1L << (i & 63);
+		}
+	}
+	
+	
+	//------------------------- bvDistance --------------------------
+	// Fewest differences for the pattern (<= 64bp) to reach the end of the pattern
+	// or text, or k+1 if that is more than k. Column j of the DP is held as vertical 
+	// deltas in Pv/Mv, and only columns within k of the end of the pattern are computed.
+	// The caller sets up ctx.peq for the pattern and ctx.tcode for the text (bvReset).
+	
+	private static int bvDistance(AlignerContext ctx, int n, int m, int k)
+	{		
+		long high = 1L << (m-1);
+		long Pv = -1L;
+		long Mv = 0;
+		
+		int score = m;                       // D[m][j]
+		int best  = (m <= k) ? m : k+1;      // D[m][0]
+		int last  = (n < m+k) ? n : m+k;
+		
+		for (int j = 1; j <= last; j++)
+		{
+			long Eq = ctx.peq[ctx.tcode[j-1]];
+			long Xv = Eq | Mv;
+			long Xh = (((Eq & Pv) + Pv) ^ Pv) | Eq;
+			long Ph = Mv | ~(Xh | Pv);
+			long Mh = Pv & Xh;
+			
+			if      ((Ph & high) != 0) { score++; }
+			else if ((Mh & high) != 0) { score--; }
+			
+			Ph = (Ph << 1) | 1; // the top row is anchored: D[0][j] = j
+			Mh = Mh << 1;
+			Pv = Mh | ~(Xv | Ph);
+			Mv = Ph & Xv;
+			
+			if (score < best) { best = score; }
+			
+			// The column minimum never decreases, so only look every 4th column,
+			// and always at the end of the text
+			if (((j & 3) != 0) && (j != n)) { continue; }
+			
+			// smallest value in the band of rows [j-k, j+k], rows outside are > k
+			int lo = (j > k) ? j-k : 0;
+			int hi = (j+k < m) ? j+k : m;
+			
+			long below = (lo == 64) ? -1L : (1L << lo) - 1;
+			int v = j + Long.bitCount(Pv & below) - Long.bitCount(Mv & below);
+			int colmin = v;
+			
+			for (int i = lo; i < hi; i++)
+			{
+				v += (int) ((Pv >>> i) & 1) - (int) ((Mv >>> i) & 1);
+				if (v < colmin) { colmin = v; }
+			}
+			
+			if ((j == n) && (colmin < best))
+			{
+				best = colmin; // reached the end of the text
+			}
+			
+			// every path to a later column passes through this one
+			if (colmin >= best) { break; }
+		}
+		
+		return best;
+	}
+	
+	
+	//------------------------- bvDistanceBlocks --------------------------
+	// Same as bvDistance, but for patterns longer than 64bp. The pattern is split 
+	// into 64bp blocks, and the horizontal delta out of each block feeds the next.
+	
+	private static int bvDistanceBlocks(AlignerContext ctx, int n, int m, int k)
+	{
+		int words = (m + 63) >> 6;
+		
+		java.util.Arrays.fill(ctx.pvw, 0, words, -1L);
+		java.util.Arrays.fill(ctx.mvw, 0, words, 0);
+		
+		long high = 1L << ((m-1) & 63);
+		
+		int score = m;
+		int best  = (m <= k) ? m : k+1;
+		int last  = (n < m+k) ? n : m+k;
+		
+		for (int j = 1; j <= last; j++)
+		{
+			long [] eqw = ctx.peqw[ctx.tcode[j-1]];
+			int hin = 1; // the top row is anchored: D[0][j] = j
+			
+			for (int w = 0; w < words; w++)
+			{
+				long Pv = ctx.pvw[w];
+				long Mv = ctx.mvw[w];
+				long Eq = eqw[w];
+				long Xv = Eq | Mv;
+				
+				if (hin < 0) { Eq |= 1; }
+				
+				long Xh = (((Eq & Pv) + Pv) ^ Pv) | Eq;
+				long Ph = Mv | ~(Xh | Pv);
+				long Mh = Pv & Xh;
+				
+				long top = (w == words-1) ? high : 0x8000000000000000L;
+				int hout = ((Ph & top) != 0) ? 1 : (((Mh & top) != 0) ? -1 : 0);
+				
+				Ph <<= 1;
+				Mh <<= 1;
+				
+				if      (hin < 0) { Mh |= 1; }
+				else if (hin > 0) { Ph |= 1; }
+				
+				ctx.pvw[w] = Mh | ~(Xv | Ph);
+				ctx.mvw[w] = Ph & Xv;
+				
+				hin = hout;
+			}
+			
+			score += hin;
+			
+			if (score < best) { best = score; }
+			
+			// The column minimum never decreases, so only look every 4th column,
+			// and always at the end of the text
+			if (((j & 3) != 0) && (j != n)) { continue; }
+			
+			// smallest value in the band of rows [j-k, j+k], rows outside are > k
+			int lo = (j > k) ? j-k : 0;
+			int hi = (j+k < m) ? j+k : m;
+			
+			int v = j;
+			for (int w = 0; w < (lo >> 6); w++)
+			{
+				v += Long.bitCount(ctx.pvw[w]) - Long.bitCount(ctx.mvw[w]);
+			}
+			
+			if ((lo & 63) != 0)
+			{
+				long below = (1L << (lo & 63)) - 1;
+				v += Long.bitCount(ctx.pvw[lo >> 6] & below) - Long.bitCount(ctx.mvw[lo >> 6] & below);
+			}
+			
+			int colmin = v;
+			
+			for (int i = lo; i < hi; i++)
+			{
+				v += (int) ((ctx.pvw[i >> 6] >>> (i & 63)) & 1) - (int) ((ctx.mvw[i >> 6] >>> (i & 63)) & 1);
+				if (v < colmin) { colmin = v; }
+			}
+			
+			if ((j == n) && (colmin < best))
+			{
+				best = colmin; // reached the end of the text
+			}
+			
+			// every path to a later column passes through this one
+			if (colmin >= best) { break; }
+		}
+		
+		return best;
+	}
+	
+	
+	//------------------------- extend --------------------------
+	// align the strings either for either k-mismatch or k-difference
+	
+	public static AlignInfo extend(AlignerContext ctx, byte [] refbin, byte [] qrybin, int K, boolean ALLOW_DIFFERENCES) throws IOException
+	{
+		return extend(ctx, refbin, 0, refbin.length, qrybin, 0, qrybin.length, K, ALLOW_DIFFERENCES);
+	}
+	
+	
+	//------------------------- extend --------------------------
+	// same, for the reflen bytes of refbin at refoff and the qrylen bytes of qrybin at qryoff
+	
+	public static AlignInfo extend(AlignerContext ctx, byte [] refbin, int refoff, int reflen, 
+			                       byte [] qrybin, int qryoff, int qrylen, int K, boolean ALLOW_DIFFERENCES) throws IOException
+	{
+		if (ALLOW_DIFFERENCES)
+		{
+			if (ctx.bitvector)
+			{
+				return kdifference_bv(ctx, refbin, refoff, reflen, qrybin, qryoff, qrylen, K);
+			}
+			
+			return kdifference_bin(ctx, refbin, refoff, reflen, qrybin, qryoff, qrylen, K);
+		}
+		else
+		{
+			return kmismatch_bin(ctx, refbin, refoff, reflen, qrybin, qryoff, qrylen, K);
+		}
+	}
+	
+	
+	//------------------------- extend --------------------------
+	// k-difference alignment of PackedFlanks, with the bit-vector filter if enabled
+	
+	public static AlignInfo extend(AlignerContext ctx, PackedFlank ref, PackedFlank qry, int K)
+	{
+		if (ctx.bitvector)
+		{
+			return kdifference_bv_2bit(ctx, ref, qry, K);
+		}
+		
+		return kdifference_2bit(ctx, ref, qry, K);
+	}
+	
+	
+	
+	
+	
+	
+	/////////////////////////////////////////////////////////////////////
+	//                    Debugging and Test code                      //
+    /////////////////////////////////////////////////////////////////////
+	
+
+	//------------------------- debugAlignment --------------------------
+	// run an alignment and generate some debugging info
+
+	public static void debugAlignment(byte[] tp, byte[] pp, int k, int kmerlen) throws IOException
+	{
+		AlignerContext ctx = new AlignerContext(k);
+		
+		System.out.println("====   DEBUG  ====");
+		System.out.print("t: "); for (int i = 0; i < tp.length; i++) { System.out.print((char)tp[i]); } System.out.println();
+		System.out.print("p: " ); for (int i = 0; i < pp.length; i++) { System.out.print((char)pp[i]); } System.out.println();
+		
+		//alignPrint(tp, pp, k);
+		
+		AlignInfo a = kdifference(ctx, tp, pp, k);
+		
+		System.out.println("There is an alignment ending at: " + a.alignlen + " k: " + a.differences);
+		
+		for (int i = 0; i < a.distlen; i++)
+		{
+			System.out.println("dist: " + a.dist[i] + " what: " + a.what[i]);
+		}
+		
+		a.printAlignment(tp, pp);
+				
+		AlignInfo mm = kmismatch(ctx, tp, pp, k);
+		
+		System.out.println("There is an alignment ending at: " + mm.alignlen + " k: " + mm.differences);
+		
+		for (int i = 0; i < mm.distlen; i++)
+		{
+			System.out.println("dist: " + mm.dist[i] + " what: " + mm.what[i]);
+		}
+		
+		mm.printAlignment(tp, pp);
+		
+		System.out.println("Bazea-Yates seed: " + a.isBazeaYatesSeed(pp.length, kmerlen));
+	}
+	
+	
+	//------------------------- checkBYS --------------------------
+	// check the Bazea-Yates seeds are correct
+		
+	public static void checkBYS(int k, byte [] t, byte [] p, boolean shouldbeseed, String name, int kmerlen) throws IOException
+	{
+		AlignerContext ctx = new AlignerContext(k);
+		
+		System.out.println("checking " + name + " (" + shouldbeseed + ")");
+		
+		if (p.length != 10) { throw new IOException("Read length wrong:" + p.length); }
+		
+		AlignInfo a = kdifference(ctx, t, p, k);
+		a.printAlignment(t, p);
 		if (a.isBazeaYatesSeed(p.length, kmerlen) != shouldbeseed)
 		{
 			a.printAlignment(t, p);
@@ -426,6 +1115,357 @@ public final class LandauVishkin {
 	}
 
 	
+	//------------------------- randomDNA --------------------------
+	// random ascii dna string, with the occasional N
+	
+	public static byte [] randomDNA(java.util.Random rand, int len)
+	{
+		byte [] retval = new byte[len];
+		
+		for (int i = 0; i < len; i++)
+		{
+			int r = rand.nextInt(50);
+			retval[i] = (r == 0) ? (byte) 'N' : (byte) "ACGT".charAt(r & 3);
+		}
+		
+		return retval;
+	}
+	
+	
+	//------------------------- mutateDNA --------------------------
+	// copy of the string with up to maxmm random substitutions
+	
+	public static byte [] mutateDNA(java.util.Random rand, byte [] orig, int maxmm)
+	{
+		byte [] retval = orig.clone();
+		
+		for (int nummm = rand.nextInt(maxmm+1); nummm > 0; nummm--)
+		{
+			retval[rand.nextInt(retval.length)] = (byte) "ACGTN".charAt(rand.nextInt(5));
+		}
+		
+		return retval;
+	}
+	
+	
+	//------------------------- nAsMismatch --------------------------
+	// copy of an ascii text whose N's don't match the N's of an ascii pattern either,
+	// so the ascii kernels give the answers expected from the 2-bit ones
+	
+	public static byte [] nAsMismatch(byte [] text)
+	{
+		byte [] retval = text.clone();
+		
+		for (int i = 0; i < retval.length; i++)
+		{
+			if (DNAString.isN(retval[i])) { retval[i] = 'n'; }
+		}
+		
+		return retval;
+	}
+	
+	
+	//------------------------- packFlank --------------------------
+	// PackedFlank of an ascii dna string
+	
+	public static PackedFlank packFlank(byte [] seq)
+	{
+		byte [] bases = new byte [DNAString.arrToPackedLen(seq.length)];
+		DNAString.arrToPacked(seq, 0, seq.length, bases, 0);
+		
+		int [] runs = new int [seq.length + 1];
+		int numruns = 0;
+		
+		for (int i = 0; i < seq.length; i++)
+		{
+			if (!DNAString.isN(seq[i])) { continue; }
+			
+			if ((numruns > 0) && (runs[2*numruns-1] == i))
+			{
+				runs[2*numruns-1]++;
+			}
+			else
+			{
+				runs[2*numruns]   = i;
+				runs[2*numruns+1] = i+1;
+				numruns++;
+			}
+		}
+		
+		PackedFlank f = new PackedFlank();
+		f.set(bases, 0, seq.length, runs, 0, numruns);
+		return f;
+	}
+	
+	
+	//------------------------- checkPacked --------------------------
+	// check the packed mismatch kernel agrees with the ascii kernel, with the length 
+	// rule of the binary kernel, and that a PackedFlank widens to the same PackedDNA
+	
+	public static void checkPacked(int k, int trials) throws IOException
+	{
+		System.out.println("Checking packed kmismatch");
+		
+		AlignerContext ctx = new AlignerContext(k);
+		java.util.Random rand = new java.util.Random(12345);
+		PackedDNA tp = new PackedDNA();
+		PackedDNA pp = new PackedDNA();
+		PackedDNA tf = new PackedDNA();
+		
+		for (int i = 0; i < trials; i++)
+		{
+			byte [] p = randomDNA(rand, 1 + rand.nextInt(150));
+			byte [] t = mutateDNA(rand, p, k+2);
+			
+			int extra = rand.nextInt(4) - 1;
+			if (extra < 0)
+			{
+				t = java.util.Arrays.copyOf(t, t.length-1);
+			}
+			else if (extra > 0)
+			{
+				byte [] tail = randomDNA(rand, extra);
+				t = java.util.Arrays.copyOf(t, t.length + extra);
+				System.arraycopy(tail, 0, t, t.length - extra, extra);
+			}
+			
+			byte [] t_b = DNAString.arrToDNA(t);
+			byte [] p_b = DNAString.arrToDNA(p);
+			
+			tp.set(t_b);
+			pp.set(p_b);
+			
+			if (!tp.toString().equals(DNAString.bytesToString(t)))
+			{
+				throw new IOException("bad packing " + tp.toString() + " " + DNAString.bytesToString(t));
+			}
+			
+			tf.set(packFlank(t));
+			
+			if (!tf.toString().equals(tp.toString()) || (tf.words != tp.words))
+			{
+				throw new IOException("bad 2-bit packing " + tf.toString() + " " + tp.toString());
+			}
+			
+			String bin    = (tp.byteLen() < pp.byteLen()) ? badAlignment.toString() : kmismatch(ctx, nAsMismatch(t), p, k).toString();
+			String packed = kmismatch_packed(ctx, tf, pp, k).toString();
+			
+			if (!bin.equals(packed))
+			{
+				throw new IOException("packed mismatch\nt: " + DNAString.bytesToString(t) + 
+						              "\np: " + DNAString.bytesToString(p) + 
+						              "\nbin:    " + bin + "\npacked: " + packed);
+			}
+		}
+		
+		System.out.println("  " + trials + " ok");
+	}
+
+	
+	//------------------------- mutateDNAIndels --------------------------
+	// copy of the string with up to maxdiff random substitutions, insertions, and deletions
+	
+	public static byte [] mutateDNAIndels(java.util.Random rand, byte [] orig, int maxdiff)
+	{
+		StringBuilder sb = new StringBuilder(DNAString.bytesToString(orig));
+		
+		for (int numdiff = rand.nextInt(maxdiff+1); numdiff > 0; numdiff--)
+		{
+			int pos = rand.nextInt(sb.length());
+			char c = "ACGTN".charAt(rand.nextInt(5));
+			
+			switch (rand.nextInt(3))
+			{
+				case 0:  sb.setCharAt(pos, c); break;
+				case 1:  sb.insert(pos, c); break;
+				default: if (sb.length() > 1) { sb.deleteCharAt(pos); } break;
+			}
+		}
+		
+		return DNAString.stringToBytes(sb.toString());
+	}
+	
+	
+	//------------------------- checkMany --------------------------
+	// check the block mismatch kernel agrees with the single pair kernel
+	
+	public static void checkMany(int k, int trials) throws IOException
+	{
+		System.out.println("Checking block kmismatch");
+		
+		AlignerContext ctx = new AlignerContext(k);
+		java.util.Random rand = new java.util.Random(999);
+		
+		int blocksize = 128;
+		PackedDNA [] refs = new PackedDNA[blocksize];
+		PackedBlock block = new PackedBlock();
+		PackedDNA qry = new PackedDNA();
+		int [] results = new int [blocksize];
+		
+		for (int i = 0; i < trials; i++)
+		{
+			byte [] q = randomDNA(rand, rand.nextInt(120));
+			qry.set(DNAString.arrToDNA(q));
+			
+			int size = 1 + rand.nextInt(blocksize);
+			int maxwords = 0;
+			
+			for (int r = 0; r < size; r++)
+			{
+				byte [] t = (q.length == 0) ? randomDNA(rand, 5) : mutateDNA(rand, q, k+2);
+				
+				// mostly longer reference flanks, some ending early
+				int len = t.length + rand.nextInt(20) - 2;
+				if (len < 0) { len = 0; }
+				
+				byte [] full = java.util.Arrays.copyOf(t, len);
+				for (int j = t.length; j < len; j++) { full[j] = 'A'; }
+				
+				refs[r] = new PackedDNA();
+				refs[r].set(DNAString.arrToDNA(full));
+				
+				if (refs[r].words > maxwords) { maxwords = refs[r].words; }
+			}
+			
+			block.reset(size, maxwords);
+			for (int r = 0; r < size; r++)
+			{
+				block.set(r, refs[r]);
+			}
+			
+			kmismatchMany(ctx, qry, block, k, results);
+			
+			for (int r = 0; r < size; r++)
+			{
+				int single = kmismatch_packed(ctx, refs[r], qry, k).differences;
+				
+				if (single != results[r])
+				{
+					throw new IOException("block mismatch\nt: " + refs[r].toString() + 
+							              "\np: " + qry.toString() + 
+							              "\nsingle: " + single + " block: " + results[r]);
+				}
+			}
+		}
+		
+		System.out.println("  " + trials + " ok");
+	}
+	
+	
+	//------------------------- checkKdifference --------------------------
+	// check the binary and bit-vector k-difference kernels agree with the ascii kernel,
+	// and so do the 2-bit ones when N's never match
+	
+	public static void checkKdifference(int k, int trials) throws IOException
+	{
+		System.out.println("Checking binary and bit-vector kdifference");
+		
+		AlignerContext ctx = new AlignerContext(k);
+		java.util.Random rand = new java.util.Random(54321);
+		
+		for (int i = 0; i < trials; i++)
+		{
+			byte [] p = randomDNA(rand, 1 + rand.nextInt(200));
+			byte [] t = mutateDNAIndels(rand, p, k+2);
+			
+			if (rand.nextBoolean())
+			{
+				// usually the reference flank runs past the end of the read
+				byte [] tail = randomDNA(rand, rand.nextInt(2*k+2));
+				byte [] full = java.util.Arrays.copyOf(t, t.length + tail.length);
+				System.arraycopy(tail, 0, full, t.length, tail.length);
+				t = full;
+			}
+			
+			byte [] t_b = DNAString.arrToDNA(t);
+			byte [] p_b = DNAString.arrToDNA(p);
+			
+			String lv  = kdifference(ctx, t, p, k).toString();
+			String bin = kdifference_bin(ctx, t_b, p_b, k).toString();
+			String bv  = kdifference_bv(ctx, t_b, p_b, k).toString();
+			
+			if (!lv.equals(bin) || !lv.equals(bv))
+			{
+				throw new IOException("kdifference mismatch\nt: " + DNAString.bytesToString(t) + 
+						              "\np: " + DNAString.bytesToString(p) + 
+						              "\nlv:  " + lv + "\nbin: " + bin + "\nbv:  " + bv);
+			}
+			
+			String lvn  = kdifference(ctx, nAsMismatch(t), p, k).toString();
+			String bin2 = kdifference_2bit(ctx, packFlank(t), packFlank(p), k).toString();
+			String bv2  = kdifference_bv_2bit(ctx, packFlank(t), packFlank(p), k).toString();
+			
+			if (!lvn.equals(bin2) || !lvn.equals(bv2))
+			{
+				throw new IOException("2-bit kdifference mismatch\nt: " + DNAString.bytesToString(t) + 
+						              "\np: " + DNAString.bytesToString(p) + 
+						              "\nlv:   " + lvn + "\n2bit: " + bin2 + "\nbv:   " + bv2);
+			}
+		}
+		
+		System.out.println("  " + trials + " ok");
+	}
+	
+	
+	//------------------------- checkFilters --------------------------
+	// check the candidate filters never bound a pair above its kdifference distance
+	
+	public static void checkFilters(int k, int trials) throws IOException
+	{
+		System.out.println("Checking candidate filters");
+		
+		AlignerContext ctx = new AlignerContext(k);
+		java.util.Random rand = new java.util.Random(2468);
+		
+		CandidateFilter [] filters = { new CompositionFilter(), new QGramFilter() };
+		int [] rejected = new int [filters.length];
+		
+		PackedDNA t_p = new PackedDNA();
+		PackedDNA p_p = new PackedDNA();
+		FlankSignature t_s = new FlankSignature();
+		FlankSignature p_s = new FlankSignature();
+		
+		for (int i = 0; i < trials; i++)
+		{
+			byte [] p = randomDNA(rand, 1 + rand.nextInt(100));
+			byte [] t = mutateDNAIndels(rand, p, 2*k+2);
+			
+			byte [] tail = randomDNA(rand, rand.nextInt(2*k+2));
+			byte [] full = java.util.Arrays.copyOf(t, t.length + tail.length);
+			System.arraycopy(tail, 0, full, t.length, tail.length);
+			
+			byte [] t_b = DNAString.arrToDNA(full);
+			byte [] p_b = DNAString.arrToDNA(p);
+			
+			t_p.set(t_b); t_s.set(t_p);
+			p_p.set(p_b); p_s.set(p_p);
+			
+			AlignInfo a = kdifference_bin(ctx, t_b, p_b, k);
+			
+			for (int f = 0; f < filters.length; f++)
+			{
+				int bound = filters[f].lowerBound(p_s, t_s, k);
+				
+				if ((a.alignlen != -1) && (bound > a.differences))
+				{
+					throw new IOException(filters[f].getCounter() + " bound " + bound + " > " + a.differences +
+							              "\nt: " + DNAString.bytesToString(full) + 
+							              "\np: " + DNAString.bytesToString(p));
+				}
+				
+				if (bound > k) { rejected[f]++; }
+			}
+		}
+		
+		for (int f = 0; f < filters.length; f++)
+		{
+			System.out.println("  " + filters[f].getCounter() + ": " + rejected[f]);
+		}
+		
+		System.out.println("  " + trials + " ok");
+	}
+
+	
 	//------------------------- main --------------------------
 	// Make sure alignments are fast and correct
 
@@ -434,7 +1474,7 @@ public final class LandauVishkin {
 		//1left-del-3 -> 0;10;10;TTTCTCAACA;ACACAGTATATC;ref;36;TTTCTCAAACACCTATATTTTTTG;ACACAGTATATCGTGTTGTGGACA
 
 		int k = 5;
-		configure(k);
+		AlignerContext ctx = new AlignerContext(k);
 		
 		
 		byte[] text    = DNAString.stringToBytes("TTTCTCAAACACCTATATTTTTTGT");
@@ -446,13 +1486,27 @@ public final class LandauVishkin {
 		byte [] text_b    = DNAString.arrToDNA(text);
 		byte [] pattern_b = DNAString.arrToDNA(pattern);
 		
-		AlignInfo a = kmismatch(text,pattern, k);
+		AlignInfo a = kmismatch(ctx, text,pattern, k);
 		System.out.println("ASCII:  " + a.toString());
 		a.printAlignment(text, pattern);
 		
-		AlignInfo b = kmismatch_bin(text_b, pattern_b, k);
+		AlignInfo b = kmismatch_bin(ctx, text_b, pattern_b, k);
 		System.out.println("Binary: " + b.toString());
 		b.printAlignment(text, pattern);
+		
+		PackedDNA text_p    = new PackedDNA();
+		PackedDNA pattern_p = new PackedDNA();
+		text_p.set(text_b);
+		pattern_p.set(pattern_b);
+		
+		AlignInfo p = kmismatch_packed(ctx, text_p, pattern_p, k);
+		System.out.println("Packed: " + p.toString());
+		p.printAlignment(text, pattern);
+		
+		checkPacked(k, 100000);
+		checkMany(k, 10000);
+		checkKdifference(k, 100000);
+		checkFilters(k, 100000);
 
 
 		int num = 10000000;
@@ -461,7 +1515,7 @@ public final class LandauVishkin {
 		Timer ta = new Timer();
 		for (int i = 0; i < num; i++)
 		{
-			AlignInfo c = kmismatch(text, pattern, k);
+			AlignInfo c = kmismatch(ctx, text, pattern, k);
 			//dd = c.differences;
 		}
 		System.out.println("ASCII " + num + " took:" + ta.get());
@@ -470,7 +1524,7 @@ public final class LandauVishkin {
 		Timer tb = new Timer();
 		for (int i = 0; i < num; i++)
 		{
-			AlignInfo c = kmismatch_bin(text_b, pattern_b, k);
+			AlignInfo c = kmismatch_bin(ctx, text_b, pattern_b, k);
 //			if (c.differences != dd)
 //			{
 //				System.out.println("WTF: " + dd + " " + c.differences);
@@ -479,10 +1533,17 @@ public final class LandauVishkin {
 		}
 		System.out.println("Binary " + num + " took:" + tb.get());
 		
+		Timer tp = new Timer();
+		for (int i = 0; i < num; i++)
+		{
+			AlignInfo c = kmismatch_packed(ctx, text_p, pattern_p, k);
+		}
+		System.out.println("Packed " + num + " took:" + tp.get());
+		
 		Timer tc = new Timer();
 		for (int i = 0; i < num; i++)
 		{
-			AlignInfo c = kmismatch(text, pattern, k);
+			AlignInfo c = kmismatch(ctx, text, pattern, k);
 		}
 		System.out.println("ASCII " + num + " took:" + tc.get());
 
@@ -0,0 +1,66 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+// Read-only array of big-endian longs memory-mapped from a region of a file. A single
+// mapping is limited to 2GB, so the region is mapped in segments of 2^27 longs.
+
+public class MappedLongs
+{
+	private static final int  SEGMENT_SHIFT = 27;
+	private static final long SEGMENT_MASK  = (1L << SEGMENT_SHIFT) - 1;
+
+	private LongBuffer [] segments;
+	public final long size;
+
+
+	//------------------------- Constructor --------------------------
+	// Map size longs starting at byte offset of the file
+
+	public MappedLongs(FileChannel channel, long offset, long size) throws IOException
+	{
+		this.size = size;
+
+		int numsegments = (int) ((size + SEGMENT_MASK) >> SEGMENT_SHIFT);
+		segments = new LongBuffer [numsegments];
+
+		for (int s = 0; s < numsegments; s++)
+		{
+			long first = (long) s << SEGMENT_SHIFT;
+			long count = Math.min(1L << SEGMENT_SHIFT, size - first);
+
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * 8, count * 8).asLongBuffer();
+		}
+	}
+
+
+	//------------------------- get --------------------------
+	public long get(long i)
+	{
+		return segments[(int) (i >>> SEGMENT_SHIFT)].get((int) (i & SEGMENT_MASK));
+	}
+
+
+	//------------------------- search --------------------------
+	// Index of key in the sorted array, or -1 if it isn't there
+
+	public long search(long key)
+	{
+		long lo = 0;
+		long hi = size - 1;
+
+		while (lo <= hi)
+		{
+			long mid = (lo + hi) >>> 1;
+			long v = get(mid);
+
+			if      (v < key) { lo = mid + 1; }
+			else if (v > key) { hi = mid - 1; }
+			else              { return mid; }
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,113 @@
+package cloudBurst;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+
+// The reference seeds that occur more than MAX_SEED_OCCURRENCES times, with their
+// counts, as a sorted long [] of seed keys and a parallel int [] for lookups by binary
+// search. A seed key is the packed seed of arrToSeed read as a number, which is exact
+// for seeds of up to 32bp. Longer seeds are hashed to 64 bits, so a rare seed may be
+// masked along with a frequent one that hashes to the same key.
+
+public class MaskedSeeds implements Writable
+{
+	public static enum Counter { MASKED_REF_SEEDS, MASKED_QRY_SEEDS, MASKED_READS,
+		                         SAMPLED_GROUPS, SAMPLED_OUT_REF_SEEDS, SAMPLED_QRY_SEEDS };
+
+	public long [] seeds  = new long [0];
+	public int  [] counts = new int [0];
+	public int size = 0;
+
+
+	//------------------------- key --------------------------
+	// Key of the len packed seed bytes at packed[off]
+
+	public static long key(byte [] packed, int off, int len)
+	{
+		long k = 0;
+
+		if (len <= 8)
+		{
+			for (int i = off; i < off + len; i++)
+			{
+				k = (k << 8) | (packed[i] & 0xFF);
+			}
+
+			return k;
+		}
+
+		// FNV-1a
+		k = 0xcbf29ce484222325L;
+
+		for (int i = off; i < off + len; i++)
+		{
+			k ^= packed[i] & 0xFF;
+			k *= 0x100000001b3L;
+		}
+
+		return k;
+	}
+
+
+	//------------------------- add --------------------------
+	// Seeds must be added in increasing order
+
+	public void add(long seed, int count) throws IOException
+	{
+		if ((size > 0) && (seed <= seeds[size-1]))
+		{
+			throw new IOException("Masked seeds must be added in sorted order");
+		}
+
+		if (size == seeds.length)
+		{
+			seeds  = java.util.Arrays.copyOf(seeds,  size * 2 + 16);
+			counts = java.util.Arrays.copyOf(counts, size * 2 + 16);
+		}
+
+		seeds[size]  = seed;
+		counts[size] = count;
+		size++;
+	}
+
+
+	//------------------------- count --------------------------
+	// Occurrences of a masked seed, or 0 if the seed isn't masked
+
+	public int count(long seed)
+	{
+		int i = java.util.Arrays.binarySearch(seeds, 0, size, seed);
+		return (i >= 0) ? counts[i] : 0;
+	}
+
+
+	//------------------------- write --------------------------
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(size);
+
+		for (int i = 0; i < size; i++)
+		{
+			out.writeLong(seeds[i]);
+			out.writeInt(counts[i]);
+		}
+	}
+
+
+	//------------------------- readFields --------------------------
+	public void readFields(DataInput in) throws IOException
+	{
+		size   = in.readInt();
+		seeds  = new long [size];
+		counts = new int [size];
+
+		for (int i = 0; i < size; i++)
+		{
+			seeds[i]  = in.readLong();
+			counts[i] = in.readInt();
+		}
+	}
+}
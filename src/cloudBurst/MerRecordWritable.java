@@ -0,0 +1,468 @@
+package cloudBurst;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+// A seed tuple as it travels through the shuffle. Serialized as:
+//
+//   flags (0x01 reference, 0x10 reverse complement, 0x02 the flanks have N's,
+//          0x04 keyed by the reverse complement of the seed)
+//   offset, id, left flank bases, right flank bases as Hadoop VInts
+//   only with 0x02: for each flank the number of N runs, and per run the bases
+//     since the end of the previous run and its length, as VInts
+//   left flank (reversed), right flank, at 2 bits / bp (see PackedFlank)
+//
+// The offsets inside a chunk and the ids of reads are small, so the header is usually
+// 5-7 bytes instead of the 9 of a fixed width header plus the 4 byte length prefix
+// of a BytesWritable. N's are rare, so instead of spending 4 bits on every base they
+// are packed as 'A' and listed separately. The serialized bytes are kept as they were
+// read, with the header fields decoded next to them, so the flanks are used in place.
+
+public class MerRecordWritable implements Writable
+{
+	public static final byte N_FLAG = 0x02;
+
+	public byte flags;
+	public int offset;
+	public int id;
+
+	// the flanks are leftLen and rightLen bases, packed from flankStart of get()
+	public int flankStart;
+	public int leftLen;
+	public int rightLen;
+
+	// the N runs of the left flank are runs[0, 2*leftRuns), then the ones of the
+	// right flank up to 2*numRuns, each in the coordinates of its own flank
+	public int [] runs = new int [8];
+	public int leftRuns;
+	public int numRuns;
+
+	private byte [] raw = new byte [64];
+	private int size = 0;
+
+
+	//------------------------- set --------------------------
+	// Serialize the header fields of info, and the flanks seq[leftstart, leftstart+leftlen)
+	// (reversed) and seq[rightstart, rightstart+rightlen) from letters
+
+	public void set(MerRecord info, byte [] seq, int leftstart, int leftlen, int rightstart, int rightlen)
+	{
+		// runs are only extended within the flank being scanned
+		numRuns  = 0;
+		leftRuns = 0;
+		for (int i = 0; i < leftlen; i++)
+		{
+			if (DNAString.isN(seq[leftstart + leftlen - 1 - i])) { addN(i); }
+		}
+
+		leftRuns = numRuns;
+		for (int i = 0; i < rightlen; i++)
+		{
+			if (DNAString.isN(seq[rightstart + i])) { addN(i); }
+		}
+
+		setHeader(info, leftlen, rightlen);
+
+		DNAString.arrToPackedRev(seq, leftstart, leftlen, raw, flankStart);
+		DNAString.arrToPacked(seq, rightstart, rightlen, raw, flankStart + DNAString.arrToPackedLen(leftlen));
+	}
+
+
+	//------------------------- set --------------------------
+	// Same as above with the flanks cut out of a PackedChunk, whose N runs are
+	// clipped to each flank instead of scanning it for N's
+
+	public void set(MerRecord info, PackedChunk seq, int leftstart, int leftlen, int rightstart, int rightlen)
+	{
+		numRuns = 0;
+
+		// the left flank is reversed, so its runs come from the last one in it down
+		int leftend = leftstart + leftlen;
+		int first   = seq.firstRun(leftstart);
+		int last    = first;
+
+		while ((last < seq.numRuns) && (seq.runs[2*last] < leftend)) { last++; }
+
+		for (int r = last-1; r >= first; r--)
+		{
+			addRun(leftend - Math.min(seq.runs[2*r+1], leftend), leftend - Math.max(seq.runs[2*r], leftstart));
+		}
+
+		leftRuns = numRuns;
+
+		int rightend = rightstart + rightlen;
+
+		for (int r = seq.firstRun(rightstart); (r < seq.numRuns) && (seq.runs[2*r] < rightend); r++)
+		{
+			addRun(Math.max(seq.runs[2*r], rightstart) - rightstart, Math.min(seq.runs[2*r+1], rightend) - rightstart);
+		}
+
+		setHeader(info, leftlen, rightlen);
+
+		int leftbytes = seq.copyRev(leftstart, leftlen, raw, flankStart);
+		seq.copy(rightstart, rightlen, raw, flankStart + leftbytes);
+	}
+
+
+	//------------------------- setHeader --------------------------
+	// Serialize the header fields of info once the runs of the flanks are known,
+	// and make room for the flanks after it
+
+	private void setHeader(MerRecord info, int leftlen, int rightlen)
+	{
+		offset   = info.offset;
+		id       = info.id;
+		leftLen  = leftlen;
+		rightLen = rightlen;
+
+		flags = (byte) ((info.isReference ? TupleStore.REF_FLAG : 0) | 
+		                (info.isRC ? TupleStore.RC_FLAG : 0) | 
+		                (info.isFlipped ? TupleStore.FLIP_FLAG : 0) | 
+		                ((numRuns > 0) ? N_FLAG : 0));
+
+		writeHeader();
+
+		size = flankStart + DNAString.arrToPackedLen(leftlen) + DNAString.arrToPackedLen(rightlen);
+		reserve(size);
+	}
+
+
+	//------------------------- addN --------------------------
+	// Add base i of the current flank to its N runs
+
+	private void addN(int i)
+	{
+		int last = numRuns - 1;
+
+		if ((numRuns > leftRuns) && (runs[2*last+1] == i))
+		{
+			runs[2*last+1]++;
+			return;
+		}
+
+		addRun(i, i+1);
+	}
+
+
+	//------------------------- addRun --------------------------
+	// Add the run [s, e) to the current flank
+
+	private void addRun(int s, int e)
+	{
+		if (runs.length < 2*numRuns + 2)
+		{
+			runs = java.util.Arrays.copyOf(runs, 4*numRuns + 2);
+		}
+
+		runs[2*numRuns]   = s;
+		runs[2*numRuns+1] = e;
+		numRuns++;
+	}
+
+
+	//------------------------- set --------------------------
+	// Copy another record
+
+	public void set(MerRecordWritable other)
+	{
+		flags      = other.flags;
+		offset     = other.offset;
+		id         = other.id;
+		flankStart = other.flankStart;
+		leftLen    = other.leftLen;
+		rightLen   = other.rightLen;
+		leftRuns   = other.leftRuns;
+		numRuns    = other.numRuns;
+
+		if (runs.length < 2*numRuns)
+		{
+			runs = new int [2*numRuns];
+		}
+
+		System.arraycopy(other.runs, 0, runs, 0, 2*numRuns);
+
+		reserve(other.size);
+		System.arraycopy(other.raw, 0, raw, 0, other.size);
+		size = other.size;
+	}
+
+
+	//------------------------- get --------------------------
+	// The serialized record, valid for getSize() bytes
+
+	public byte [] get()
+	{
+		return raw;
+	}
+
+
+	//------------------------- getSize --------------------------
+	public int getSize()
+	{
+		return size;
+	}
+
+
+	//------------------------- isReference --------------------------
+	public boolean isReference()
+	{
+		return (flags & TupleStore.REF_FLAG) != 0;
+	}
+
+
+	//------------------------- isRC --------------------------
+	public boolean isRC()
+	{
+		return (flags & TupleStore.RC_FLAG) != 0;
+	}
+
+
+	//------------------------- isFlipped --------------------------
+	public boolean isFlipped()
+	{
+		return (flags & TupleStore.FLIP_FLAG) != 0;
+	}
+
+
+	//------------------------- write --------------------------
+	public void write(DataOutput out) throws IOException
+	{
+		out.write(raw, 0, size);
+	}
+
+
+	//------------------------- readFields --------------------------
+	public void readFields(DataInput in) throws IOException
+	{
+		flags    = in.readByte();
+		offset   = WritableUtils.readVInt(in);
+		id       = WritableUtils.readVInt(in);
+		leftLen  = WritableUtils.readVInt(in);
+		rightLen = WritableUtils.readVInt(in);
+
+		numRuns  = 0;
+		leftRuns = 0;
+
+		if ((flags & N_FLAG) != 0)
+		{
+			readRuns(in);
+			leftRuns = numRuns;
+			readRuns(in);
+		}
+
+		writeHeader();
+
+		int flankbytes = DNAString.arrToPackedLen(leftLen) + DNAString.arrToPackedLen(rightLen);
+		reserve(flankStart + flankbytes);
+		in.readFully(raw, flankStart, flankbytes);
+
+		size = flankStart + flankbytes;
+	}
+
+
+	//------------------------- readRuns --------------------------
+	// Append the N runs of one flank
+
+	private void readRuns(DataInput in) throws IOException
+	{
+		int count = WritableUtils.readVInt(in);
+
+		if (runs.length < 2*(numRuns + count))
+		{
+			runs = java.util.Arrays.copyOf(runs, 2*(numRuns + count));
+		}
+
+		for (int end = 0; count > 0; count--, numRuns++)
+		{
+			int start = end + WritableUtils.readVInt(in);
+			end = start + WritableUtils.readVInt(in);
+
+			runs[2*numRuns]   = start;
+			runs[2*numRuns+1] = end;
+		}
+	}
+
+
+	//------------------------- writeHeader --------------------------
+	// Serialize the header fields to the start of raw, and set flankStart
+
+	private void writeHeader()
+	{
+		reserve(1 + 5 * (6 + 2*numRuns));
+
+		int pos = 0;
+		raw[pos++] = flags;
+		pos = putVInt(pos, offset);
+		pos = putVInt(pos, id);
+		pos = putVInt(pos, leftLen);
+		pos = putVInt(pos, rightLen);
+
+		if ((flags & N_FLAG) != 0)
+		{
+			pos = putRuns(pos, 0, leftRuns);
+			pos = putRuns(pos, leftRuns, numRuns);
+		}
+
+		flankStart = pos;
+	}
+
+
+	//------------------------- putRuns --------------------------
+	// Write the runs [first, last) of one flank at raw[pos], and return the next position
+
+	private int putRuns(int pos, int first, int last)
+	{
+		pos = putVInt(pos, last - first);
+
+		for (int r = first, end = 0; r < last; r++)
+		{
+			pos = putVInt(pos, runs[2*r] - end);
+			pos = putVInt(pos, runs[2*r+1] - runs[2*r]);
+			end = runs[2*r+1];
+		}
+
+		return pos;
+	}
+
+
+	//------------------------- putVInt --------------------------
+	// Write v at raw[pos] in the format of WritableUtils.writeVInt, and return the next position
+
+	private int putVInt(int pos, int v)
+	{
+		if ((v >= -112) && (v <= 127))
+		{
+			raw[pos] = (byte) v;
+			return pos + 1;
+		}
+
+		long i = v;
+		int len = -112;
+
+		if (i < 0)
+		{
+			i ^= -1L;
+			len = -120;
+		}
+
+		for (long tmp = i; tmp != 0; tmp >>= 8)
+		{
+			len--;
+		}
+
+		raw[pos++] = (byte) len;
+
+		int bytes = (len < -120) ? -(len + 120) : -(len + 112);
+
+		for (int b = bytes - 1; b >= 0; b--)
+		{
+			raw[pos++] = (byte) (i >> (8 * b));
+		}
+
+		return pos;
+	}
+
+
+	//------------------------- reserve --------------------------
+	// Make room for len bytes, keeping the first size of them
+
+	private void reserve(int len)
+	{
+		if (raw.length < len)
+		{
+			raw = java.util.Arrays.copyOf(raw, len * 2);
+		}
+	}
+
+
+	//------------------------- left --------------------------
+	// View the left flank as a PackedFlank
+
+	public PackedFlank left(PackedFlank f)
+	{
+		f.set(raw, flankStart, leftLen, runs, 0, leftRuns);
+		return f;
+	}
+
+
+	//------------------------- right --------------------------
+	public PackedFlank right(PackedFlank f)
+	{
+		f.set(raw, flankStart + DNAString.arrToPackedLen(leftLen), rightLen, runs, leftRuns, numRuns);
+		return f;
+	}
+
+
+	//------------------------- toString --------------------------
+	// The fields as a string for debugging
+
+	public String toString()
+	{
+		PackedFlank f = new PackedFlank();
+
+		return (isReference() ? '1' : '0') + ";" + (isRC() ? '1' : '0') + ";" + offset + ";" + id + ";" +
+		       left(f).toString() + ";" + right(f).toString();
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the serialization is correct and fast
+
+	public static void main(String[] args) throws IOException
+	{
+		byte[] seq = DNAString.stringToBytes("ACGTNNCGTACGTANGTACGTAN");
+
+		MerRecord mr = new MerRecord();
+		mr.id = 12345;
+		mr.isRC = true;
+		mr.isReference = false;
+
+		MerRecordWritable out = new MerRecordWritable();
+		MerRecordWritable in  = new MerRecordWritable();
+		MerRecordWritable cut = new MerRecordWritable();
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		java.io.DataOutputStream data = new java.io.DataOutputStream(bytes);
+
+		int [] offsets = { 0, 1, 127, 128, 65535, 1234567, Integer.MAX_VALUE, -1, -113 };
+
+		// the flanks cut out of a PackedChunk must serialize the same
+		PackedChunk chunk = new PackedChunk();
+		byte [] dna = DNAString.arrToDNA(seq);
+		chunk.setDNA(dna, 0, dna.length);
+
+		Timer t = new Timer();
+		int num = 1000000;
+		for (int i = 0; i < num; i++)
+		{
+			mr.offset = offsets[i % offsets.length];
+			out.set(mr, seq, i % 7, 5 + i % 3, 8, i % 16);
+			cut.set(mr, chunk, i % 7, 5 + i % 3, 8, i % 16);
+
+			String flanks = new StringBuilder(DNAString.bytesToString(seq, i % 7, 5 + i % 3)).reverse() + ";" + 
+			                DNAString.bytesToString(seq, 8, i % 16);
+
+			bytes.reset();
+			out.write(data);
+			in.readFields(new java.io.DataInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray())));
+
+			if (in.id != mr.id ||
+				in.offset != mr.offset ||
+				in.isRC() != mr.isRC ||
+				in.isReference() != mr.isReference ||
+				in.getSize() != out.getSize() ||
+				cut.getSize() != out.getSize() ||
+				!java.nio.ByteBuffer.wrap(cut.get(), 0, cut.getSize()).equals(java.nio.ByteBuffer.wrap(out.get(), 0, out.getSize())) ||
+				!in.toString().equals(out.toString()) ||
+				!out.toString().endsWith(";" + flanks))
+			{
+				throw new IOException("Mismatch! " + out + " " + in);
+			}
+		}
+
+		System.out.println(num + " took:" + t.get());
+	}
+}
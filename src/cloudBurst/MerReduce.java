@@ -1,12 +1,26 @@
 package cloudBurst;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Writable;
@@ -37,14 +51,82 @@ public class MerReduce {
 	}
 	
 	
+	//------------------------- openCacheFile --------------------------
+	// Open a file shipped to the tasks with the distributed cache, falling back to
+	// reading it from the job's filesystem if there is no local copy
+	
+	public static DataInputStream openCacheFile(JobConf conf, String path) throws IOException
+	{
+		Path filePath = new Path(path);
+		Path local = cachedCopy(conf, filePath);
+		
+		if (local != null)
+		{
+			return new DataInputStream(new BufferedInputStream(new FileInputStream(local.toString()), 1 << 16));
+		}
+		
+		return FileSystem.get(conf).open(filePath);
+	}
+	
+	
+	//------------------------- localCacheFile --------------------------
+	// The local copy of a file shipped with the distributed cache, for files that are
+	// memory-mapped rather than read. Without a cached copy the path must be local.
+	
+	public static File localCacheFile(JobConf conf, String path) throws IOException
+	{
+		Path local = cachedCopy(conf, new Path(path));
+		
+		return (local != null) ? new File(local.toString()) : new File(path);
+	}
+	
+	
+	//------------------------- cachedCopy --------------------------
+	// The cached file with the same name as filePath, or null
+	
+	private static Path cachedCopy(JobConf conf, Path filePath) throws IOException
+	{
+		Path [] cached = DistributedCache.getLocalCacheFiles(conf);
+		
+		if (cached != null)
+		{
+			for (Path p : cached)
+			{
+				if (p.getName().equals(filePath.getName()))
+				{
+					return p;
+				}
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	//------------------------- keyShards --------------------------
+	// Number of shards the seed keys have room for: low complexity seeds are spread over
+	// REDUNDANCY shards, and the seeds the reference sketch finds to be frequent over
+	// HOT_SEED_SHARDS. Keys only have a shard byte if this is more than 1.
+	
+	public static int keyShards(JobConf conf)
+	{
+		int REDUNDANCY      = Integer.parseInt(conf.get("REDUNDANCY"));
+		int HOT_SEED_SHARDS = Integer.parseInt(conf.get("HOT_SEED_SHARDS", "1"));
+		
+		return Math.max(REDUNDANCY, HOT_SEED_SHARDS);
+	}
+	
+	
 	//------------------------- MapClass --------------------------
 	
 	public static class MapClass extends MapReduceBase implements
-			Mapper<IntWritable, BytesWritable, BytesWritable, BytesWritable> 
+			Mapper<IntWritable, BytesWritable, WritableComparable, MerRecordWritable> 
 	{
 		private FastaRecord record = new FastaRecord();
 		private BytesWritable seed = new BytesWritable();
+		private SeedKey seedKey = new SeedKey();
 		private MerRecord seedInfo = new MerRecord();
+		private MerRecordWritable seedValue = new MerRecordWritable();
 		
 		
 		private int MIN_READ_LEN;
@@ -53,10 +135,60 @@ public class MerReduce {
 		private int FLANK_LEN;
 		private int K;
 		private int REDUNDANCY;
+		private int KEY_SHARDS;
+		private int SHARD_BITS;
 		private String curfile;
 		private String refpath;
 		private byte [] seedbuffer = null;
 		
+		// seeds estimated to occur more than HOT_SEED_COUNT times in the reference are spread 
+		// over HOT_SEED_SHARDS reducers, null if not enabled
+		private SeedSketch hotSeeds = null;
+		private int HOT_SEED_SHARDS;
+		private int HOT_SEED_COUNT;
+		
+		// REPEAT_MASK=drop: seeds occurring more than MAX_SEED_OCCURRENCES times in the reference are skipped
+		private MaskedSeeds masked = null;
+		
+		// a seed on its own, for the sketch and mask lookups
+		private byte [] packedseed = null;
+		
+		// the seed at the current position, the reference seeds are made one base at a time
+		private RollingSeed roll = null;
+		
+		// a chunk of the reference, read without decoding it to letters
+		private PackedChunk chunk = new PackedChunk();
+		
+		// POSITION_ONLY_REFS=1: reference tuples carry no flanks, the reducers decode them from PACKED_GENOME
+		private boolean POSITION_ONLY_REFS = false;
+		
+		// POSITION_ONLY_READS=1: query tuples carry no flanks, the reducers decode them from READ_STORE
+		private boolean POSITION_ONLY_READS = false;
+		
+		// LONG_SEED_KEYS=1: keys are SeedKeys instead of arrToSeed bytes
+		boolean LONG_SEED_KEYS = false;
+		
+		// CANONICAL_SEEDS=1: seeds are keyed by the smaller of the seed and its reverse complement, 
+		// so each read seed is only emitted once instead of once per strand
+		private boolean CANONICAL_SEEDS = false;
+		
+		// MINIMIZER_WINDOW=w: the reference only emits the seeds that are the smallest of some window 
+		// of w seeds, and each piece of PIECE_LEN = SEED_LEN+w-1 bases of a read emits its smallest one
+		private int MINIMIZER_WINDOW = 1;
+		private int PIECE_LEN;
+		private MinimizerWindow windows = null;
+		
+		// the seed w-1 positions ahead of roll, which orders the windows
+		private RollingSeed lead = null;
+		
+		// SEED_PATTERN=1101...: mismatch mode seeds are spaced, SEED_LEN is the weight of the pattern 
+		// and reads emit it at every placement. The right flank starts where the seed does, so the 
+		// bases between the flanks, ANCHOR_LEN, are SEED_LEN for contiguous seeds and 0 for spaced ones.
+		private SpacedSeeds SEED_PATTERN = null;
+		private int SEED_SPAN;
+		private int ANCHOR_LEN;
+		private int PIECE_STEP;
+		
 		boolean ISREF;
 
 		//------------------------- configure --------------------------
@@ -74,92 +206,288 @@ public class MerReduce {
 			FLANK_LEN    = Integer.parseInt(conf.get("FLANK_LEN"));
 			K            = Integer.parseInt(conf.get("K"));
 			REDUNDANCY   = Integer.parseInt(conf.get("REDUNDANCY"));
+			KEY_SHARDS   = keyShards(conf);
+			SHARD_BITS   = SeedKey.shardBits(KEY_SHARDS);
+			
+			LONG_SEED_KEYS = Integer.parseInt(conf.get("LONG_SEED_KEYS", "0")) == 1;
+			CANONICAL_SEEDS = Integer.parseInt(conf.get("CANONICAL_SEEDS", "0")) == 1;
+			
+			seedbuffer   = new byte[DNAString.arrToSeedLen(SEED_LEN, KEY_SHARDS)];
+			packedseed   = new byte[DNAString.arrToSeedLen(SEED_LEN, 1)];
+			roll         = new RollingSeed(SEED_LEN, CANONICAL_SEEDS);
+			SEED_SPAN    = SEED_LEN;
+			ANCHOR_LEN   = SEED_LEN;
+			
+			if (conf.get("SEED_PATTERN") != null)
+			{
+				try
+				{
+					SEED_PATTERN = new SpacedSeeds(conf.get("SEED_PATTERN"));
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e.getMessage());
+				}
+				
+				roll       = new RollingSeed(SEED_PATTERN);
+				SEED_SPAN  = SEED_PATTERN.span;
+				ANCHOR_LEN = 0;
+			}
+			
+			MINIMIZER_WINDOW = Integer.parseInt(conf.get("MINIMIZER_WINDOW", "1"));
+			PIECE_LEN        = SEED_SPAN + MINIMIZER_WINDOW - 1;
+			PIECE_STEP       = (SEED_PATTERN != null) ? 1 : PIECE_LEN;
+			
+			if (MINIMIZER_WINDOW > 1)
+			{
+				windows = new MinimizerWindow(MINIMIZER_WINDOW);
+				lead    = new RollingSeed(SEED_LEN, CANONICAL_SEEDS);
+			}
+			
+			HOT_SEED_SHARDS = Integer.parseInt(conf.get("HOT_SEED_SHARDS", "1"));
+			HOT_SEED_COUNT  = Integer.parseInt(conf.get("HOT_SEED_COUNT", "1000"));
+			POSITION_ONLY_REFS = Integer.parseInt(conf.get("POSITION_ONLY_REFS", "0")) == 1;
+			POSITION_ONLY_READS = Integer.parseInt(conf.get("POSITION_ONLY_READS", "0")) == 1;
+			
+			if (HOT_SEED_SHARDS > 1)
+			{
+				try
+				{
+					hotSeeds = SketchSeeds.load(conf);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Couldn't load the seed sketch: " + e.getMessage());
+				}
+			}
+			
+			if ((conf.get("MASKED_SEEDS") != null) && conf.get("REPEAT_MASK", "drop").equals("drop"))
+			{
+				try
+				{
+					masked = CountSeeds.load(conf);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Couldn't load the masked seeds: " + e.getMessage());
+				}
+			}
+		}
+		
+		
+		//------------------------- isMasked --------------------------
+		// True if the seed is too frequent in the reference to use
+		
+		private boolean isMasked(RollingSeed seed)
+		{
+			return masked.count(seed.key()) != 0;
+		}
+		
+		
+		//------------------------- seedShards --------------------------
+		// Number of shards the seed of roll is spread over
+		
+		private int seedShards(Reporter reporter)
+		{
+			if ((REDUNDANCY > 1) && roll.isRepeat())
+			{
+				return REDUNDANCY;
+			}
+			
+			if (hotSeeds != null)
+			{
+				roll.toSeed(packedseed, 0, 0, 1, 0);
+				
+				if (hotSeeds.estimate(packedseed, 0, packedseed.length-1) > HOT_SEED_COUNT)
+				{
+					reporter.incrCounter(ISREF ? SeedSketch.Counter.HOT_REF_SEEDS : SeedSketch.Counter.HOT_QRY_SEEDS, 1);
+					return HOT_SEED_SHARDS;
+				}
+			}
+			
+			return 1;
+		}
+
+		
+		//------------------------- emit --------------------------
+		// Collect a tuple under the key of the seed of roll
+		
+		private void emit(int shard, int isqry, MerRecordWritable value, 
+				          OutputCollector<WritableComparable, MerRecordWritable> output) throws IOException
+		{
+			if (LONG_SEED_KEYS)
+			{
+				seedKey.set(SeedKey.make(roll.bits, shard, SHARD_BITS, isqry));
+				output.collect(seedKey, value);
+			}
+			else
+			{
+				roll.toSeed(seedbuffer, 0, shard, KEY_SHARDS, isqry);
+				seed.set(seedbuffer, 0, seedbuffer.length);
+				output.collect(seed, value);
+			}
+		}
+
+		
+		//------------------------- emitRef --------------------------
+		// Emit the reference tuple of the seed of roll, at start in the chunk and 
+		// realoffset in the reference
+		
+		private void emitRef(int start, int realoffset, 
+				             OutputCollector<WritableComparable, MerRecordWritable> output, 
+				             Reporter reporter) throws IOException
+		{
+			int seqlen = chunk.len;
+			
+			seedInfo.offset    = realoffset;
+			seedInfo.isFlipped = roll.isFlipped();
+
+            // figure out the ranges for the flanking sequence
+			int leftstart = start-FLANK_LEN;
+			if (leftstart < 0) { leftstart = 0; }
+			int leftlen = start-leftstart;
+			
+			int rightstart = start+ANCHOR_LEN;
+			int rightend = rightstart + FLANK_LEN;
+			if (rightend > seqlen) { rightend = seqlen; }
+			int rightlen = rightend-rightstart;
+			
+			if (POSITION_ONLY_REFS) { leftlen = 0; rightlen = 0; }
+			
+			seedValue.set(seedInfo, chunk, leftstart, leftlen, rightstart, rightlen);
+			
+			// every shard of the seed gets a copy of the reference tuple
+			int shards = seedShards(reporter);
+			
+			for (int r = 0; r < shards; r++)
+			{
+				emit(r, 0, seedValue, output);
+			}
+		}
+		
+		
+		//------------------------- emitMinimizers --------------------------
+		// Emit the mers in [startoffset, end) of the chunk that are the smallest of some window
+		// of MINIMIZER_WINDOW mers. The windows reach w-1 mers past both ends of the range, 
+		// which is within the flanks of the chunk except at the ends of the reference, where 
+		// the windows that would stick out don't exist.
+		
+		private void emitMinimizers(int startoffset, int end, int realoffsetstart, 
+				                    OutputCollector<WritableComparable, MerRecordWritable> output, 
+				                    Reporter reporter) throws IOException
+		{
+			int w  = MINIMIZER_WINDOW;
+			int lo = Math.max(0, startoffset - (w-1));
+			int hi = Math.min(chunk.len - SEED_LEN, end - 1 + (w-1));
+			
+			lead.reset(chunk, lo);
+			roll.reset(chunk, startoffset);
+			windows.reset(lo);
+			
+			int start = startoffset;
+			
+			for (int q = lo; q <= hi; q++, lead.advance())
+			{
+				boolean valid = !lead.hasN();
+				
+				if (valid && (masked != null) && isMasked(lead))
+				{
+					if ((q >= startoffset) && (q < end)) { reporter.incrCounter(MaskedSeeds.Counter.MASKED_REF_SEEDS, 1); }
+					valid = false;
+				}
+				
+				windows.add(valid ? lead.order() : 0, valid);
+				
+				// the window starting at start is done, so it is in no more windows
+				if ((q - start == w - 1) && (start < end))
+				{
+					if (windows.isMinimizer(start)) { emitRef(start, realoffsetstart + start - startoffset, output, reporter); }
+					start++;
+					roll.advance();
+				}
+			}
 			
-			seedbuffer   = new byte[DNAString.arrToSeedLen(SEED_LEN, REDUNDANCY)];
+			// the last mers of the reference, past the last whole window
+			for (; start < end; start++, roll.advance())
+			{
+				if (windows.isMinimizer(start)) { emitRef(start, realoffsetstart + start - startoffset, output, reporter); }
+			}
 		}
 
 		
 		//------------------------- map --------------------------
 		public void map(IntWritable id, BytesWritable rawRecord,
-				        OutputCollector<BytesWritable, BytesWritable> output, 
+				        OutputCollector<WritableComparable, MerRecordWritable> output, 
 				        Reporter reporter) throws IOException 
 		{
-			record.fromBytes(rawRecord);
-			
-			byte [] seq         = record.m_sequence;
-			int realoffsetstart = record.m_offset;
-			boolean isLast      = record.m_lastChunk;
-			
 			seedInfo.id          = id.get();
 			seedInfo.isReference = ISREF;
 			seedInfo.isRC        = false;
 			
-			int seqlen = seq.length;
-				
 			if (ISREF)
 			{
 				//---------------------- Sequence is a chunk of the reference -----------
 				
+				record.fromBytes(rawRecord, chunk);
+				
+				int realoffsetstart = record.m_offset;
+				boolean isLast      = record.m_lastChunk;
+				int seqlen          = chunk.len;
+				
 				int startoffset = 0;
 
 				// If I'm not the first chunk, shift over so there is room for the left flank
 				if (realoffsetstart != 0)
 				{
-					startoffset = CloudBurst.CHUNK_OVERLAP + 1 - FLANK_LEN - SEED_LEN;
+					startoffset = CloudBurst.CHUNK_OVERLAP + 1 - FLANK_LEN - ANCHOR_LEN;
 					realoffsetstart += startoffset;
 				}
 
 				// stop so the last mer will just fit
-				int end = seqlen - SEED_LEN + 1;
+				int end = seqlen - SEED_SPAN + 1;
 
 				// if I'm not the last chunk, stop so the right flank will fit as well
 				if (!isLast)
 				{
-					end -= FLANK_LEN;
+					end = seqlen - ANCHOR_LEN - FLANK_LEN + 1;
 				}
 
+				if (startoffset >= end)
+				{
+					return;
+				}
+				
+				if (MINIMIZER_WINDOW > 1)
+				{
+					emitMinimizers(startoffset, end, realoffsetstart, output, reporter);
+					return;
+				}
+				
+				roll.reset(chunk, startoffset);
+				
 				// emit the mers starting at every position in the range
-				for (int start = startoffset, realoffset = realoffsetstart; start < end; start++, realoffset++)
+				for (int start = startoffset, realoffset = realoffsetstart; start < end; start++, realoffset++, roll.advance())
 				{						
-					if (DNAString.arrHasN(seq, start, SEED_LEN)) { continue; } // don't bother with seeds with n's
-					
-					seedInfo.offset = realoffset;
-
-                    // figure out the ranges for the flanking sequence
-					int leftstart = start-FLANK_LEN;
-					if (leftstart < 0) { leftstart = 0; }
-					int leftlen = start-leftstart;
-					
-					int rightstart = start+SEED_LEN;
-					int rightend = rightstart + FLANK_LEN;
-					if (rightend > seqlen) { rightend = seqlen; }
-					int rightlen = rightend-rightstart;
+					if (roll.hasN()) { continue; } // don't bother with seeds with n's
 					
-					BytesWritable seedbinary = seedInfo.toBytes(seq, leftstart, leftlen, rightstart, rightlen);
-					
-					if ((REDUNDANCY > 1) && (DNAString.repseed(seq, start, SEED_LEN)))
-					{
-						for (int r = 0; r < REDUNDANCY; r++)
-						{
-							DNAString.arrToSeed(seq, start, SEED_LEN, seedbuffer, 0, r, REDUNDANCY, 0);
-							seed.set(seedbuffer, 0, seedbuffer.length);
-
-							output.collect(seed, seedbinary);
-						}
-					}
-					else
+					if ((masked != null) && isMasked(roll))
 					{
-						DNAString.arrToSeed(seq, start, SEED_LEN, seedbuffer, 0, 0, REDUNDANCY, 0);
-						seed.set(seedbuffer, 0, seedbuffer.length);
-
-						output.collect(seed, seedbinary);						
+						reporter.incrCounter(MaskedSeeds.Counter.MASKED_REF_SEEDS, 1);
+						continue;
 					}
+					
+					emitRef(start, realoffset, output, reporter);
 				}
 			}
 			else
 			{
 				//------------------------ Sequence is a read record -----------------
 				
+				record.fromBytes(rawRecord);
+				
+				byte [] seq = record.m_sequence;
+				int seqlen  = seq.length;
+				
 				if (seqlen < MIN_READ_LEN)
 				{
 					throw new IOException("ERROR: seqlen=" + seqlen + " < MIN_READ_LEN=" + MIN_READ_LEN + " in " + curfile);
@@ -181,8 +509,13 @@ public class MerReduce {
 				}
 				
 				if (numN > K) { return; }
+				
+				boolean readMasked = false;
+				
+				// canonical seeds already stand for both strands
+				int strands = CANONICAL_SEEDS ? 1 : 2;
 
-				for (int rc = 0; rc < 2; rc++)
+				for (int rc = 0; rc < strands; rc++)
 				{
 					if (rc == 1) 
 					{
@@ -192,94 +525,323 @@ public class MerReduce {
 					}
 
 					// only emit the non-overlapping mers
-					for (int i = 0; i + SEED_LEN <= seqlen; i += SEED_LEN)
+					// with minimizers each piece is one window, and emits its smallest seed,
+					// spaced seeds are emitted at every placement
+					for (int p = 0; p + PIECE_LEN <= seqlen; p += PIECE_STEP)
 					{
-						if (DNAString.arrHasN(seq, i, SEED_LEN)) { continue; }
+						int i = -1;
+						long best = 0;
+						boolean pieceMasked = false;
+						
+						if ((p > 0) && (roll.start() == p - 1)) { roll.advance(); } else { roll.reset(seq, p); }
 						
-						if ((REDUNDANCY > 1) && (DNAString.repseed(seq, i, SEED_LEN)))
+						for (int j = p; j + SEED_SPAN <= p + PIECE_LEN; j++, roll.advance())
 						{
-							DNAString.arrToSeed(seq, i, SEED_LEN, seedbuffer, 0, seedInfo.id, REDUNDANCY, 1);	
+							if (roll.hasN()) { continue; }
+							
+							if ((masked != null) && isMasked(roll))
+							{
+								reporter.incrCounter(MaskedSeeds.Counter.MASKED_QRY_SEEDS, 1);
+								pieceMasked = true;
+								continue;
+							}
+							
+							if (MINIMIZER_WINDOW == 1) { i = j; break; }
+							
+							// ties go to the leftmost, the reference emits them all
+							long order = roll.order();
+							if ((i == -1) || (order < best)) { i = j; best = order; }
 						}
-						else
+						
+						if (i == -1)
 						{
-							DNAString.arrToSeed(seq, i, SEED_LEN, seedbuffer, 0, 0, REDUNDANCY, 1);
+							if (pieceMasked) { readMasked = true; }
+							continue;
 						}
 						
-						seed.set(seedbuffer, 0, seedbuffer.length);
+						if (roll.start() != i) { roll.reset(seq, i); }
+						
+						// while each read only goes to one of them
+						int shards = seedShards(reporter);
 
-						seedInfo.offset = i;
+						seedInfo.offset    = i;
+						seedInfo.isFlipped = roll.isFlipped();
 						
 	                    // figure out the ranges for the flanking sequence
 						int leftstart = 0;
 						int leftlen = i;
 						
-						int rightstart = i+SEED_LEN;
+						int rightstart = i+ANCHOR_LEN;
 						int rightlen = seqlen-rightstart;
+						
+						if (POSITION_ONLY_READS) { leftlen = 0; rightlen = 0; }
 
-						output.collect(seed, seedInfo.toBytes(seq, leftstart, leftlen, rightstart, rightlen));
+						seedValue.set(seedInfo, seq, leftstart, leftlen, rightstart, rightlen);
+						emit(seedInfo.id % shards, 1, seedValue, output);
+						
+						if (roll.isPalindrome())
+						{
+							// the reference tuples of the seed could be on either strand of the read
+							seedInfo.isFlipped = true;
+							seedValue.set(seedInfo, seq, leftstart, leftlen, rightstart, rightlen);
+							emit(seedInfo.id % shards, 1, seedValue, output);
+						}
 					}
 				}
+				
+				if (readMasked)
+				{
+					reporter.incrCounter(MaskedSeeds.Counter.MASKED_READS, 1);
+				}
 			}
 		}
 	}
 	
 	
-	// -- Use a customer partitioner so reference and qry seeds will be grouped together
-	public static class PartitionMers implements Partitioner<BytesWritable, BytesWritable>
+	//------------------------- IndexedMapClass --------------------------
+	// Map-only alignment against a SeedIndex of the reference (SEED_INDEX=dir). The seeds
+	// of each read are made by a MapClass, looked up in the memory-mapped index, and the
+	// reference tuples of a hit are rebuilt from the packed genome and handed to a 
+	// ReduceClass together with the query tuple, as if they had met in the shuffle.
+	
+	public static class IndexedMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, IntWritable, BytesWritable>
 	{
-		private static int seedlen;
+		private MapClass seeder = new MapClass();
+		private ReduceClass aligner = new ReduceClass();
+		private SeedIndex index;
+		
+		private int SEED_LEN;
+		private int FLANK_LEN;
+		private int KEY_LEN;
+		
+		// reference tuples are rebuilt from the packed genome
+		private GenomeFlanks flanks;
+		private byte [] refseed;
+		
+		private MerRecordWritable qrytuple = new MerRecordWritable();
+		private GroupIterator group = new GroupIterator();
+		
+		private OutputCollector<IntWritable, BytesWritable> output;
+		private Reporter reporter;
+		
+		//------------------------- configure --------------------------
 		
 		public void configure(JobConf conf)
 		{
-			int SEED_LEN     = Integer.parseInt(conf.get("SEED_LEN"));
-			int REDUNDANCY   = Integer.parseInt(conf.get("REDUNDANCY"));
+			seeder.configure(conf);
+			seeder.ISREF = false;
+			seeder.LONG_SEED_KEYS = false;
+			aligner.configure(conf);
 			
-			initBuffer(SEED_LEN, REDUNDANCY);
+			SEED_LEN  = Integer.parseInt(conf.get("SEED_LEN"));
+			FLANK_LEN = Integer.parseInt(conf.get("FLANK_LEN"));
+			KEY_LEN   = (SEED_LEN+3)/4;
+			
+			refseed = new byte[DNAString.arrToSeedLen(SEED_LEN, 1)];
+			
+			String dir = conf.get("SEED_INDEX");
+			
+			try
+			{
+				index = SeedIndex.open(localCacheFile(conf, dir + "/" + SeedIndex.INFO),
+						               localCacheFile(conf, dir + "/" + SeedIndex.KEYS),
+						               localCacheFile(conf, dir + "/" + SeedIndex.STARTS),
+						               localCacheFile(conf, dir + "/" + SeedIndex.POSITIONS),
+						               localCacheFile(conf, dir + "/" + SeedIndex.GENOME));
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Couldn't open the seed index " + dir + ": " + e.getMessage());
+			}
+			
+			flanks = new GenomeFlanks(index.genome, SEED_LEN, FLANK_LEN);
 		}
 		
-		public static void initBuffer(int slen, int redundancy)
+		
+		//------------------------- map --------------------------
+		public void map(IntWritable id, BytesWritable rawRecord,
+				        OutputCollector<IntWritable, BytesWritable> output, 
+				        Reporter reporter) throws IOException 
 		{
-			seedlen = slen;
+			this.output   = output;
+			this.reporter = reporter;
+			
+			seeder.map(id, rawRecord, joinSeed, reporter);
 		}
 		
-		public int getPartition(BytesWritable key, BytesWritable value, int numPartitions)
+		
+		//------------------------- joinSeed --------------------------
+		// Align a query tuple against the reference occurrences of its seed
+		
+		private OutputCollector<WritableComparable, MerRecordWritable> joinSeed = new OutputCollector<WritableComparable, MerRecordWritable>()
 		{
-			// hash over everything except the last byte (ref/qry flag)
-			int part = (WritableComparator.hashBytes(key.get(), key.getSize()-1) & Integer.MAX_VALUE) % numPartitions;
+			public void collect(WritableComparable key, MerRecordWritable value) throws IOException
+			{
+				BytesWritable seed = (BytesWritable) key;
+				long slot = index.find(MaskedSeeds.key(seed.get(), 0, KEY_LEN));
+				
+				if (slot == -1) { return; }
+				
+				// the reference tuples are serialized into the same buffer
+				qrytuple.set(value);
+				
+				group.reset(seed.get(), index.start(slot), index.end(slot));
+				aligner.reduce(seed, group, output, reporter);
+			}
+		};
+		
+		
+		//------------------------- refTuple --------------------------
+		// The reference tuple at a position, or null if the seed there is a different
+		// one that only shares the hashed key
+		
+		private MerRecordWritable refTuple(byte [] qryseed, long position)
+		{
+			flanks.load(SeedIndex.positionId(position), SeedIndex.positionOffset(position));
 			
-			//byte [] seedstr = DNAString.seedToArr(key.get(), seedlen, 1);
-			//System.out.println("partition: " + DNAString.bytesToString(seedstr) + " " + part);
-			//DNAString.printHex("raw", key.get(), 0, key.getSize());
+			if (SEED_LEN > 32)
+			{
+				DNAString.arrToSeed(flanks.window, flanks.seedStart, SEED_LEN, refseed, 0, 0, 1, 0);
+				
+				for (int i = 0; i < KEY_LEN; i++)
+				{
+					if (refseed[i] != qryseed[i]) { return null; }
+				}
+			}
 			
-			return part;
-		}	
-	}	
-	
-	
+			return flanks.toBytes();
+		}
 		
-	
-
-//		// -- Use a customer comparator so reference seeds are grouped with qry seeds with the same mer
-//		public static class GroupMers implements RawComparator<BytesWritable>
-//		{		
-//			public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) 
-//			{
-//				//System.err.println("bcomparing: " + b1.toString() + " and " + b2.toString());
-//				
-//				int len = l1-1;
-//				
-//				for (int i = 0; i < len; i++)
-//				{
-//					int diff = b1[i] - b2[i];
-//					if (diff != 0) { return diff; }
-//				}
-//				
-//				return 0;
-//			}
-//			
-//			public int compare(BytesWritable o1, BytesWritable o2) 
-//			{
-//				return compare(o1.get(), o1.getCapacity(), o1.getSize(), o2.get(), o2.getCapacity(), o2.getSize());
+		
+		//------------------------- GroupIterator --------------------------
+		// The values of a seed group: the reference tuples of the positions in the index,
+		// decoded as they are read, followed by the query tuple
+		
+		private class GroupIterator implements Iterator<MerRecordWritable>
+		{
+			private byte [] qryseed;
+			private long next;
+			private long end;
+			private boolean qrySent;
+			private MerRecordWritable pending;
+			
+			public void reset(byte [] qryseed, long start, long end)
+			{
+				this.qryseed = qryseed;
+				this.next    = start;
+				this.end     = end;
+				qrySent = false;
+				pending = null;
+			}
+			
+			public boolean hasNext()
+			{
+				while ((pending == null) && (next < end))
+				{
+					pending = refTuple(qryseed, index.positions.get(next++));
+				}
+				
+				if ((pending == null) && !qrySent)
+				{
+					pending = qrytuple;
+					qrySent = true;
+				}
+				
+				return pending != null;
+			}
+			
+			public MerRecordWritable next()
+			{
+				hasNext();
+				
+				MerRecordWritable value = pending;
+				pending = null;
+				return value;
+			}
+			
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		}
+		
+		
+		//------------------------- close --------------------------
+		public void close() throws IOException
+		{
+			aligner.close();
+		}
+	}
+	
+	
+	// -- Use a customer partitioner so reference and qry seeds will be grouped together
+	public static class PartitionMers implements Partitioner<BytesWritable, MerRecordWritable>
+	{
+		private static int seedlen;
+		private static int keyshards;
+		
+		public void configure(JobConf conf)
+		{
+			int SEED_LEN     = Integer.parseInt(conf.get("SEED_LEN"));
+			
+			initBuffer(SEED_LEN, keyShards(conf));
+		}
+		
+		public static void initBuffer(int slen, int shards)
+		{
+			seedlen   = slen;
+			keyshards = shards;
+		}
+		
+		public int getPartition(BytesWritable key, MerRecordWritable value, int numPartitions)
+		{
+			if (keyshards > 1)
+			{
+				// hash over the seed, and put its shards on consecutive partitions so they land on different reducers
+				int len   = key.getSize()-2;
+				int shard = key.get()[len] & 0xFF;
+				int home  = (WritableComparator.hashBytes(key.get(), len) & Integer.MAX_VALUE) % numPartitions;
+				
+				return (home + shard) % numPartitions;
+			}
+			
+			// hash over everything except the last byte (ref/qry flag)
+			int part = (WritableComparator.hashBytes(key.get(), key.getSize()-1) & Integer.MAX_VALUE) % numPartitions;
+			
+			//byte [] seedstr = DNAString.seedToArr(key.get(), seedlen, 1);
+			//System.out.println("partition: " + DNAString.bytesToString(seedstr) + " " + part);
+			//DNAString.printHex("raw", key.get(), 0, key.getSize());
+			
+			return part;
+		}	
+	}	
+	
+	
+		
+	
+
+//		// -- Use a customer comparator so reference seeds are grouped with qry seeds with the same mer
+//		public static class GroupMers implements RawComparator<BytesWritable>
+//		{		
+//			public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) 
+//			{
+//				//System.err.println("bcomparing: " + b1.toString() + " and " + b2.toString());
+//				
+//				int len = l1-1;
+//				
+//				for (int i = 0; i < len; i++)
+//				{
+//					int diff = b1[i] - b2[i];
+//					if (diff != 0) { return diff; }
+//				}
+//				
+//				return 0;
+//			}
+//			
+//			public int compare(BytesWritable o1, BytesWritable o2) 
+//			{
+//				return compare(o1.get(), o1.getCapacity(), o1.getSize(), o2.get(), o2.getCapacity(), o2.getSize());
 //			}
 //		}
 
@@ -328,28 +890,118 @@ public class MerReduce {
 	}
 
 	
+	// -- The same partitioning for SeedKey keys: hash over the bases, with the shards of a seed on consecutive partitions
+	public static class PartitionSeedKeys implements Partitioner<SeedKey, MerRecordWritable>
+	{
+		private int shardbits;
+		
+		public void configure(JobConf conf)
+		{
+			shardbits = SeedKey.shardBits(keyShards(conf));
+		}
+		
+		public int getPartition(SeedKey key, MerRecordWritable value, int numPartitions)
+		{
+			long bases = SeedKey.bases(key.get(), shardbits);
+			int hash   = (int) ((bases * 0x9E3779B97F4A7C15L) >>> 32);
+			int home   = (hash & Integer.MAX_VALUE) % numPartitions;
+			
+			return (home + SeedKey.shard(key.get(), shardbits)) % numPartitions;
+		}
+	}
+	
+	
+	// -- Group SeedKeys on everything above the ref/qry flag bit
+	public static class GroupSeedKeys extends WritableComparator
+	{
+		public GroupSeedKeys()
+		{
+			super(SeedKey.class);
+		}
+		
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) 
+		{
+			long k1 = readLong(b1, s1) >> 1;
+			long k2 = readLong(b2, s2) >> 1;
+			
+			return (k1 < k2) ? -1 : ((k1 == k2) ? 0 : 1);
+		}
+		
+		public int compare(WritableComparable wc1, WritableComparable wc2)
+		{
+			long k1 = ((SeedKey) wc1).get() >> 1;
+			long k2 = ((SeedKey) wc2).get() >> 1;
+			
+			return (k1 < k2) ? -1 : ((k1 == k2) ? 0 : 1);
+		}
+	}
+
+	
 	//------------------------- ReduceClass --------------------------
 	public static class ReduceClass extends MapReduceBase implements
-			Reducer<BytesWritable, BytesWritable, IntWritable, BytesWritable> 
+			Reducer<WritableComparable, MerRecordWritable, IntWritable, BytesWritable> 
 	{
 		private static AlignmentRecord noalignment = new AlignmentRecord(-1, -1, -1, -1, true);
-		private static AlignmentRecord fullalignment = new AlignmentRecord();
-		private static IntWritable qryid = new IntWritable();
 				
-		private static int K;
-		private static int SEED_LEN;
-		private static int BLOCK_SIZE;
-		private static int REDUNDANCY;
-		private static boolean ALLOW_DIFFERENCES = false;
-		private static boolean FILTER_ALIGNMENTS = false;
+		private int K;
+		private int SEED_LEN;
+		private int BLOCK_SIZE;
+		private int REDUNDANCY;
+		private int SHARD_BITS;
+		private int REDUCE_THREADS = 1;
+		private boolean ALLOW_DIFFERENCES = false;
+		private boolean FILTER_ALIGNMENTS = false;
+		private boolean BITVECTOR_KDIFF = false;
+		private boolean MEMOIZE_FLANKS = false;
+		
+		// the pieces of the reads the seeds were taken from, longer than SEED_LEN with MINIMIZER_WINDOW
+		private int PIECE_LEN;
+		
+		// spaced seeds, null if they are contiguous, and the bases between the flanks like MapClass
+		private SpacedSeeds SEED_PATTERN = null;
+		private int ANCHOR_LEN;
+		
+		// cheap tests run before extending a pair in differences mode, null for none
+		private CandidateFilter [] filters = null;
+		
+		// reference tuples beyond this many bytes per seed group are spilled to disk
+		private long REF_BUFFER_BYTES;
+		private File spillDir;
+		
+		private RefTupleStore reftuples;
+		private TupleStore qrytuples;
 		
-		private static List<MerRecord> reftuples = new ArrayList<MerRecord>();
-		private static List<MerRecord> qrytuples = new ArrayList<MerRecord>();
+		// REPEAT_MASK=sample: only an evenly spaced sample of MAX_SEED_OCCURRENCES reference 
+		// tuples is kept for the seeds that occur more often, null if not enabled
+		private MaskedSeeds sampled = null;
+		private int MAX_SEED_OCCURRENCES;
 		
-		private static AlignmentRecord [] bestalignments;
-		private static AlignmentRecord [] secondalignments;
-		private static boolean [] recordsecond;
-		private static int [] bestk;
+		// POSITION_ONLY_REFS=1: the reference tuples of a group are only positions, which are
+		// held until the first query tuple shows the group is worth decoding, null if not enabled
+		private GenomeFlanks genomeFlanks = null;
+		private long [] refPositions = new long [0];
+		private int numRefPositions = 0;
+		
+		// POSITION_ONLY_READS=1: the query tuples are rebuilt from the read store as they arrive
+		private ReadFlanks readFlanks = null;
+		
+		// scratch state for aligning on the reduce thread
+		private AlignerContext context;
+		
+		// multithreaded mode: seed groups are aligned by a pool of workers, each with its own context
+		private ExecutorService workers = null;
+		private Semaphore pending = null;
+		private ThreadLocal<AlignerContext> workerContext = null;
+		private OutputCollector<IntWritable, BytesWritable> sharedOutput = null;
+		private Reporter sharedReporter = null;
+		private volatile IOException workerFailure = null;
+		
+		// heavy seed groups: the block grid of a group with at least HEAVY_GROUP_PAIRS pairs
+		// is split into tiles aligned by a pool of HEAVY_GROUP_THREADS threads
+		private int HEAVY_GROUP_THREADS = 1;
+		private long HEAVY_GROUP_PAIRS;
+		private ExecutorService forkPool = null;
+		private ThreadLocal<AlignerContext> forkContext = null;
 		
 		//------------------------- configure --------------------------	
 		// Get the runtime parameters
@@ -361,129 +1013,408 @@ public class MerReduce {
 			ALLOW_DIFFERENCES = Integer.parseInt(conf.get("ALLOW_DIFFERENCES")) == 1;
 			BLOCK_SIZE        = Integer.parseInt(conf.get("BLOCK_SIZE"));
 			REDUNDANCY        = Integer.parseInt(conf.get("REDUNDANCY"));
+			SHARD_BITS        = SeedKey.shardBits(keyShards(conf));
 			FILTER_ALIGNMENTS = Integer.parseInt(conf.get("FILTER_ALIGNMENTS")) == 1;
+			BITVECTOR_KDIFF   = Integer.parseInt(conf.get("BITVECTOR_KDIFF", "0")) == 1;
+			REDUCE_THREADS    = Integer.parseInt(conf.get("REDUCE_THREADS", "1"));
+			MEMOIZE_FLANKS    = Integer.parseInt(conf.get("MEMOIZE_FLANKS", "0")) == 1;
+			PIECE_LEN         = SEED_LEN + Integer.parseInt(conf.get("MINIMIZER_WINDOW", "1")) - 1;
+			ANCHOR_LEN        = SEED_LEN;
 			
-			if (FILTER_ALIGNMENTS)
+			if (conf.get("SEED_PATTERN") != null)
+			{
+				try
+				{
+					SEED_PATTERN = new SpacedSeeds(conf.get("SEED_PATTERN"));
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e.getMessage());
+				}
+				
+				ANCHOR_LEN = 0;
+			}
+			HEAVY_GROUP_THREADS = Integer.parseInt(conf.get("HEAVY_GROUP_THREADS", "1"));
+			HEAVY_GROUP_PAIRS   = Long.parseLong(conf.get("HEAVY_GROUP_PAIRS", "1000000"));
+			
+			if (ALLOW_DIFFERENCES)
+			{
+				// mismatch mode already counts the mismatches of every pair exactly before extending
+				filters = loadFilters(conf.get("CANDIDATE_FILTERS", ""));
+			}
+			
+			// by default a quarter of the heap, shared by the seed groups that may be held at once
+			long groups = (REDUCE_THREADS > 1) ? 2 * REDUCE_THREADS + 1 : 1;
+			REF_BUFFER_BYTES  = Long.parseLong(conf.get("REF_BUFFER_BYTES", 
+					                                     Long.toString(Runtime.getRuntime().maxMemory() / 4 / groups)));
+			spillDir          = new File(conf.get("REF_SPILL_DIR", System.getProperty("java.io.tmpdir")));
+			
+			if ((conf.get("MASKED_SEEDS") != null) && conf.get("REPEAT_MASK", "drop").equals("sample"))
+			{
+				MAX_SEED_OCCURRENCES = Integer.parseInt(conf.get("MAX_SEED_OCCURRENCES"));
+				
+				try
+				{
+					sampled = CountSeeds.load(conf);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Couldn't load the masked seeds: " + e.getMessage());
+				}
+			}
+			
+			if (Integer.parseInt(conf.get("POSITION_ONLY_REFS", "0")) == 1)
+			{
+				String path = conf.get("PACKED_GENOME");
+				
+				try
+				{
+					genomeFlanks = new GenomeFlanks(PackedSequenceStore.open(localCacheFile(conf, path)), 
+							                        SEED_LEN, Integer.parseInt(conf.get("FLANK_LEN")));
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Couldn't open the packed genome " + path + ": " + e.getMessage());
+				}
+			}
+			
+			if (Integer.parseInt(conf.get("POSITION_ONLY_READS", "0")) == 1)
+			{
+				String path = conf.get("READ_STORE");
+				
+				try
+				{
+					readFlanks = new ReadFlanks(PackedSequenceStore.open(localCacheFile(conf, path)), SEED_LEN);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Couldn't open the read store " + path + ": " + e.getMessage());
+				}
+			}
+			
+			context   = newContext();
+			reftuples = newRefStore();
+			qrytuples = newQryStore();
+			
+			if (REDUCE_THREADS > 1)
+			{
+				workers = Executors.newFixedThreadPool(REDUCE_THREADS);
+				
+				// bound the number of seed groups held in memory waiting for a worker
+				pending = new Semaphore(2 * REDUCE_THREADS);
+				
+				workerContext = new ThreadLocal<AlignerContext>()
+				{
+					protected AlignerContext initialValue() { return newContext(); }
+				};
+			}
+			
+			if (HEAVY_GROUP_THREADS > 1)
+			{
+				forkPool = Executors.newFixedThreadPool(HEAVY_GROUP_THREADS);
+				
+				forkContext = new ThreadLocal<AlignerContext>()
+				{
+					protected AlignerContext initialValue() { return newContext(); }
+				};
+			}
+		}
+		
+		
+		//------------------------- newContext --------------------------
+		// Allocate the scratch state for one aligning thread
+		
+		private AlignerContext newContext()
+		{
+			AlignerContext ctx = new AlignerContext(K, BITVECTOR_KDIFF, BLOCK_SIZE, FILTER_ALIGNMENTS);
+			
+			if (filters != null)
+			{
+				ctx.filterRejected = new long [filters.length];
+			}
+			
+			return ctx;
+		}
+		
+		
+		//------------------------- newRefStore --------------------------
+		// Allocate a store for the reference tuples of a seed group
+		
+		private RefTupleStore newRefStore()
+		{
+			return new RefTupleStore(REF_BUFFER_BYTES, spillDir, 
+					                 !ALLOW_DIFFERENCES || (filters != null), filters != null);
+		}
+		
+		
+		//------------------------- newQryStore --------------------------
+		// Allocate a store for a batch of query tuples
+		
+		private TupleStore newQryStore()
+		{
+			return new TupleStore(!ALLOW_DIFFERENCES || (filters != null), filters != null);
+		}
+		
+		
+		//------------------------- loadFilters --------------------------
+		// Parse a comma separated list of candidate filters, applied in that order
+		
+		public static CandidateFilter [] loadFilters(String spec)
+		{
+			List<CandidateFilter> list = new ArrayList<CandidateFilter>();
+			
+			for (String name : spec.split(","))
+			{
+				name = name.trim();
+				
+				if      (name.length() == 0)               { continue; }
+				else if (name.equals("composition"))       { list.add(new CompositionFilter()); }
+				else if (name.equals("qgram"))             { list.add(new QGramFilter()); }
+				else
+				{
+					throw new IllegalArgumentException("Unknown candidate filter: " + name);
+				}
+			}
+			
+			if (list.size() == 0) { return null; }
+			
+			return list.toArray(new CandidateFilter[list.size()]);
+		}
+		
+		
+		//------------------------- rejectPair --------------------------
+		// True if some filter proves query q can't align to reference r with at most K differences
+		
+		private boolean rejectPair(AlignerContext ctx, TupleStore qrys, int q, TupleStore refs, int r)
+		{
+			for (int f = 0; f < filters.length; f++)
 			{
-				bestalignments   = new AlignmentRecord[BLOCK_SIZE];
-				secondalignments = new AlignmentRecord[BLOCK_SIZE];
-				recordsecond     = new boolean[BLOCK_SIZE];
-				bestk            = new int[BLOCK_SIZE];
+				int bound = filters[f].lowerBound(qrys.leftSig[q],  refs.leftSig[r],  K);
+				
+				if (bound <= K)
+				{
+					bound += filters[f].lowerBound(qrys.rightSig[q], refs.rightSig[r], K);
+				}
 				
-				for (int i = 0; i < BLOCK_SIZE; i++)
+				if (bound > K)
 				{
-					bestalignments[i]   = new AlignmentRecord();
-					secondalignments[i] = new AlignmentRecord();
+					ctx.filterRejected[f]++;
+					return true;
 				}
 			}
 			
-			LandauVishkin.configure(K);
+			ctx.filterPassed++;
+			return false;
+		}
+		
+		
+		//------------------------- reportFilters --------------------------
+		// Add the filter counts of a context to the job counters
+		
+		private void reportFilters(AlignerContext ctx, Reporter reporter)
+		{
+			if ((filters == null) || (reporter == null)) { return; }
+			
+			for (int f = 0; f < filters.length; f++)
+			{
+				reporter.incrCounter(filters[f].getCounter(), ctx.filterRejected[f]);
+				ctx.filterRejected[f] = 0;
+			}
+			
+			reporter.incrCounter(CandidateFilter.Counter.PASSED, ctx.filterPassed);
+			ctx.filterPassed = 0;
 		}
 				
 		
+		//------------------------- extendFlank --------------------------
+		// Extend query q along reference r through their left or right flanks with at most k differences
+		
+		private AlignInfo extendFlank(AlignerContext ctx, TupleStore qrys, int q, TupleStore refs, int r, 
+				                      boolean left, int k) throws IOException
+		{
+			if (ALLOW_DIFFERENCES)
+			{
+				if (left)
+				{
+					return cloudBurst.LandauVishkin.extend(ctx, refs.left(r, ctx.refFlank), qrys.left(q, ctx.qryFlank), k);
+				}
+				
+				return cloudBurst.LandauVishkin.extend(ctx, refs.right(r, ctx.refFlank), qrys.right(q, ctx.qryFlank), k);
+			}
+			
+			if (left)
+			{
+				return cloudBurst.LandauVishkin.kmismatch_packed(ctx, refs.leftPacked[r], qrys.leftPacked[q], k);
+			}
+			
+			return cloudBurst.LandauVishkin.kmismatch_packed(ctx, refs.rightPacked[r], qrys.rightPacked[q], k);
+		}
+		
+		
 		//------------------------- extend --------------------------
-		// Given an exact shared seed, try to extend to a full length alignment
+		// Given an exact shared seed, try to extend query q to a full length alignment to reference r
 		
-		public static AlignmentRecord extend(MerRecord qrytuple, MerRecord reftuple,
-						                     OutputCollector<IntWritable, BytesWritable> output, 
-						                     Reporter reporter) throws IOException 
+		public AlignmentRecord extend(AlignerContext ctx, TupleStore qrys, int q, TupleStore refs, int r) throws IOException 
 		{
-			int refStart    = reftuple.offset;
-			int refEnd      = reftuple.offset + SEED_LEN;
+			int refStart    = refs.offset[r];
+			int refEnd      = refs.offset[r] + ANCHOR_LEN;
 			int differences = 0;
+			int numdiffs    = 0;
+			
+			// the tuples are stored the way their canonical seed reads, so if that is the reverse
+			// complement of the reference, the flank on the left of the alignment is the right one
+			boolean mirrored = refs.isFlipped(r);
 			
 			try
 			{				
-				if (qrytuple.leftFlank.length != 0)
+				int leftflanklen  = mirrored ? qrys.rightLen[q] : qrys.leftLen[q];
+				int rightflanklen = mirrored ? qrys.leftLen[q]  : qrys.rightLen[q];
+				
+				// the seed is in a piece of the read that starts seedoffset bases to its left. The
+				// pieces were cut from the start of the strand the read was seeded on, so if the 
+				// alignment is on the other one, the piece shorter than PIECE_LEN is on the left.
+				int readlen    = qrys.leftLen[q] + ANCHOR_LEN + qrys.rightLen[q];
+				int tail       = (qrys.isFlipped(q) != mirrored) ? readlen % PIECE_LEN : 0;
+				int seedoffset = (leftflanklen - tail) % PIECE_LEN;
+				
+				if (leftflanklen != 0)
 				{
 					// at least 1 read base on the left needs to be aligned
-					int realleftflanklen = DNAString.dnaArrLen(qrytuple.leftFlank);
-					
 					// aligned the pre-reversed strings!
-					AlignInfo a = cloudBurst.LandauVishkin.extend(reftuple.leftFlank, 
-							                                       qrytuple.leftFlank, 
-							                                       K, ALLOW_DIFFERENCES);
+					AlignInfo a = extendFlank(ctx, qrys, q, refs, r, !mirrored, K);
 					
 					if (a.alignlen == -1) { return noalignment; } // alignment failed
-					if (!a.isBazeaYatesSeed(realleftflanklen, SEED_LEN)) { return noalignment; }
+					
+					if (SEED_PATTERN != null)
+					{
+						// save the mismatches, the right flank reuses the alignment
+						numdiffs = a.differencePositions(ctx.diffs, 0, leftflanklen-1, -1);
+					}
+					else if (!a.isBazeaYatesSeed(leftflanklen, PIECE_LEN, seedoffset)) { return noalignment; }
 					
 					refStart    -= a.alignlen;
 					differences = a.differences;
 				}
 				
-				if (qrytuple.rightFlank.length != 0)
+				if (rightflanklen != 0)
 				{
-					AlignInfo b = cloudBurst.LandauVishkin.extend(reftuple.rightFlank, 
-							                                       qrytuple.rightFlank, 
-							                                       K - differences, 
-							                                       ALLOW_DIFFERENCES);
+					AlignInfo b = extendFlank(ctx, qrys, q, refs, r, mirrored, K - differences);
 				
 					if (b.alignlen == -1) {	return noalignment;	} // alignment failed
+					
+					if (SEED_PATTERN != null)
+					{
+						// every placement of the pattern with no mismatch under it was hit, 
+						// so only the first one reports the alignment
+						numdiffs = b.differencePositions(ctx.diffs, numdiffs, leftflanklen, 1);
+						if (SEED_PATTERN.firstPlacement(ctx.diffs, numdiffs, readlen) != leftflanklen) { return noalignment; }
+					}
+					else
+					{
+						// the rest of the piece of the seed has to match as well
+						if (!b.matchesFirst(PIECE_LEN - SEED_LEN - seedoffset)) { return noalignment; }
+					}
 				
 					refEnd      += b.alignlen;
 					differences += b.differences;
 				}
 
-				fullalignment.m_refID       = reftuple.id;
-				fullalignment.m_refStart    = refStart;
-				fullalignment.m_refEnd      = refEnd;
-				fullalignment.m_differences = differences;
-				fullalignment.m_isRC        = qrytuple.isRC;
+				ctx.fullalignment.m_refID       = refs.id[r];
+				ctx.fullalignment.m_refStart    = refStart;
+				ctx.fullalignment.m_refEnd      = refEnd;
+				ctx.fullalignment.m_differences = differences;
+				ctx.fullalignment.m_isRC        = qrys.isRC(q) ^ (qrys.isFlipped(q) != mirrored);
 				
-				return fullalignment;
+				return ctx.fullalignment;
 			}
 			catch (Exception e)
 			{
-				throw new IOException("Problem with read:" + qrytuple.id + " :" + e.getMessage() + "\n" + getStackTrace(e));	
+				throw new IOException("Problem with read:" + qrys.id[q] + " :" + e.getMessage() + "\n" + getStackTrace(e));	
 			}
 		}
 		
 		
 		//------------------------- reduce --------------------------
-		public synchronized void reduce(BytesWritable mer, Iterator<BytesWritable> values,
-										OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
-										throws IOException 
+		public void reduce(WritableComparable mer, Iterator<MerRecordWritable> values,
+						   OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
+						   throws IOException 
 		{
 			Timer timer = new Timer();
 			
-			reftuples.clear();
-			qrytuples.clear();
+			checkWorkers();
+			
+			if (workers != null)
+			{
+				// hand the whole seed group to a worker, the reduce thread keeps reading
+				reftuples = newRefStore();
+				qrytuples = newQryStore();
+			}
+			else
+			{
+				reftuples.clear();
+				qrytuples.clear();
+			}
+			
+			numRefPositions = 0;
 
 			final boolean verbose = false;
 			String seedstr = "";
 			
 			if (verbose)
 			{
-				seedstr = DNAString.bytesToString(DNAString.seedToArr(mer.get(), SEED_LEN, REDUNDANCY));
+				seedstr = seedString(mer);
 				System.err.println("Working on: " + seedstr);
 			}
 			
-			MerRecord merIn;
+			// groups that spill are aligned on this thread, alongside any workers
+			OutputCollector<IntWritable, BytesWritable> out = output;
+			if (workers != null) { out = sharedOutput(output, reporter); }
 			
 			int totalr = 0;
 			int totalq = 0;
 			int qbatch = 0;
+			long qbytes = 0;
 			
-			// Reference mers are first, save them away
+			// reference occurrences of an over-represented seed, 0 if the group isn't sampled
+			int occurrences = 0;
+			int sampledout  = 0;
+			
+			if (sampled != null)
+			{
+				occurrences = sampled.count(maskKey(mer));
+			}
+			
+			// Reference mers are first, save them away
 			while (values.hasNext()) 
 			{
-				merIn = new MerRecord(values.next());
+				MerRecordWritable value = values.next();
 				
 				if (verbose)
 				{
-				  System.err.println("  Got: " + merIn.toString());
+				  System.err.println("  Got: " + value.toString());
 				}
 
-				if (merIn.isReference) 
+				if (value.isReference()) 
 				{
 					// just save away the reference tuples
 					totalr++;
-					reftuples.add(merIn);
+					
+					if ((occurrences != 0) && !inSample(totalr-1, occurrences))
+					{
+						sampledout++;
+					}
+					else if (genomeFlanks != null)
+					{
+						addRefPosition(GenomeFlanks.position(value));
+					}
+					else
+					{
+						reftuples.add(value);
+					}
 					
 					if (totalq != 0)
 					{
-						String ss = DNAString.bytesToString(DNAString.seedToArr(mer.get(), SEED_LEN, REDUNDANCY));
-						throw new IOException("ERROR: Saw a reference seed after a query seed for: " + ss);
+						throw new IOException("ERROR: Saw a reference seed after a query seed for: " + seedString(mer));
 					}
 				}	
 				else                   
@@ -495,24 +1426,72 @@ public class MerReduce {
 						
 						return;
 					}
+					
+					if ((totalq == 0) && (genomeFlanks != null))
+					{
+						loadRefPositions();
+					}
+					
+					if (readFlanks != null)
+					{
+						value = readFlanks.qryTuple(value);
+					}
 
-					qrytuples.add(merIn);
+					qrytuples.add(value);
 					totalq++;
 					qbatch++;
+					qbytes += RefTupleStore.cost(value);
+					
+					boolean full;
 					
-					if (qbatch == BLOCK_SIZE)
+					if (reftuples.isSpilled())
+					{
+						// every batch rereads the spilled references, so make the batches as big as the budget allows
+						full = (qbytes >= REF_BUFFER_BYTES);
+					}
+					else
 					{
-						alignBatch(output, reporter);
+						// memoized groups are aligned all at once so identical reads anywhere in the group are shared,
+						// and so are groups that may be heavy enough to split across the fork pool
+						full = (qbatch == BLOCK_SIZE) && (workers == null) && !MEMOIZE_FLANKS && (forkPool == null);
+					}
+					
+					if (full)
+					{
+						alignBatch(context, reftuples, qrytuples, out, reporter);
 					
 						qrytuples.clear();
 						qbatch = 0;
+						qbytes = 0;
+						reporter.progress();
 					}
 				}
 			}
 			
 			if (qbatch != 0)
 			{
-				alignBatch(output, reporter);
+				if ((workers == null) || reftuples.isSpilled())
+				{
+					alignBatch(context, reftuples, qrytuples, out, reporter);
+				}
+				else
+				{
+					submitGroup(reftuples, qrytuples, reporter);
+				}
+			}
+			
+			if (occurrences != 0)
+			{
+				reporter.incrCounter(MaskedSeeds.Counter.SAMPLED_GROUPS, 1);
+				reporter.incrCounter(MaskedSeeds.Counter.SAMPLED_OUT_REF_SEEDS, sampledout);
+				reporter.incrCounter(MaskedSeeds.Counter.SAMPLED_QRY_SEEDS, totalq);
+			}
+			
+			if (reftuples.isSpilled())
+			{
+				reporter.incrCounter(RefTupleStore.Counter.SPILLED_GROUPS, 1);
+				reporter.incrCounter(RefTupleStore.Counter.SPILLED_TUPLES, reftuples.numSpilled());
+				reftuples.clear();
 			}
 			
 			if (verbose)
@@ -522,87 +1501,591 @@ public class MerReduce {
 			}
 		}
 		
-		public static void alignBatch(OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException
+		
+		//------------------------- seedString --------------------------
+		private String seedString(WritableComparable mer)
+		{
+			if (mer instanceof SeedKey)
+			{
+				return SeedKey.seedString(((SeedKey) mer).get(), SHARD_BITS, SEED_LEN);
+			}
+			
+			return DNAString.bytesToString(DNAString.seedToArr(((BytesWritable) mer).get(), SEED_LEN, REDUNDANCY));
+		}
+		
+		
+		//------------------------- maskKey --------------------------
+		// The MaskedSeeds key of a seed group's key
+		
+		private long maskKey(WritableComparable mer)
+		{
+			if (mer instanceof SeedKey)
+			{
+				return SeedKey.maskKey(((SeedKey) mer).get(), SHARD_BITS, SEED_LEN);
+			}
+			
+			return MaskedSeeds.key(((BytesWritable) mer).get(), 0, (SEED_LEN+3)/4);
+		}
+		
+		
+		//------------------------- addRefPosition --------------------------
+		private void addRefPosition(long position)
+		{
+			if (numRefPositions == refPositions.length)
+			{
+				refPositions = java.util.Arrays.copyOf(refPositions, numRefPositions * 2 + 16);
+			}
+			
+			refPositions[numRefPositions++] = position;
+		}
+		
+		
+		//------------------------- loadRefPositions --------------------------
+		// Decode the flanks of the held reference positions into reftuples
+		
+		private void loadRefPositions() throws IOException
+		{
+			for (int i = 0; i < numRefPositions; i++)
+			{
+				genomeFlanks.load(SeedIndex.positionId(refPositions[i]), SeedIndex.positionOffset(refPositions[i]));
+				reftuples.add(genomeFlanks.toBytes());
+			}
+			
+			numRefPositions = 0;
+		}
+		
+		
+		//------------------------- inSample --------------------------
+		// True if the i'th of n reference tuples is one of the MAX_SEED_OCCURRENCES evenly spaced ones kept
+		
+		private boolean inSample(int i, int n)
+		{
+			return ((long) (i+1) * MAX_SEED_OCCURRENCES / n) > ((long) i * MAX_SEED_OCCURRENCES / n);
+		}
+		
+		
+		//------------------------- submitGroup --------------------------
+		// Queue a seed group for a worker thread, blocking while too many are outstanding
+		
+		private void submitGroup(final RefTupleStore refs, final TupleStore qrys, Reporter reporter) throws IOException
+		{
+			try
+			{
+				while (!pending.tryAcquire(10, TimeUnit.SECONDS))
+				{
+					reporter.progress();
+					checkWorkers();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException("Interrupted waiting for a reduce worker");
+			}
+			
+			workers.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						if (workerFailure == null)
+						{
+							alignBatch(workerContext.get(), refs, qrys, sharedOutput, sharedReporter);
+						}
+					}
+					catch (IOException e)
+					{
+						workerFailure = e;
+					}
+					catch (RuntimeException e)
+					{
+						workerFailure = new IOException(getStackTrace(e));
+					}
+					finally
+					{
+						pending.release();
+					}
+				}
+			});
+		}
+		
+		
+		//------------------------- sharedOutput --------------------------
+		// The collector shared by the worker threads and the reduce thread
+		
+		private OutputCollector<IntWritable, BytesWritable> sharedOutput(OutputCollector<IntWritable, BytesWritable> output, 
+				                                                          Reporter reporter)
+		{
+			if (sharedOutput == null)
+			{
+				sharedOutput   = new SynchronizedCollector(output);
+				sharedReporter = reporter;
+			}
+			
+			return sharedOutput;
+		}
+		
+		
+		//------------------------- checkWorkers --------------------------
+		// Rethrow the first failure from a worker thread on the reduce thread
+		
+		private void checkWorkers() throws IOException
+		{
+			if (workerFailure != null)
+			{
+				throw workerFailure;
+			}
+		}
+		
+		
+		//------------------------- close --------------------------
+		// Wait for the workers to finish the outstanding seed groups
+		
+		public void close() throws IOException
+		{
+			if (workers != null)
+			{
+				workers.shutdown();
+				
+				try
+				{
+					while (!workers.awaitTermination(10, TimeUnit.SECONDS))
+					{
+						if (sharedReporter != null) { sharedReporter.progress(); }
+					}
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException("Interrupted waiting for the reduce workers");
+				}
+				
+				checkWorkers();
+			}
+			
+			if (forkPool != null)
+			{
+				forkPool.shutdown();
+			}
+		}
+		
+		
+		//------------------------- loadRefBlock --------------------------
+		// Transpose the packed flanks of the selected reference tuples in [startr, lastr) for kmismatchMany
+		
+		private void loadRefBlock(AlignerContext ctx, TupleStore refs, int [] rsel, int startr, int lastr)
+		{
+			int leftwords  = 0;
+			int rightwords = 0;
+			
+			for (int curr = startr; curr < lastr; curr++)
+			{
+				int r = rsel[curr];
+				if (refs.leftPacked[r].words  > leftwords)  { leftwords  = refs.leftPacked[r].words;  }
+				if (refs.rightPacked[r].words > rightwords) { rightwords = refs.rightPacked[r].words; }
+			}
+			
+			ctx.leftBlock.reset(lastr - startr, leftwords);
+			ctx.rightBlock.reset(lastr - startr, rightwords);
+			
+			for (int curr = startr; curr < lastr; curr++)
+			{
+				int r = rsel[curr];
+				ctx.leftBlock.set(curr - startr, refs.leftPacked[r]);
+				ctx.rightBlock.set(curr - startr, refs.rightPacked[r]);
+			}
+		}
+		
+		
+		//------------------------- alignBatch --------------------------
+		// Align every query tuple to every reference tuple of a seed group, one chunk of
+		// reference tuples at a time
+		
+		public void alignBatch(AlignerContext ctx, RefTupleStore refs, TupleStore qrytuples, 
+				               OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException
 		{
-			int numr = reftuples.size();
-			int numq = qrytuples.size();
+			int [] qsel = ctx.identity(qrytuples.size);
+			int numq = qrytuples.size;
+			
+			if (MEMOIZE_FLANKS)
+			{
+				// only align the first tuple of each class of identical flanks
+				ctx.qryClasses.build(qrytuples);
+				qsel = ctx.qryClasses.distinct;
+				numq = ctx.qryClasses.numDistinct;
+			}
+			
+			if (FILTER_ALIGNMENTS)
+			{
+				ctx.resetBest(numq, K+1);
+			}
+			
+			int refbase = 0;
+			long distinctpairs = 0;
+			
+			for (TupleStore chunk = refs.firstChunk(); chunk != null; chunk = refs.nextChunk())
+			{
+				if (MEMOIZE_FLANKS)
+				{
+					ctx.refClasses.build(chunk);
+					alignChunk(ctx, chunk, ctx.refClasses.distinct, ctx.refClasses.numDistinct, refbase, 
+							   qrytuples, qsel, numq, output);
+					
+					distinctpairs += (long) ctx.refClasses.numDistinct * numq;
+				}
+				else
+				{
+					alignChunk(ctx, chunk, ctx.identity(chunk.size), chunk.size, refbase, 
+							   qrytuples, qsel, numq, output);
+				}
+				
+				refbase += chunk.size;
+			}
+			
+			if (FILTER_ALIGNMENTS)
+			{
+				reportBest(ctx, qrytuples, qsel, numq, output);
+			}
+			
+			if (MEMOIZE_FLANKS && (reporter != null))
+			{
+				reporter.incrCounter(FlankClasses.Counter.PAIRS, (long) refs.size() * qrytuples.size);
+				reporter.incrCounter(FlankClasses.Counter.DISTINCT_PAIRS, distinctpairs);
+			}
+			
+			reportFilters(ctx, reporter);
+		}
+		
+		
+		//------------------------- fanOut --------------------------
+		// Move an alignment computed for reference tuple rep to reference tuple member
+		
+		private static AlignmentRecord fanOut(AlignmentRecord dst, AlignmentRecord rec, TupleStore refs, int rep, int member)
+		{
+			int shift = refs.offset[member] - refs.offset[rep];
+			
+			dst.set(rec);
+			dst.m_refID     = refs.id[member];
+			dst.m_refStart += shift;
+			dst.m_refEnd   += shift;
+			
+			return dst;
+		}
+		
+		
+		//------------------------- alignChunk --------------------------
+		// Align the selected queries to a chunk of references. If the chunk is heavy the
+		// grid is split into tiles for the fork pool, and this waits for all of them.
+		
+		private void alignChunk(final AlignerContext ctx, final TupleStore refs, final int [] rsel, final int numr, final int refbase, 
+				                final TupleStore qrys, final int [] qsel, final int numq,
+				                OutputCollector<IntWritable, BytesWritable> output) throws IOException
+		{
+			if ((forkPool == null) || ((long) numr * numq < HEAVY_GROUP_PAIRS))
+			{
+				alignBlocks(ctx, ctx, refs, rsel, 0, numr, refbase, qrys, qsel, 0, numq, output);
+				return;
+			}
+			
+			final OutputCollector<IntWritable, BytesWritable> out = 
+				(output instanceof SynchronizedCollector) ? output : new SynchronizedCollector(output);
+			
+			// a few tiles per thread, so uneven tiles even out
+			int numtiles = 4 * HEAVY_GROUP_THREADS;
+			int qtiles = Math.min(numtiles, numq);
+			int rtiles = 1;
+			
+			if (!FILTER_ALIGNMENTS)
+			{
+				// the best alignments of a query are tracked in reference order, so only split 
+				// the references when every alignment is reported
+				rtiles = Math.min((numtiles + qtiles - 1) / qtiles, numr);
+			}
+			
+			List<Callable<Object>> tiles = new ArrayList<Callable<Object>>();
+			
+			for (int qt = 0; qt < qtiles; qt++)
+			{
+				final int startq = (int) ((long) numq * qt / qtiles);
+				final int lastq  = (int) ((long) numq * (qt + 1) / qtiles);
+				
+				for (int rt = 0; rt < rtiles; rt++)
+				{
+					final int startr = (int) ((long) numr * rt / rtiles);
+					final int lastr  = (int) ((long) numr * (rt + 1) / rtiles);
+					
+					tiles.add(new Callable<Object>()
+					{
+						public Object call() throws IOException
+						{
+							AlignerContext tilectx = forkContext.get();
+							
+							try
+							{
+								alignBlocks(tilectx, ctx, refs, rsel, startr, lastr, refbase, qrys, qsel, startq, lastq, out);
+							}
+							finally
+							{
+								mergeFilters(tilectx, ctx);
+							}
+							
+							return null;
+						}
+					});
+				}
+			}
+			
+			try
+			{
+				for (Future<Object> f : forkPool.invokeAll(tiles))
+				{
+					f.get();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException("Interrupted aligning a heavy seed group");
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				
+				if (cause instanceof IOException) { throw (IOException) cause; }
+				if (cause instanceof Error)       { throw (Error) cause; }
+				
+				throw new IOException(getStackTrace(cause));
+			}
+		}
+		
+		
+		//------------------------- mergeFilters --------------------------
+		// Move the filter counts of a tile's context to the context of its batch
+		
+		private void mergeFilters(AlignerContext tilectx, AlignerContext ctx)
+		{
+			if (filters == null) { return; }
+			
+			synchronized (ctx)
+			{
+				for (int f = 0; f < filters.length; f++)
+				{
+					ctx.filterRejected[f] += tilectx.filterRejected[f];
+					tilectx.filterRejected[f] = 0;
+				}
+				
+				ctx.filterPassed += tilectx.filterPassed;
+				tilectx.filterPassed = 0;
+			}
+		}
+		
+		
+		//------------------------- alignBlocks --------------------------
+		// Align the query tuples to a chunk of reference tuples in blocks. The blocks run 
+		// over entries [firstr, endr) of rsel and [firstq, endq) of qsel, which index into 
+		// refs and qrys. refbase is the index of the chunk in the seed group. When memoized, 
+		// the selections are the first tuple of each class in batch.refClasses and 
+		// batch.qryClasses, and each alignment is reported for every member of both classes, 
+		// exactly as if every pair had been aligned. ctx holds the scratch state of this 
+		// thread, and batch the classes and best alignments of the whole batch (the same 
+		// context unless the grid was split into tiles).
+		
+		private void alignBlocks(AlignerContext ctx, AlignerContext batch, 
+				                 TupleStore refs, int [] rsel, int firstr, int endr, int refbase, 
+				                 TupleStore qrys, int [] qsel, int firstq, int endq,
+				                 OutputCollector<IntWritable, BytesWritable> output) throws IOException
+		{
+			boolean memoized = MEMOIZE_FLANKS;
+			FlankClasses refClasses = batch.refClasses;
+			FlankClasses qryClasses = batch.qryClasses;
+			
+			AlignmentRecord [] bestalignments   = batch.bestalignments;
+			AlignmentRecord [] secondalignments = batch.secondalignments;
+			boolean [] recordsecond = batch.recordsecond;
+			int [] bestk = batch.bestk;
+			int [] secondidx = batch.secondidx;
 
 			// join together the query-ref shared mers
-			if ((numr != 0) && (numq != 0))
+			if ((endr > firstr) && (endq > firstq))
 			{		
 				// Align reads to the references in blocks of BLOCK_SIZE x BLOCK_SIZE to improve cache locality
 				// define a qry block between [startq, lastq)
-				for (int startq = 0; startq < numq; startq += BLOCK_SIZE)
+				for (int startq = firstq; startq < endq; startq += BLOCK_SIZE)
 				{
 					int lastq = startq + BLOCK_SIZE;
-					if (lastq > numq) { lastq = numq; }
-					
-					if (FILTER_ALIGNMENTS)
-					{
-					  java.util.Arrays.fill(bestk, K+1);
-					}
+					if (lastq > endq) { lastq = endq; }
 					
 					// define a ref block between [startr, lastr)
-					for (int startr = 0; startr < numr; startr += BLOCK_SIZE)
+					for (int startr = firstr; startr < endr; startr += BLOCK_SIZE)
 					{
 						int lastr = startr + BLOCK_SIZE;
-						if (lastr > numr) { lastr = numr; }
+						if (lastr > endr) { lastr = endr; }
+						
+						if (!ALLOW_DIFFERENCES)
+						{
+							loadRefBlock(ctx, refs, rsel, startr, lastr);
+						}
 
 						// for each element in [startq, lastq)
 						for (int curq = startq; curq < lastq; curq++)
 						{
-							MerRecord qry = qrytuples.get(curq);
+							int q = qsel[curq];
+							
+							if (!ALLOW_DIFFERENCES)
+							{
+								// count the mismatches against the whole ref block at once, 
+								// so only pairs within K are extended
+								LandauVishkin.kmismatchMany(ctx, qrys.leftPacked[q],  ctx.leftBlock,  K, ctx.leftmm);
+								LandauVishkin.kmismatchMany(ctx, qrys.rightPacked[q], ctx.rightBlock, K, ctx.rightmm);
+							}
 							
 							// for each element in [startr, lastr)
 							for (int curr = startr; curr < lastr; curr++)
 							{
-								AlignmentRecord rec = extend(qry, reftuples.get(curr), output, reporter);
+								int r = rsel[curr];
+								
+								if (!ALLOW_DIFFERENCES)
+								{
+									int leftmm  = ctx.leftmm[curr - startr];
+									int rightmm = ctx.rightmm[curr - startr];
+									
+									if ((leftmm < 0) || (rightmm < 0) || (leftmm + rightmm > K)) continue;
+								}
+								else if ((filters != null) && rejectPair(ctx, qrys, q, refs, r))
+								{
+									continue;
+								}
+								
+								AlignmentRecord rec = extend(ctx, qrys, q, refs, r);
 								
 								if (rec.m_differences == -1) continue;
 								
 								if (FILTER_ALIGNMENTS)
 								{
-									int qidx = curq - startq;
-									if (rec.m_differences < bestk[qidx])
+									// the best is the first reference with the fewest differences, the second is the last
+									int firstref = r;
+									int lastref  = r;
+									
+									if (memoized)
+									{
+										firstref = refClasses.members[refClasses.start[curr]];
+										lastref  = refClasses.members[refClasses.start[curr+1]-1];
+									}
+									
+									if (rec.m_differences < bestk[curq])
 									{ 
-										bestk[qidx] = rec.m_differences;
-										bestalignments[qidx].set(rec);
-										recordsecond[qidx] = false;
+										bestk[curq] = rec.m_differences;
+										bestalignments[curq].set(rec);
+										recordsecond[curq] = false;
+										secondidx[curq] = refbase + firstref;
 									}
-									else if (rec.m_differences == bestk[qidx])
+									
+									if ((rec.m_differences == bestk[curq]) && (refbase + lastref > secondidx[curq]))
 									{	
-										secondalignments[qidx].set(rec);
-										recordsecond[qidx] = true;
+										if (memoized)
+										{
+											fanOut(secondalignments[curq], rec, refs, r, lastref);
+										}
+										else
+										{
+											secondalignments[curq].set(rec);
+										}
+										
+										recordsecond[curq] = true;
+										secondidx[curq] = refbase + lastref;
+									}
+								}
+								else if (memoized)
+								{
+									for (int qm = qryClasses.start[curq]; qm < qryClasses.start[curq+1]; qm++)
+									{
+										int member = qryClasses.members[qm];
+										ctx.qryid.set(qrys.id[member]);
+										
+										for (int rm = refClasses.start[curr]; rm < refClasses.start[curr+1]; rm++)
+										{
+											AlignmentRecord out = fanOut(ctx.fanout, rec, refs, r, refClasses.members[rm]);
+											out.m_isRC = rec.m_isRC ^ (qrys.isRC(q) != qrys.isRC(member));
+											
+											output.collect(ctx.qryid, out.toBytes());
+										}
 									}
 								}
 								else
 								{
-									qryid.set(qry.id);
-									output.collect(qryid, fullalignment.toBytes());
+									ctx.qryid.set(qrys.id[q]);
+									output.collect(ctx.qryid, rec.toBytes());
 								}
 							}
 						}
 					}
+				}
+			}
+		}
+		
+		
+		//------------------------- reportBest --------------------------
+		// Output the best (and second best) alignment of each selected query once every reference is done
+		
+		private void reportBest(AlignerContext ctx, TupleStore qrys, int [] qsel, int numq,
+				                OutputCollector<IntWritable, BytesWritable> output) throws IOException
+		{
+			boolean memoized = MEMOIZE_FLANKS;
+			FlankClasses qryClasses = ctx.qryClasses;
+			
+			for (int curq = 0; curq < numq; curq++)
+			{
+				if (ctx.bestk[curq] <= K)
+				{
+					AlignmentRecord best   = ctx.bestalignments[curq];
+					AlignmentRecord second = ctx.secondalignments[curq];
+					
+					// the members share the strand of the representative relative to the reference
+					boolean beststrand   = best.m_isRC   ^ qrys.isRC(qsel[curq]);
+					boolean secondstrand = second.m_isRC ^ qrys.isRC(qsel[curq]);
+					
+					int qm   = curq;
+					int qend = curq + 1;
+					
+					if (memoized)
+					{
+						qm   = qryClasses.start[curq];
+						qend = qryClasses.start[curq+1];
+					}
 					
-					if (FILTER_ALIGNMENTS)
+					for (; qm < qend; qm++)
 					{
-						for (int qidx = 0; qidx < lastq - startq; qidx++)
+						int member = memoized ? qryClasses.members[qm] : qsel[qm];
+						ctx.qryid.set(qrys.id[member]);
+						
+						best.m_isRC = beststrand ^ qrys.isRC(member);
+						output.collect(ctx.qryid, best.toBytes());
+					
+						if (ctx.recordsecond[curq])
 						{
-							if (bestk[qidx] <= K)
-							{
-								qryid.set(qrytuples.get(qidx+startq).id);
-								output.collect(qryid, bestalignments[qidx].toBytes());
-								
-								if (recordsecond[qidx])
-								{
-									output.collect(qryid, secondalignments[qidx].toBytes());
-								}
-							}
+							second.m_isRC = secondstrand ^ qrys.isRC(member);
+							output.collect(ctx.qryid, second.toBytes());
 						}
 					}
 				}
 			}
-
+		}
+	}
+	
+	
+	//------------------------- SynchronizedCollector --------------------------
+	// Serialize output from the reduce worker threads
+	
+	public static class SynchronizedCollector implements OutputCollector<IntWritable, BytesWritable>
+	{
+		private final OutputCollector<IntWritable, BytesWritable> output;
+		
+		public SynchronizedCollector(OutputCollector<IntWritable, BytesWritable> output)
+		{
+			this.output = output;
+		}
+		
+		public synchronized void collect(IntWritable key, BytesWritable value) throws IOException
+		{
+			output.collect(key, value);
 		}
 	}
 }
@@ -0,0 +1,152 @@
+package cloudBurst;
+
+// The (w,k)-minimizers of a sequence, found as its mers go by one position at a time. A mer
+// is a minimizer if it has the smallest order of the w consecutive mers of some window that
+// holds it, and every mer tied for the smallest is kept, so the choice doesn't depend on
+// which strand or end the window is read from. The positions of the current window that
+// could still be the smallest are kept in a deque by increasing order, so each mer costs
+// O(1) amortized. Mers that aren't valid (N's, masked) are never minimizers.
+
+public class MinimizerWindow
+{
+	private final int w;
+
+	private final long    [] order; // order of position p in order[p % w]
+	private final boolean [] kept;  // if position p is a minimizer, in kept[p % w]
+	private final int     [] deque; // ring of positions by increasing order
+
+	private int head;
+	private int size;
+	private int first; // first position of the sequence
+	private int next;  // the next position to add
+
+
+	//------------------------- Constructor --------------------------
+	public MinimizerWindow(int w)
+	{
+		this.w = w;
+		order  = new long [w];
+		kept   = new boolean [w];
+		deque  = new int [w];
+	}
+
+
+	//------------------------- reset --------------------------
+	// Start over with the mer at position first
+
+	public void reset(int first)
+	{
+		this.first = first;
+		next = first;
+		head = 0;
+		size = 0;
+	}
+
+
+	//------------------------- add --------------------------
+	// Add the mer at the next position. Once the window that starts at a position has been
+	// added, it is in no more windows, so whether it is a minimizer is known.
+
+	public void add(long ord, boolean valid)
+	{
+		int q = next++;
+
+		// the position before the window falls out
+		if ((size > 0) && (deque[head] <= q - w))
+		{
+			head = (head + 1) % w;
+			size--;
+		}
+
+		order[q % w] = ord;
+		kept[q % w]  = false;
+
+		if (valid)
+		{
+			while ((size > 0) && (order[deque[(head + size - 1) % w] % w] > ord)) { size--; }
+
+			deque[(head + size) % w] = q;
+			size++;
+		}
+
+		// the ties for the smallest are together at the front
+		if ((q - first >= w - 1) && (size > 0))
+		{
+			long min = order[deque[head] % w];
+
+			for (int i = 0; (i < size) && (order[deque[(head + i) % w] % w] == min); i++)
+			{
+				kept[deque[(head + i) % w] % w] = true;
+			}
+		}
+	}
+
+
+	//------------------------- isMinimizer --------------------------
+	// True if position p, one of the last w added, is the smallest in a window so far
+
+	public boolean isMinimizer(int p)
+	{
+		return kept[p % w];
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the minimizers match the ones found by scanning every window
+
+	public static void main(String[] args) throws java.io.IOException
+	{
+		java.util.Random rand = new java.util.Random(1234);
+
+		for (int trial = 0; trial < 2000; trial++)
+		{
+			int w = 1 + rand.nextInt(12);
+			int n = w + rand.nextInt(200);
+			int first = rand.nextInt(50);
+
+			long [] ord = new long [n];
+			boolean [] valid = new boolean [n];
+
+			for (int i = 0; i < n; i++)
+			{
+				ord[i]   = rand.nextInt(8);
+				valid[i] = rand.nextInt(10) != 0;
+			}
+
+			boolean [] expect = new boolean [n];
+
+			for (int s = 0; s + w <= n; s++)
+			{
+				long min = Long.MAX_VALUE;
+				for (int i = s; i < s + w; i++) { if (valid[i] && (ord[i] < min)) { min = ord[i]; } }
+				for (int i = s; i < s + w; i++) { if (valid[i] && (ord[i] == min)) { expect[i] = true; } }
+			}
+
+			MinimizerWindow windows = new MinimizerWindow(w);
+			windows.reset(first);
+
+			for (int q = 0; q < n; q++)
+			{
+				windows.add(ord[q], valid[q]);
+
+				int p = q - w + 1;
+
+				if ((p >= 0) && (windows.isMinimizer(first + p) != expect[p]))
+				{
+					throw new java.io.IOException("Mismatch at " + p + " w " + w + " trial " + trial);
+				}
+			}
+
+			// the last w-1 positions are in no more windows
+			for (int p = Math.max(0, n - w + 1); p < n; p++)
+			{
+				if (windows.isMinimizer(first + p) != expect[p])
+				{
+					throw new java.io.IOException("Mismatch at end " + p + " w " + w + " trial " + trial);
+				}
+			}
+		}
+
+		System.out.println("MinimizerWindow ok");
+	}
+}
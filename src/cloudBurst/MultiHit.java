@@ -0,0 +1,437 @@
+package cloudBurst;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+import cloudBurst.FilterAlignments.FilterMapClass;
+
+// MULTI_HIT=s: the reads are cut into K+s pieces instead of K+1, so an alignment with at
+// most K differences still has at least s pieces that match exactly, and they are at most
+// K diagonals apart (on the same diagonal with mismatches only). The seed job only joins
+// the seeds: JoinReduceClass emits a hit for every (reference, read) pair of a seed group,
+// keyed by the read. VerifyReduceClass then sees all the hits of a read at once, and only
+// extends the hits with at least s distinct pieces of the read within K diagonals, using
+// the same extension as MerReduce.ReduceClass on flanks decoded from the packed reference
+// and reads. Hits that fall short can't be part of an alignment the seed job would report,
+// so the alignments are the same, with far fewer extensions and one more shuffle.
+
+public class MultiHit
+{
+	public static enum Counter { SEED_HITS, VERIFIED_HITS };
+
+	// the names in the seed job's conf the verify job needs as well
+	private static final String [] SETTINGS =
+	{
+		"K", "SEED_LEN", "FLANK_LEN", "MAX_READ_LEN", "ALLOW_DIFFERENCES",
+		"FILTER_ALIGNMENTS", "BLOCK_SIZE", "REDUNDANCY", "BITVECTOR_KDIFF", "MULTI_HIT",
+		"PACKED_GENOME", "READ_STORE"
+	};
+
+
+	//------------------------- Hit --------------------------
+	// A seed shared by a read and the reference: the seed starts at refOffset of reference
+	// refId and at qryOffset of the read, on the minus strand of the read if isRC.
+	// Serialized as the strand byte and the 3 ints, 13 bytes.
+
+	public static class Hit
+	{
+		public int     refId;
+		public int     refOffset;
+		public int     qryOffset;
+		public boolean isRC;
+
+		private final BytesWritable bytes = new BytesWritable();
+		private final byte [] sbuffer = new byte [13];
+
+
+		//------------------------- toBytes --------------------------
+		public BytesWritable toBytes()
+		{
+			sbuffer[0] = (byte) (isRC ? 1 : 0);
+			putInt(refId,     1);
+			putInt(refOffset, 5);
+			putInt(qryOffset, 9);
+
+			bytes.set(sbuffer, 0, 13);
+			return bytes;
+		}
+
+
+		//------------------------- fromBytes --------------------------
+		public void fromBytes(BytesWritable t)
+		{
+			byte [] raw = t.get();
+
+			isRC      = raw[0] == 1;
+			refId     = getInt(raw, 1);
+			refOffset = getInt(raw, 5);
+			qryOffset = getInt(raw, 9);
+		}
+
+
+		//------------------------- putInt --------------------------
+		private void putInt(int v, int pos)
+		{
+			sbuffer[pos]   = (byte) (v >> 24);
+			sbuffer[pos+1] = (byte) (v >> 16);
+			sbuffer[pos+2] = (byte) (v >> 8);
+			sbuffer[pos+3] = (byte) v;
+		}
+
+
+		//------------------------- getInt --------------------------
+		private static int getInt(byte [] raw, int pos)
+		{
+			return ((raw[pos] & 0xFF) << 24) | ((raw[pos+1] & 0xFF) << 16) | ((raw[pos+2] & 0xFF) << 8) | (raw[pos+3] & 0xFF);
+		}
+	}
+
+
+	//------------------------- JoinReduceClass --------------------------
+	// Emit a hit for every (reference, read) pair of a seed group of position-only tuples
+
+	public static class JoinReduceClass extends MapReduceBase implements
+			Reducer<WritableComparable, MerRecordWritable, IntWritable, BytesWritable>
+	{
+		private int [] refId     = new int [16];
+		private int [] refOffset = new int [16];
+
+		private IntWritable readid = new IntWritable();
+		private Hit hit = new Hit();
+
+
+		//------------------------- reduce --------------------------
+		public void reduce(WritableComparable mer, Iterator<MerRecordWritable> values,
+						   OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
+						   throws IOException
+		{
+			int numrefs = 0;
+			long hits = 0;
+
+			// the reference tuples come first
+			while (values.hasNext())
+			{
+				MerRecordWritable value = values.next();
+
+				if (value.isReference())
+				{
+					if (hits != 0)
+					{
+						throw new IOException("ERROR: Saw a reference seed after a query seed");
+					}
+
+					if (numrefs == refId.length)
+					{
+						refId     = Arrays.copyOf(refId,     numrefs * 2);
+						refOffset = Arrays.copyOf(refOffset, numrefs * 2);
+					}
+
+					refId[numrefs]     = value.id;
+					refOffset[numrefs] = value.offset;
+					numrefs++;
+				}
+				else
+				{
+					if (numrefs == 0) { return; }
+
+					readid.set(value.id);
+					hit.qryOffset = value.offset;
+					hit.isRC      = value.isRC();
+
+					for (int r = 0; r < numrefs; r++)
+					{
+						hit.refId     = refId[r];
+						hit.refOffset = refOffset[r];
+						output.collect(readid, hit.toBytes());
+					}
+
+					hits += numrefs;
+				}
+			}
+
+			reporter.incrCounter(Counter.SEED_HITS, hits);
+		}
+	}
+
+
+	//------------------------- VerifyReduceClass --------------------------
+	// Extend the hits of a read that have enough other pieces of the read near their diagonal
+
+	public static class VerifyReduceClass extends MapReduceBase implements
+			Reducer<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		// the fields of a hit in rows[i]
+		private static final int STRAND = 0;
+		private static final int REFID  = 1;
+		private static final int DIAG   = 2;
+		private static final int OFFSET = 3;
+
+		private int K;
+		private int SEED_LEN;
+		private int MULTI_HIT;
+		private int BAND;
+		private boolean FILTER_ALIGNMENTS;
+
+		// the hits of the read, sorted by strand, reference, diagonal and offset
+		private int [][] rows = new int [0][];
+		private int numRows;
+
+		// the hits of each piece of the read in the current window, and the pieces with any
+		private int [] pieceHits;
+		private int numPieces;
+
+		private MerReduce.ReduceClass aligner;
+		private AlignerContext context;
+		private GenomeFlanks genomeFlanks;
+		private ReadFlanks readFlanks;
+		private TupleStore reftuples;
+		private TupleStore qrytuples;
+
+		private Hit hit = new Hit();
+		private AlignmentRecord bestAlignment = new AlignmentRecord();
+		private AlignmentRecord secondBest    = new AlignmentRecord();
+
+		private static final Comparator<int []> byDiagonal = new Comparator<int []>()
+		{
+			public int compare(int [] a, int [] b)
+			{
+				for (int f = STRAND; f <= OFFSET; f++)
+				{
+					if (a[f] != b[f]) { return (a[f] < b[f]) ? -1 : 1; }
+				}
+
+				return 0;
+			}
+		};
+
+
+		//------------------------- configure --------------------------
+		public void configure(JobConf conf)
+		{
+			K                 = Integer.parseInt(conf.get("K"));
+			SEED_LEN          = Integer.parseInt(conf.get("SEED_LEN"));
+			MULTI_HIT         = Integer.parseInt(conf.get("MULTI_HIT"));
+			FILTER_ALIGNMENTS = Integer.parseInt(conf.get("FILTER_ALIGNMENTS")) == 1;
+			boolean ALLOW_DIFFERENCES = Integer.parseInt(conf.get("ALLOW_DIFFERENCES")) == 1;
+
+			// each indel moves the pieces after it one diagonal over
+			BAND = ALLOW_DIFFERENCES ? K : 0;
+
+			pieceHits = new int [Integer.parseInt(conf.get("MAX_READ_LEN")) / SEED_LEN + 1];
+
+			String genome = conf.get("PACKED_GENOME");
+			String store  = conf.get("READ_STORE");
+
+			try
+			{
+				genomeFlanks = new GenomeFlanks(PackedSequenceStore.open(MerReduce.localCacheFile(conf, genome)),
+						                        SEED_LEN, Integer.parseInt(conf.get("FLANK_LEN")));
+				readFlanks   = new ReadFlanks(PackedSequenceStore.open(MerReduce.localCacheFile(conf, store)), SEED_LEN);
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Couldn't open " + genome + " and " + store + ": " + e.getMessage());
+			}
+
+			// the seed job's reducer does the extending, its conf has none of the position-only settings
+			aligner = new MerReduce.ReduceClass();
+			aligner.configure(conf);
+
+			context   = new AlignerContext(K, Integer.parseInt(conf.get("BITVECTOR_KDIFF", "0")) == 1,
+					                       Integer.parseInt(conf.get("BLOCK_SIZE")), false);
+			reftuples = new TupleStore(!ALLOW_DIFFERENCES, false);
+			qrytuples = new TupleStore(!ALLOW_DIFFERENCES, false);
+		}
+
+
+		//------------------------- reduce --------------------------
+		public void reduce(IntWritable readid, Iterator<BytesWritable> values,
+				           OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
+				           throws IOException
+		{
+			numRows = 0;
+
+			while (values.hasNext())
+			{
+				hit.fromBytes(values.next());
+
+				if (numRows == rows.length)
+				{
+					rows = Arrays.copyOf(rows, numRows * 2 + 16);
+					for (int i = numRows; i < rows.length; i++) { rows[i] = new int [4]; }
+				}
+
+				int [] row = rows[numRows++];
+				row[STRAND] = hit.isRC ? 1 : 0;
+				row[REFID]  = hit.refId;
+				row[DIAG]   = hit.refOffset - hit.qryOffset;
+				row[OFFSET] = hit.qryOffset;
+			}
+
+			Arrays.sort(rows, 0, numRows, byDiagonal);
+
+			boolean found = false;
+			boolean recordSecond = false;
+			long verified = 0;
+
+			// the hits of one strand of the read against one reference sequence
+			for (int start = 0, end = 0; start < numRows; start = end)
+			{
+				while ((end < numRows) && (rows[end][STRAND] == rows[start][STRAND]) && (rows[end][REFID] == rows[start][REFID]))
+				{
+					end++;
+				}
+
+				// the window of hits [lo, hi) within BAND diagonals of hit i
+				int lo = start;
+				int hi = start;
+
+				for (int i = start; i < end; i++)
+				{
+					int diag = rows[i][DIAG];
+
+					while ((hi < end) && (rows[hi][DIAG] <= diag + BAND)) { addPiece(rows[hi++], 1);  }
+					while (rows[lo][DIAG] < diag - BAND)                  { addPiece(rows[lo++], -1); }
+
+					if (numPieces < MULTI_HIT) { continue; }
+
+					// with mismatches only, a piece before it on the same diagonal matches exactly,
+					// so the alignment is reported by that one
+					if ((BAND == 0) && (i > start) && (rows[i-1][DIAG] == diag)) { continue; }
+
+					AlignmentRecord rec = verify(rows[i], readid.get());
+					verified++;
+
+					if (rec.m_differences == -1) { continue; }
+
+					if (!FILTER_ALIGNMENTS)
+					{
+						output.collect(readid, rec.toBytes());
+					}
+					else if (!found || (rec.m_differences < bestAlignment.m_differences))
+					{
+						bestAlignment.set(rec);
+						recordSecond = false;
+						found = true;
+					}
+					else if (rec.m_differences == bestAlignment.m_differences)
+					{
+						secondBest.set(rec);
+						recordSecond = true;
+					}
+				}
+
+				while (lo < hi) { addPiece(rows[lo++], -1); }
+			}
+
+			// like FilterCombinerClass, the best and a second one if it is tied
+			if (found)
+			{
+				output.collect(readid, bestAlignment.toBytes());
+
+				if (recordSecond)
+				{
+					output.collect(readid, secondBest.toBytes());
+				}
+			}
+
+			reporter.incrCounter(Counter.VERIFIED_HITS, verified);
+		}
+
+
+		//------------------------- addPiece --------------------------
+		// Add (1) or remove (-1) a hit of the piece of row from the window
+
+		private void addPiece(int [] row, int delta)
+		{
+			int piece = row[OFFSET] / SEED_LEN;
+
+			if (delta > 0) { if (pieceHits[piece]++ == 0) { numPieces++; } }
+			else           { if (--pieceHits[piece] == 0) { numPieces--; } }
+		}
+
+
+		//------------------------- verify --------------------------
+		// Extend the hit of row like the seed job would have
+
+		private AlignmentRecord verify(int [] row, int readid) throws IOException
+		{
+			int refoffset = row[DIAG] + row[OFFSET];
+
+			reftuples.clear();
+			genomeFlanks.load(row[REFID], refoffset);
+			reftuples.add(genomeFlanks.toBytes());
+
+			qrytuples.clear();
+			qrytuples.add(readFlanks.qryTuple(readid, row[OFFSET], row[STRAND] == 1));
+
+			return aligner.extend(context, qrytuples, 0, reftuples, 0);
+		}
+	}
+
+
+	//------------------------- verify --------------------------
+	// Setup and run the hadoop job for verifying the hits the seed job conf wrote to hitpath
+
+	public static RunningJob verify(JobConf seedconf,
+			                        String hitpath,
+			                        String outpath,
+			                        int nummappers,
+			                        int numreducers) throws IOException
+	{
+		JobConf conf = new JobConf(MultiHit.class);
+		conf.setJobName("MultiHit");
+		conf.setNumMapTasks(nummappers);
+		conf.setNumReduceTasks(numreducers);
+
+		for (String name : SETTINGS)
+		{
+			if (seedconf.get(name) != null) { conf.set(name, seedconf.get(name)); }
+		}
+
+		DistributedCache.addCacheFile(new Path(conf.get("PACKED_GENOME")).toUri(), conf);
+		DistributedCache.addCacheFile(new Path(conf.get("READ_STORE")).toUri(), conf);
+
+		FileInputFormat.addInputPath(conf, new Path(hitpath));
+
+		// the hits are already keyed by read
+		conf.setMapperClass(FilterMapClass.class);
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(BytesWritable.class);
+
+		conf.setReducerClass(VerifyReduceClass.class);
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(BytesWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		Path oPath = new Path(outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old results");
+		FileSystem.get(conf).delete(oPath);
+
+		RunningJob rj = JobClient.runJob(conf);
+		System.err.println("MultiHit Finished");
+		return rj;
+	}
+}
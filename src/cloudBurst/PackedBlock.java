@@ -0,0 +1,59 @@
+package cloudBurst;
+
+// A block of PackedDNA flanks transposed so word w of every flank is contiguous:
+// bits[w*size + r] is word w of flank r. Scoring one query against the block then
+// walks each word of the query across all of the flanks in a single tight loop.
+
+public class PackedBlock
+{
+	public long [] bits  = new long [0];
+	public long [] nmask = new long [0];
+	public PackedDNA [] seqs = new PackedDNA [0];
+	public int size  = 0;
+	public int words = 0;
+
+
+	//------------------------- reset --------------------------
+	// Start a new block of size flanks, each at most words long
+
+	public void reset(int numseqs, int numwords)
+	{
+		size  = numseqs;
+		words = numwords;
+
+		int cells = size * words;
+
+		if (bits.length < cells)
+		{
+			bits  = new long [cells * 2];
+			nmask = new long [cells * 2];
+		}
+
+		if (seqs.length < size)
+		{
+			seqs = new PackedDNA [size * 2];
+		}
+	}
+
+
+	//------------------------- set --------------------------
+	// Store flank r of the block
+
+	public void set(int r, PackedDNA seq)
+	{
+		seqs[r] = seq;
+
+		int w = 0;
+		for (int cell = r; w < seq.words; w++, cell += size)
+		{
+			bits[cell]  = seq.bits[w];
+			nmask[cell] = seq.nmask[w];
+		}
+
+		for (int cell = w*size + r; w < words; w++, cell += size)
+		{
+			bits[cell]  = 0;
+			nmask[cell] = 0;
+		}
+	}
+}
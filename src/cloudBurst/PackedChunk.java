@@ -0,0 +1,274 @@
+package cloudBurst;
+
+// A chunk of a .br sequence at 2 bits / bp, as the reference mappers read it. Base i is
+// in bits [2(i%4), 2(i%4)+1] of byte start + i/4 of bases like a PackedFlank, and N's are
+// packed as 'A' and listed as runs [runs[2j], runs[2j+1]) for j in [0, numRuns), in order.
+// A PACKED chunk is used in place, and a 4-bit one is repacked 2 bases per lookup, so the
+// chunk is never decoded to letters: seeds are shifted in from the codes, and the flanks
+// are cut out 4 bases at a time.
+
+public class PackedChunk
+{
+	public byte [] bases;
+	public int start;
+	public int len;
+
+	public int [] runs = new int [8];
+	public int numRuns;
+
+	// 4-bit chunks are repacked into here
+	private byte [] buffer = new byte [0];
+
+	private static final int  [] pairToBits   = PackedDNA.initializePairToBits();
+	private static final int  [] pairToN      = PackedDNA.initializePairToN();
+	private static final byte [] reverseLanes = initializeReverseLanes();
+
+
+	//------------------------- initializeReverseLanes --------------------------
+	// byte of 4 2-bit lanes -> the same lanes in the opposite order
+
+	public static byte [] initializeReverseLanes()
+	{
+		byte [] retval = new byte [256];
+
+		for (int b = 0; b < 256; b++)
+		{
+			retval[b] = (byte) (((b & 0x03) << 6) | ((b & 0x0C) << 2) | ((b & 0x30) >> 2) | ((b & 0xC0) >> 6));
+		}
+
+		return retval;
+	}
+
+
+	//------------------------- set --------------------------
+	// Use len bases already packed at 2 bits / bp from bases[start], without copying.
+	// The N runs are added afterwards with addRun.
+
+	public void set(byte [] bases, int start, int len)
+	{
+		this.bases = bases;
+		this.start = start;
+		this.len   = len;
+		numRuns    = 0;
+	}
+
+
+	//------------------------- setDNA --------------------------
+	// Repack dnalen bytes of a 4-bit DNAString starting at dnapos
+
+	public void setDNA(byte [] dna, int dnapos, int dnalen)
+	{
+		len = DNAString.dnaArrLen(dna, dnapos, dnalen);
+		numRuns = 0;
+
+		int packedlen = DNAString.arrToPackedLen(len);
+
+		if (buffer.length < packedlen)
+		{
+			buffer = new byte [packedlen];
+		}
+
+		bases = buffer;
+		start = 0;
+
+		int dnaend = dnapos + dnalen;
+
+		// a trailing space packs as 'A', which is past len
+		for (int j = 0, p = dnapos; j < packedlen; j++, p += 2)
+		{
+			int first  = dna[p] & 0xFF;
+			int second = (p+1 < dnaend) ? (dna[p+1] & 0xFF) : 0;
+
+			buffer[j] = (byte) (pairToBits[first] | (pairToBits[second] << 4));
+
+			int n = pairToN[first] | (pairToN[second] << 4);
+
+			for (int lane = 0; n != 0; lane++, n >>>= 2)
+			{
+				if ((n & 1) != 0) { addN(4*j + lane); }
+			}
+		}
+	}
+
+
+	//------------------------- addN --------------------------
+	// Add base i to the N runs, after the ones already there
+
+	private void addN(int i)
+	{
+		if ((numRuns > 0) && (runs[2*numRuns-1] == i))
+		{
+			runs[2*numRuns-1]++;
+		}
+		else
+		{
+			addRun(i, i+1);
+		}
+	}
+
+
+	//------------------------- addRun --------------------------
+	// Add the N run [s, e), after the ones already there
+
+	public void addRun(int s, int e)
+	{
+		if (runs.length < 2*numRuns + 2)
+		{
+			runs = java.util.Arrays.copyOf(runs, 4*numRuns + 2);
+		}
+
+		runs[2*numRuns]   = s;
+		runs[2*numRuns+1] = e;
+		numRuns++;
+	}
+
+
+	//------------------------- at --------------------------
+	// The 2-bit code of base i, 'A' for an N
+
+	public int at(int i)
+	{
+		return (bases[start + (i >> 2)] >> ((i & 3) << 1)) & 0x03;
+	}
+
+
+	//------------------------- firstRun --------------------------
+	// The first N run that ends after pos, or numRuns if there isn't one
+
+	public int firstRun(int pos)
+	{
+		int lo = 0;
+		int hi = numRuns;
+
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (runs[2*mid+1] <= pos) { lo = mid + 1; } else { hi = mid; }
+		}
+
+		return lo;
+	}
+
+
+	//------------------------- fourAt --------------------------
+	// The 4 bases starting at q in one byte, base q in the low lane. q may be as low
+	// as -3, and the lanes of bases outside the chunk are garbage.
+
+	public int fourAt(int q)
+	{
+		if (q < 0)
+		{
+			return (fourAt(0) << (-q << 1)) & 0xFF;
+		}
+
+		int b     = start + (q >> 2);
+		int shift = (q & 3) << 1;
+		int v     = (bases[b] & 0xFF) >>> shift;
+
+		if ((shift != 0) && (b+1 < start + DNAString.arrToPackedLen(len)))
+		{
+			v |= (bases[b+1] & 0xFF) << (8 - shift);
+		}
+
+		return v & 0xFF;
+	}
+
+
+	//------------------------- copy --------------------------
+	// Like DNAString.arrToPacked of bases [from, from+n), returns the number of bytes written
+
+	public int copy(int from, int n, byte [] out, int outpos)
+	{
+		int outlen = DNAString.arrToPackedLen(n);
+
+		for (int j = 0; j < outlen; j++)
+		{
+			out[outpos + j] = (byte) fourAt(from + 4*j);
+		}
+
+		if ((n & 3) != 0)
+		{
+			out[outpos + outlen - 1] &= (1 << ((n & 3) << 1)) - 1;
+		}
+
+		return outlen;
+	}
+
+
+	//------------------------- copyRev --------------------------
+	// Like DNAString.arrToPackedRev of bases [from, from+n), returns the number of bytes written
+
+	public int copyRev(int from, int n, byte [] out, int outpos)
+	{
+		int outlen = DNAString.arrToPackedLen(n);
+
+		// byte j holds from+n-1-4j down to from+n-4-4j
+		for (int j = 0; j < outlen; j++)
+		{
+			out[outpos + j] = reverseLanes[fourAt(from + n - 4 - 4*j)];
+		}
+
+		if ((n & 3) != 0)
+		{
+			out[outpos + outlen - 1] &= (1 << ((n & 3) << 1)) - 1;
+		}
+
+		return outlen;
+	}
+
+
+	//------------------------- toSeed --------------------------
+	// Like DNAString.arrToSeed of bases [from, from+n), which must not have N's
+
+	public int toSeed(int from, int n, byte [] seed, int seedpos, int id, int REDUNDANCY, int ISQRY)
+	{
+		int seedlen = (n+3)/4+1;
+		int bytes   = (n+3)/4;
+
+		// arrToSeed puts the first base in the high bits
+		for (int j = 0; j < bytes; j++)
+		{
+			seed[seedpos + j] = reverseLanes[fourAt(from + 4*j)];
+		}
+
+		if ((n & 3) != 0)
+		{
+			seed[seedpos + bytes - 1] &= 0xFF << (8 - ((n & 3) << 1));
+		}
+
+		seedpos += bytes;
+
+		if (REDUNDANCY > 1)
+		{
+			seed[seedpos] = (byte) ((id % REDUNDANCY) & 0xff);
+			seedpos++;
+			seedlen++;
+		}
+
+		seed[seedpos] = (byte) ISQRY;
+
+		return seedlen;
+	}
+
+
+	//------------------------- toString --------------------------
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(len);
+
+		for (int i = 0; i < len; i++)
+		{
+			sb.append((char) DNAString.seedToByte(at(i)));
+		}
+
+		for (int r = 0; r < numRuns; r++)
+		{
+			for (int i = runs[2*r]; i < runs[2*r+1]; i++)
+			{
+				sb.setCharAt(i, 'N');
+			}
+		}
+
+		return sb.toString();
+	}
+}
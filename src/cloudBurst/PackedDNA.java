@@ -0,0 +1,202 @@
+package cloudBurst;
+
+// 2 bits / bp representation of a DNAString packed into 64-bit words, 32bp per word.
+// Base i lives in bits [2*(i%32), 2*(i%32)+1] of word i/32, so lower bits are earlier bases.
+// N's can't be represented in 2 bits, so they are stored as 'A' and flagged in nmask,
+// which uses the low bit of each 2-bit lane.
+
+public class PackedDNA
+{
+	public static final long LANE_MASK = 0x5555555555555555L;
+
+	public long [] bits  = new long [2];
+	public long [] nmask = new long [2];
+	public int     len   = 0;
+	public int     words = 0;
+
+	private static final byte [] nibbleToCode = initializeNibbleToCode();
+	private static final int  [] pairToBits   = initializePairToBits();
+	private static final int  [] pairToN      = initializePairToN();
+
+
+	//------------------------- initializeNibbleToCode --------------------------
+	public static byte [] initializeNibbleToCode()
+	{
+		byte [] retval = new byte [16];
+
+		retval[DNAString.dna_a] = 0;
+		retval[DNAString.dna_c] = 1;
+		retval[DNAString.dna_g] = 2;
+		retval[DNAString.dna_t] = 3;
+
+		return retval;
+	}
+
+
+	//------------------------- initializePairToBits --------------------------
+	// 4-bit packed byte (2 bases) -> 4 bits of 2-bit codes, first base in the low bits
+
+	public static int [] initializePairToBits()
+	{
+		int [] retval = new int [256];
+
+		for (int b = 0; b < 256; b++)
+		{
+			retval[b] = nibbleToCode[(b >> 4) & 0x0F] | (nibbleToCode[b & 0x0F] << 2);
+		}
+
+		return retval;
+	}
+
+
+	//------------------------- initializePairToN --------------------------
+	// 4-bit packed byte (2 bases) -> the N lane bits of those 2 bases
+
+	public static int [] initializePairToN()
+	{
+		int [] retval = new int [256];
+
+		for (int b = 0; b < 256; b++)
+		{
+			if (((b >> 4) & 0x0F) == DNAString.dna_n) { retval[b] |= 0x01; }
+			if ((b & 0x0F) == DNAString.dna_n)        { retval[b] |= 0x04; }
+		}
+
+		return retval;
+	}
+
+
+	//------------------------- set --------------------------
+	public void set(byte [] dna)
+	{
+		set(dna, 0, dna.length);
+	}
+
+
+	//------------------------- set --------------------------
+	// Repack dnalen bytes of a 4-bit DNAString starting at dnapos, reusing the word arrays
+
+	public void set(byte [] dna, int dnapos, int dnalen)
+	{
+		len = dnalen * 2;
+
+		if ((dnalen > 0) && ((dna[dnapos + dnalen - 1] & 0x0F) == DNAString.space))
+		{
+			len--;
+		}
+
+		words = (len + 31) >> 5;
+
+		if (words > bits.length)
+		{
+			bits  = new long [words * 2];
+			nmask = new long [words * 2];
+		}
+
+		int dnaend = dnapos + dnalen;
+
+		for (int w = 0; w < words; w++)
+		{
+			long b = 0;
+			long n = 0;
+
+			int wend = dnapos + 16;
+			if (wend > dnaend) { wend = dnaend; }
+
+			for (int shift = 0; dnapos < wend; dnapos++, shift += 4)
+			{
+				int pair = dna[dnapos] & 0xFF;
+				b |= ((long) pairToBits[pair]) << shift;
+				n |= ((long) pairToN[pair])    << shift;
+			}
+
+			bits[w]  = b;
+			nmask[w] = n;
+		}
+
+		// clear the lane of a trailing space so the padding is always zero
+		if ((len & 31) != 0)
+		{
+			long keep = (1L << ((len & 31) << 1)) - 1;
+			bits[words-1]  &= keep;
+			nmask[words-1] &= keep;
+		}
+	}
+
+
+	//------------------------- set --------------------------
+	// Widen a PackedFlank, which already has the same lanes, 8 bytes to a word.
+	// The lanes past the end of its last byte are already zero.
+
+	public void set(PackedFlank flank)
+	{
+		len   = flank.len;
+		words = (len + 31) >> 5;
+
+		if (words > bits.length)
+		{
+			bits  = new long [words * 2];
+			nmask = new long [words * 2];
+		}
+
+		byte [] bases = flank.bases;
+		int pos = flank.start;
+		int end = pos + DNAString.arrToPackedLen(len);
+
+		for (int w = 0; w < words; w++)
+		{
+			long b = 0;
+
+			int wend = pos + 8;
+			if (wend > end) { wend = end; }
+
+			for (int shift = 0; pos < wend; pos++, shift += 8)
+			{
+				b |= ((long) (bases[pos] & 0xFF)) << shift;
+			}
+
+			bits[w]  = b;
+			nmask[w] = 0;
+		}
+
+		for (int r = flank.runStart; r < flank.runEnd; r++)
+		{
+			for (int i = flank.runs[2*r]; i < flank.runs[2*r+1]; i++)
+			{
+				nmask[i >> 5] |= 1L << ((i & 31) << 1);
+			}
+		}
+	}
+
+
+	//------------------------- byteLen --------------------------
+	// number of bytes the sequence occupied in the 4-bit encoding
+
+	public int byteLen()
+	{
+		return (len + 1) / 2;
+	}
+
+
+	//------------------------- toString --------------------------
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < len; i++)
+		{
+			int lane = (i & 31) << 1;
+
+			if (((nmask[i >> 5] >>> lane) & 1) != 0)
+			{
+				sb.append('N');
+			}
+			else
+			{
+				sb.append((char) DNAString.seedToByte((int) (bits[i >> 5] >>> lane)));
+			}
+		}
+
+		return sb.toString();
+	}
+}
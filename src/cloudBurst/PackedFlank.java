@@ -0,0 +1,88 @@
+package cloudBurst;
+
+// A flank at 2 bits / bp as it is shuffled and stored: len bases starting at byte start
+// of bases, base i in bits [2(i%4), 2(i%4)+1] of byte i/4 like PackedDNA. N's are packed
+// as 'A' and listed as runs [runs[2j], runs[2j+1]) for j in [runStart, runEnd), in order.
+// The kernels that read a PackedFlank count every base of a run as a mismatch, even
+// against another N. This is only a view, the arrays belong to a TupleStore.
+
+public class PackedFlank
+{
+	public byte [] bases;
+	public int start;
+	public int len;
+
+	public int [] runs;
+	public int runStart;
+	public int runEnd;
+
+
+	//------------------------- set --------------------------
+	public void set(byte [] bases, int start, int len, int [] runs, int runStart, int runEnd)
+	{
+		this.bases    = bases;
+		this.start    = start;
+		this.len      = len;
+		this.runs     = runs;
+		this.runStart = runStart;
+		this.runEnd   = runEnd;
+	}
+
+
+	//------------------------- at --------------------------
+	// The 2-bit code of base i, 'A' for an N
+
+	public int at(int i)
+	{
+		return (bases[start + (i >> 2)] >> ((i & 3) << 1)) & 0x03;
+	}
+
+
+	//------------------------- hasN --------------------------
+	public boolean hasN()
+	{
+		return runStart != runEnd;
+	}
+
+
+	//------------------------- firstN --------------------------
+	// The first N in [from, to), or to if there isn't one
+
+	public int firstN(int from, int to)
+	{
+		for (int r = runStart; r < runEnd; r++)
+		{
+			int s = runs[2*r];
+			int e = runs[2*r+1];
+
+			if (e <= from) { continue; }
+			if (s >= to)   { break; }
+
+			return (s > from) ? s : from;
+		}
+
+		return to;
+	}
+
+
+	//------------------------- toString --------------------------
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder(len);
+
+		for (int i = 0; i < len; i++)
+		{
+			sb.append((char) DNAString.seedToByte(at(i)));
+		}
+
+		for (int r = runStart; r < runEnd; r++)
+		{
+			for (int i = runs[2*r]; i < runs[2*r+1]; i++)
+			{
+				sb.setCharAt(i, 'N');
+			}
+		}
+
+		return sb.toString();
+	}
+}
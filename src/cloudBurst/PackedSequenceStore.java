@@ -0,0 +1,386 @@
+package cloudBurst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.JobConf;
+
+// Sequences at 2 bits / bp, in a file that is memory-mapped as a whole, so a store of
+// millions of reads costs no heap. Each sequence starts on a new 64-bit word with 32bp
+// per word, and base i of a word is in bits [2i, 2i+1] like PackedDNA. N's are stored
+// as 'A' and listed as runs [start, end). The file is all longs:
+//
+//   the words
+//   per sequence: id << 32 | length, first word, first run
+//   per run:      start << 32 | end
+//   numseqs, numruns, 1 if the ids are increasing, byte offset of the sequences
+
+public class PackedSequenceStore
+{
+	private static final byte [] codeToLetter = { 'A', 'C', 'G', 'T' };
+
+	public int numSeqs;
+	private int numRuns;
+	private boolean sortedIds;
+
+	private MappedLongs words;
+	private MappedLongs seqs;
+	private MappedLongs runs;
+
+	// only for stores whose ids aren't increasing
+	private HashMap<Integer, Integer> seqOfId = null;
+
+
+	//------------------------- Writer --------------------------
+	// Append sequences one at a time. The directory is staged in temporary
+	// files since it can be bigger than the heap for a store of reads.
+
+	public static class Writer
+	{
+		private DataOutputStream out;
+		private long numwords = 0;
+
+		private File seqfile;
+		private DataOutputStream seqdir;
+		private int numseqs = 0;
+		private boolean sorted = true;
+		private int lastid = 0;
+
+		private File runfile;
+		private DataOutputStream runs;
+		private int numruns = 0;
+
+		public Writer(DataOutputStream out) throws IOException
+		{
+			this.out = out;
+
+			seqfile = File.createTempFile("packedseqs", ".dir");
+			runfile = File.createTempFile("packedruns", ".dir");
+
+			seqdir = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(seqfile), 1 << 16));
+			runs   = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runfile), 1 << 16));
+		}
+
+		//------------------------- add --------------------------
+		// Save seq[0, len) as the sequence with the given id
+
+		public void add(int id, byte [] seq, int len) throws IOException
+		{
+			if ((numseqs > 0) && (id <= lastid)) { sorted = false; }
+			lastid = id;
+
+			seqdir.writeLong(((long) id << 32) | len);
+			seqdir.writeLong(numwords);
+			seqdir.writeLong(numruns);
+			numseqs++;
+
+			long word = 0;
+			int runstart = -1;
+
+			for (int i = 0; i < len; i++)
+			{
+				byte dna = DNAString.letterToDNA[seq[i] & 0xFF];
+				long code = 0;
+
+				if      (dna == DNAString.dna_c) { code = 1; }
+				else if (dna == DNAString.dna_g) { code = 2; }
+				else if (dna == DNAString.dna_t) { code = 3; }
+
+				if (dna == DNAString.dna_n)
+				{
+					if (runstart == -1) { runstart = i; }
+				}
+				else if (runstart != -1)
+				{
+					runs.writeLong(((long) runstart << 32) | i);
+					numruns++;
+					runstart = -1;
+				}
+
+				word |= code << (2 * (i & 31));
+
+				if ((i & 31) == 31)
+				{
+					out.writeLong(word);
+					numwords++;
+					word = 0;
+				}
+			}
+
+			if (runstart != -1)
+			{
+				runs.writeLong(((long) runstart << 32) | len);
+				numruns++;
+			}
+
+			if ((len & 31) != 0)
+			{
+				out.writeLong(word);
+				numwords++;
+			}
+		}
+
+		//------------------------- close --------------------------
+		public void close() throws IOException
+		{
+			seqdir.close();
+			runs.close();
+
+			append(seqfile);
+			append(runfile);
+
+			out.writeLong(numseqs);
+			out.writeLong(numruns);
+			out.writeLong(sorted ? 1 : 0);
+			out.writeLong(numwords * 8);
+			out.close();
+		}
+
+		//------------------------- append --------------------------
+		private void append(File file) throws IOException
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			byte [] buf = new byte [1 << 16];
+			int n;
+
+			while ((n = in.read(buf)) > 0)
+			{
+				out.write(buf, 0, n);
+			}
+
+			in.close();
+			file.delete();
+		}
+	}
+
+
+	//------------------------- pack --------------------------
+	// Pack the sequences of a .br file, or a directory of them, into outpath. The
+	// chunks of a long sequence are consecutive and in order, so they are stitched
+	// back together. Returns the number of sequences.
+
+	public static int pack(FileSystem fs, JobConf conf, Path brpath, Path outpath) throws IOException
+	{
+		Path [] files;
+
+		if (fs.getFileStatus(brpath).isDir())
+		{
+			FileStatus [] status = fs.listStatus(brpath);
+			files = new Path [status.length];
+
+			for (int i = 0; i < status.length; i++) { files[i] = status[i].getPath(); }
+
+			Arrays.sort(files);
+		}
+		else
+		{
+			files = new Path [] { brpath };
+		}
+
+		Writer writer = new Writer(fs.create(outpath));
+
+		FastaRecord record = new FastaRecord();
+		IntWritable id = new IntWritable();
+		BytesWritable raw = new BytesWritable();
+
+		byte [] seq = new byte [1 << 20];
+		int seqlen = 0;
+		int curid = -1;
+		int numseqs = 0;
+
+		for (Path file : files)
+		{
+			if (file.getName().startsWith("_") || file.getName().startsWith(".")) { continue; }
+
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, file, conf);
+
+			while (reader.next(id, raw))
+			{
+				record.fromBytes(raw);
+
+				if ((id.get() != curid) || (record.m_offset == 0))
+				{
+					if (curid != -1) { writer.add(curid, seq, seqlen); numseqs++; }
+
+					curid  = id.get();
+					seqlen = 0;
+				}
+
+				// skip the part that overlaps the previous chunk
+				int skip = seqlen - record.m_offset;
+				int len  = record.m_sequence.length - skip;
+
+				if ((skip < 0) || (len < 0))
+				{
+					throw new IOException("Chunks of sequence " + curid + " are out of order at " + record.m_offset);
+				}
+
+				if (seqlen + len > seq.length)
+				{
+					seq = Arrays.copyOf(seq, Math.max(seqlen + len, seq.length * 2));
+				}
+
+				System.arraycopy(record.m_sequence, skip, seq, seqlen, len);
+				seqlen += len;
+			}
+
+			reader.close();
+		}
+
+		if (curid != -1) { writer.add(curid, seq, seqlen); numseqs++; }
+
+		writer.close();
+
+		System.err.println("  Packed " + numseqs + " sequences into " + outpath);
+		return numseqs;
+	}
+
+
+	//------------------------- open --------------------------
+	// Map a store written by Writer
+
+	public static PackedSequenceStore open(File file) throws IOException
+	{
+		PackedSequenceStore store = new PackedSequenceStore();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+
+		raf.seek(raf.length() - 32);
+		store.numSeqs   = (int) raf.readLong();
+		store.numRuns   = (int) raf.readLong();
+		store.sortedIds = raf.readLong() == 1;
+		long dirstart   = raf.readLong();
+
+		// the mappings stay valid once the file is closed
+		store.words = new MappedLongs(channel, 0, dirstart / 8);
+		store.seqs  = new MappedLongs(channel, dirstart, 3L * store.numSeqs);
+		store.runs  = new MappedLongs(channel, dirstart + 24L * store.numSeqs, store.numRuns);
+		raf.close();
+
+		if (!store.sortedIds)
+		{
+			store.seqOfId = new HashMap<Integer, Integer>();
+
+			for (int s = 0; s < store.numSeqs; s++)
+			{
+				store.seqOfId.put(store.id(s), s);
+			}
+		}
+
+		return store;
+	}
+
+
+	//------------------------- id --------------------------
+	public int id(int s)
+	{
+		return (int) (seqs.get(3L * s) >>> 32);
+	}
+
+
+	//------------------------- length --------------------------
+	public int length(int s)
+	{
+		return (int) seqs.get(3L * s);
+	}
+
+
+	//------------------------- firstRun --------------------------
+	private int firstRun(int s)
+	{
+		return (s == numSeqs) ? numRuns : (int) seqs.get(3L * s + 2);
+	}
+
+
+	//------------------------- indexOf --------------------------
+	// Index of the sequence with an id, or -1
+
+	public int indexOf(int id)
+	{
+		if (!sortedIds)
+		{
+			Integer s = seqOfId.get(id);
+			return (s == null) ? -1 : s.intValue();
+		}
+
+		int lo = 0;
+		int hi = numSeqs - 1;
+
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int v = id(mid);
+
+			if      (v < id) { lo = mid + 1; }
+			else if (v > id) { hi = mid - 1; }
+			else             { return mid; }
+		}
+
+		return -1;
+	}
+
+
+	//------------------------- decode --------------------------
+	// Copy bases [start, start+len) of sequence s into dst[dstoff] as letters
+
+	public void decode(int s, int start, int len, byte [] dst, int dstoff)
+	{
+		long base = seqs.get(3L * s + 1);
+		long word = 0;
+
+		for (int i = start; i < start + len; i++)
+		{
+			if ((i == start) || ((i & 31) == 0))
+			{
+				word = words.get(base + (i >> 5));
+			}
+
+			dst[dstoff + i - start] = codeToLetter[(int) (word >>> (2 * (i & 31))) & 3];
+		}
+
+		// find the first run that ends after start, and overwrite the N's
+		int lo = firstRun(s);
+		int last = firstRun(s+1);
+		int hi = last;
+
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if ((int) runs.get(mid) <= start) { lo = mid + 1; } else { hi = mid; }
+		}
+
+		for (int r = lo; r < last; r++)
+		{
+			long run = runs.get(r);
+			int runstart = (int) (run >>> 32);
+			int runend   = (int) run;
+
+			if (runstart >= start + len) { break; }
+
+			int from = Math.max(runstart, start);
+			int to   = Math.min(runend, start + len);
+
+			for (int i = from; i < to; i++)
+			{
+				dst[dstoff + i - start] = 'N';
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package cloudBurst;
+
+// q-gram lemma: an alignment with e differences leaves at least (m-q+1) - q*e of the
+// query q-grams untouched, and each untouched q-gram also occurs in the reachable
+// reference window. So if the query has more than q*e q-gram occurrences that are
+// missing from the window, it needs more than e differences.
+
+public class QGramFilter implements CandidateFilter
+{
+	public Counter getCounter()
+	{
+		return Counter.QGRAM_REJECTED;
+	}
+
+
+	//------------------------- lowerBound --------------------------
+	public int lowerBound(FlankSignature qry, FlankSignature ref, int k)
+	{
+		int w = FlankSignature.window(qry, ref, k);
+		if (w < 0) { return 0; }
+		
+		// a q-gram is in the window if it starts at or before w-q
+		w -= FlankSignature.Q;
+
+		int missing = 0;
+		long grams = qry.gramMask;
+
+		while (grams != 0)
+		{
+			int g = Long.numberOfTrailingZeros(grams);
+
+			if (ref.firstPos[g] > w)
+			{
+				missing += qry.gramCount[g];
+			}
+
+			grams &= grams - 1;
+		}
+
+		return (missing + FlankSignature.Q - 1) / FlankSignature.Q;
+	}
+}
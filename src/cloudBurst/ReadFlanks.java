@@ -0,0 +1,94 @@
+package cloudBurst;
+
+// Rebuilds full query tuples from a PackedSequenceStore of the reads, for query seeds
+// that only travel as (read id, seed offset, strand): the read is decoded, reverse
+// complemented if the seed is on the minus strand, and the bases on either side of the
+// seed are serialized like MapClass would have. Consecutive seeds of the same read
+// only decode it once.
+
+public class ReadFlanks
+{
+	private PackedSequenceStore reads;
+	private int SEED_LEN;
+
+	private MerRecord qryInfo = new MerRecord();
+	private MerRecordWritable tuple = new MerRecordWritable();
+	private byte [] read = new byte [256];
+
+	// the length of the read decoded into read, -1 before the first one
+	private int len = -1;
+
+
+	//------------------------- Constructor --------------------------
+	public ReadFlanks(PackedSequenceStore reads, int SEED_LEN)
+	{
+		this.reads    = reads;
+		this.SEED_LEN = SEED_LEN;
+
+		qryInfo.isReference = false;
+	}
+
+
+	//------------------------- qryTuple --------------------------
+	// The full query tuple for a position-only one, reused by the next call
+
+	public MerRecordWritable qryTuple(MerRecordWritable position)
+	{
+		return qryTuple(position.id, position.offset, position.isRC());
+	}
+
+
+	//------------------------- qryTuple --------------------------
+	// The query tuple of the seed at offset of read id, on the minus strand if isRC.
+	// The read is only decoded again if it isn't the one of the last call.
+
+	public MerRecordWritable qryTuple(int id, int offset, boolean isRC)
+	{
+		if ((id != qryInfo.id) || (isRC != qryInfo.isRC) || (len == -1))
+		{
+			decode(id, isRC);
+		}
+
+		qryInfo.offset = offset;
+
+		int rightstart = offset + SEED_LEN;
+
+		tuple.set(qryInfo, read, 0, offset, rightstart, len - rightstart);
+		return tuple;
+	}
+
+
+	//------------------------- decode --------------------------
+	private void decode(int id, boolean isRC)
+	{
+		qryInfo.id   = id;
+		qryInfo.isRC = isRC;
+
+		int s = reads.indexOf(id);
+
+		if (s == -1)
+		{
+			len = -1;
+			throw new IllegalArgumentException("Read " + id + " isn't in the read store");
+		}
+
+		len = reads.length(s);
+
+		if (len > read.length)
+		{
+			read = new byte [len * 2];
+		}
+
+		reads.decode(s, 0, len, read, 0);
+
+		if (isRC)
+		{
+			for (int i = 0, j = len-1; i <= j; i++, j--)
+			{
+				byte t  = read[i];
+				read[i] = DNAString.rc(read[j]);
+				read[j] = DNAString.rc(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package cloudBurst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// The reference tuples of one seed group. Tuples are kept on the heap until they
+// use up the byte budget, and the rest are spilled to a local temp file in their
+// serialized form. The tuples are then read back a chunk at a time: the resident
+// tuples first, followed by chunks of spilled tuples that fit in the same budget,
+// so the heap used by a seed group stays bounded no matter how repetitive it is.
+
+public class RefTupleStore
+{
+	public static enum Counter { SPILLED_GROUPS, SPILLED_TUPLES };
+	
+	// rough heap cost of a stored tuple on top of its flanks
+	public static final int RECORD_OVERHEAD = 64;
+
+	private final long budget;
+	private final File spillDir;
+	private TupleStore resident;
+	private long residentBytes = 0;
+	private int size = 0;
+
+	private File spillFile = null;
+	private DataOutputStream spillOut = null;
+	private int numSpilled = 0;
+
+	private DataInputStream spillIn = null;
+	private int numRead = 0;
+	private TupleStore chunk;
+	private MerRecordWritable spilled = new MerRecordWritable();
+
+
+	//------------------------- Constructor --------------------------
+	// The tuples are packed/signed as they are added or read back if pack/sign are set
+
+	public RefTupleStore(long budget, File spillDir, boolean pack, boolean sign)
+	{
+		this.budget   = budget;
+		this.spillDir = spillDir;
+		
+		resident = new TupleStore(pack, sign);
+		chunk    = new TupleStore(pack, sign);
+	}
+
+
+	//------------------------- cost --------------------------
+	public static long cost(MerRecordWritable value)
+	{
+		return value.getSize() + RECORD_OVERHEAD;
+	}
+
+
+	//------------------------- add --------------------------
+	// Save a copy of a serialized tuple
+
+	public void add(MerRecordWritable value) throws IOException
+	{
+		size++;
+
+		long c = cost(value);
+
+		if ((spillOut == null) && (residentBytes + c <= budget))
+		{
+			resident.add(value);
+			residentBytes += c;
+			return;
+		}
+
+		if (spillOut == null)
+		{
+			spillFile = File.createTempFile("cloudburst-refs", ".bin", spillDir);
+			spillFile.deleteOnExit();
+			spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16));
+		}
+
+		value.write(spillOut);
+		numSpilled++;
+	}
+
+
+	//------------------------- size --------------------------
+	public int size()
+	{
+		return size;
+	}
+
+
+	//------------------------- numSpilled --------------------------
+	public int numSpilled()
+	{
+		return numSpilled;
+	}
+
+
+	//------------------------- isSpilled --------------------------
+	public boolean isSpilled()
+	{
+		return spillFile != null;
+	}
+
+
+	//------------------------- firstChunk --------------------------
+	// Start a pass over the tuples, returning the resident ones
+
+	public TupleStore firstChunk() throws IOException
+	{
+		closeInput();
+
+		if (spillOut != null)
+		{
+			spillOut.flush();
+		}
+
+		numRead = 0;
+		return resident;
+	}
+
+
+	//------------------------- nextChunk --------------------------
+	// Read back the next chunk of spilled tuples, or null at the end of the pass.
+	// The returned chunk is reused by the following call.
+
+	public TupleStore nextChunk() throws IOException
+	{
+		if (numRead == numSpilled)
+		{
+			closeInput();
+			return null;
+		}
+
+		if (spillIn == null)
+		{
+			spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1 << 16));
+		}
+
+		chunk.clear();
+		long bytes = 0;
+
+		while ((numRead < numSpilled) && ((bytes < budget) || (chunk.size == 0)))
+		{
+			spilled.readFields(spillIn);
+			numRead++;
+
+			chunk.add(spilled);
+			bytes += cost(spilled);
+		}
+
+		return chunk;
+	}
+
+
+	//------------------------- closeInput --------------------------
+	private void closeInput() throws IOException
+	{
+		if (spillIn != null)
+		{
+			spillIn.close();
+			spillIn = null;
+		}
+	}
+
+
+	//------------------------- clear --------------------------
+	// Forget every tuple and remove the spill file
+
+	public void clear() throws IOException
+	{
+		resident.clear();
+		residentBytes = 0;
+		size = 0;
+
+		closeInput();
+
+		if (spillOut != null)
+		{
+			spillOut.close();
+			spillOut = null;
+		}
+
+		if (spillFile != null)
+		{
+			if (!spillFile.delete())
+			{
+				throw new IOException("Couldn't remove " + spillFile);
+			}
+
+			spillFile = null;
+		}
+
+		numSpilled = 0;
+		numRead    = 0;
+
+		chunk.clear();
+	}
+}
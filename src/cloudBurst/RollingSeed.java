@@ -0,0 +1,527 @@
+package cloudBurst;
+
+// The seeds at consecutive positions of a sequence, made one base at a time. The 2-bit
+// codes of the last SEED_LEN bases are shifted into a long like arrToSeedBits, and the
+// position of the last N and the length of the current run of one letter are counted
+// as the bases go by, so moving to the next position costs O(1) instead of rescanning
+// and repacking SEED_LEN letters. Seeds longer than 32bp don't fit in the long, so
+// their keys are still packed from the sequence, but their N and repeat checks roll.
+// The sequence is either letters or a PackedChunk, whose codes are shifted in as they
+// are and whose N's are found by walking its runs.
+//
+// With canonical set, the seed is whichever of the seed and its reverse complement
+// sorts first, so both strands of a sequence have the same seeds. Up to 32bp the
+// reverse complement rolls along in a second long.
+//
+// With a SpacedSeeds pattern, the last span bases roll along instead, the seed is
+// gathered from their care positions a run of 1's at a time, and only an N under
+// a care position makes the seed unusable.
+
+public class RollingSeed
+{
+	private final int SEED_LEN;
+	private final long mask;
+	private final byte [] packed;
+	private final boolean canonical;
+
+	// SEED_LEN for contiguous seeds, the pattern span for spaced ones
+	private final int span;
+	private final SpacedSeeds pattern;
+
+	// runs of 1's of the pattern, oldest first: their shift in fwd, width and mask
+	private int [] runShift;
+	private int [] runBits;
+	private long [] runMask;
+
+	// the care positions of the pattern as N bits, the newest base in bit 0
+	private long careN;
+	private long nbits;
+
+	private byte [] seq;
+	private PackedChunk chunk;
+	private int nextRun; // the first run of chunk that ends after next
+	private int next;    // the next base to shift in
+	private int lastN;   // the last N shifted in
+	private int run;     // length of the run of one letter ending at next-1
+
+	private long fwd;    // the last SEED_LEN bases
+	private long rc;     // and their reverse complement, if canonical
+
+	// the seed as it is keyed, the smaller of fwd and rc if canonical
+	public long bits;
+
+
+	//------------------------- Constructor --------------------------
+	public RollingSeed(int SEED_LEN)
+	{
+		this(SEED_LEN, false);
+	}
+
+
+	//------------------------- Constructor --------------------------
+	public RollingSeed(int SEED_LEN, boolean canonical)
+	{
+		this.SEED_LEN  = SEED_LEN;
+		this.mask      = (SEED_LEN >= 32) ? -1L : (1L << (2*SEED_LEN)) - 1;
+		this.packed    = new byte [DNAString.arrToSeedLen(SEED_LEN, 1)];
+		this.canonical = canonical;
+		this.span      = SEED_LEN;
+		this.pattern   = null;
+	}
+
+
+	//------------------------- Constructor --------------------------
+	// Spaced seeds of pattern, which spans at most 32 bases
+
+	public RollingSeed(SpacedSeeds pattern)
+	{
+		this.SEED_LEN  = pattern.weight;
+		this.span      = pattern.span;
+		this.mask      = (span >= 32) ? -1L : (1L << (2*span)) - 1;
+		this.packed    = new byte [DNAString.arrToSeedLen(SEED_LEN, 1)];
+		this.canonical = false;
+		this.pattern   = pattern;
+
+		int runs = 0;
+
+		for (int i = 0; i < span; i++)
+		{
+			if (isCare(i) && ((i == 0) || !isCare(i-1))) { runs++; }
+			if (isCare(i)) { careN |= 1L << (span-1-i); }
+		}
+
+		runShift = new int [runs];
+		runBits  = new int [runs];
+		runMask  = new long [runs];
+
+		for (int i = 0, r = 0; i < span; i++)
+		{
+			if (!isCare(i) || ((i > 0) && isCare(i-1))) { continue; }
+
+			int e = i;
+			while ((e < span) && isCare(e)) { e++; }
+
+			// base j of the window is in bits 2(span-1-j) of fwd
+			runShift[r] = 2 * (span - e);
+			runBits[r]  = 2 * (e - i);
+			runMask[r]  = (runBits[r] >= 64) ? -1L : (1L << runBits[r]) - 1;
+			r++;
+		}
+	}
+
+
+	//------------------------- isCare --------------------------
+	private boolean isCare(int i)
+	{
+		return (pattern.care & (1L << i)) != 0;
+	}
+
+
+	//------------------------- reset --------------------------
+	// Start at the seed at seq[start], which must fit in seq
+
+	public void reset(byte [] seq, int start)
+	{
+		this.seq   = seq;
+		this.chunk = null;
+		begin(start);
+	}
+
+
+	//------------------------- reset --------------------------
+	// Start at the seed at base start of chunk, which must fit in it
+
+	public void reset(PackedChunk chunk, int start)
+	{
+		this.seq   = null;
+		this.chunk = chunk;
+		nextRun    = chunk.firstRun(start);
+		begin(start);
+	}
+
+
+	//------------------------- begin --------------------------
+	private void begin(int start)
+	{
+		next  = start;
+		lastN = start-1;
+		run   = 0;
+		fwd   = 0;
+		rc    = 0;
+		nbits = 0;
+
+		while (next < start + span)
+		{
+			shift();
+		}
+	}
+
+
+	//------------------------- advance --------------------------
+	// Move to the seed at the next position, if it fits in the sequence
+
+	public void advance()
+	{
+		if (next < ((chunk != null) ? chunk.len : seq.length))
+		{
+			shift();
+		}
+	}
+
+
+	//------------------------- shift --------------------------
+	private void shift()
+	{
+		int code;
+		int n = 0;
+
+		if (chunk == null)
+		{
+			byte letter = seq[next];
+
+			if (DNAString.isN(letter)) { lastN = next; n = 1; }
+
+			run  = ((run > 0) && (letter == seq[next-1])) ? run+1 : 1;
+			code = DNAString.byteToSeed(letter);
+		}
+		else
+		{
+			while ((nextRun < chunk.numRuns) && (chunk.runs[2*nextRun+1] <= next)) { nextRun++; }
+
+			if ((nextRun < chunk.numRuns) && (chunk.runs[2*nextRun] <= next)) { lastN = next; n = 1; }
+
+			// an N is packed as 'A' and may join a run of them, but its seeds are never used
+			code = chunk.at(next);
+			run  = ((run > 0) && (code == (int) (fwd & 0x03))) ? run+1 : 1;
+		}
+
+		fwd  = ((fwd << 2) | code) & mask;
+		bits = fwd;
+
+		if (pattern != null)
+		{
+			nbits = (nbits << 1) | n;
+			bits  = 0;
+
+			for (int r = 0; r < runShift.length; r++)
+			{
+				bits = (bits << runBits[r]) | ((fwd >>> runShift[r]) & runMask[r]);
+			}
+		}
+
+		if (canonical && (SEED_LEN <= 32))
+		{
+			rc = (rc >>> 2) | ((long) (code ^ 0x03) << (2 * (SEED_LEN-1)));
+
+			if (compareRC() > 0) { bits = rc; }
+		}
+
+		next++;
+	}
+
+
+	//------------------------- code --------------------------
+	// The 2-bit code of base i of the sequence
+
+	private int code(int i)
+	{
+		return (chunk != null) ? chunk.at(i) : DNAString.byteToSeed(seq[i]);
+	}
+
+
+	//------------------------- compareRC --------------------------
+	// Compare the seed to its reverse complement, < 0 if the seed sorts first
+
+	private int compareRC()
+	{
+		if (SEED_LEN <= 32)
+		{
+			// unsigned, a 32bp seed uses the sign bit
+			return Long.compare(fwd ^ Long.MIN_VALUE, rc ^ Long.MIN_VALUE);
+		}
+
+		int s = start();
+
+		for (int i = 0; i < SEED_LEN; i++)
+		{
+			int f = code(s + i);
+			int r = code(s + SEED_LEN - 1 - i) ^ 0x03;
+
+			if (f != r) { return f - r; }
+		}
+
+		return 0;
+	}
+
+
+	//------------------------- isFlipped --------------------------
+	// True if the seed is keyed by its reverse complement
+
+	public boolean isFlipped()
+	{
+		return canonical && (compareRC() > 0);
+	}
+
+
+	//------------------------- isPalindrome --------------------------
+	// True if the seed is keyed by both strands, because it is its own reverse complement
+
+	public boolean isPalindrome()
+	{
+		return canonical && (compareRC() == 0);
+	}
+
+
+	//------------------------- start --------------------------
+	public int start()
+	{
+		return next - span;
+	}
+
+
+	//------------------------- hasN --------------------------
+	// Like DNAString.arrHasN over the seed
+
+	public boolean hasN()
+	{
+		if (pattern != null)
+		{
+			return (nbits & careN) != 0;
+		}
+
+		return lastN >= next - SEED_LEN;
+	}
+
+
+	//------------------------- isRepeat --------------------------
+	// Like DNAString.repseed, true if the seed is one letter over and over
+
+	public boolean isRepeat()
+	{
+		return run >= span;
+	}
+
+
+	//------------------------- toSeed --------------------------
+	// Like DNAString.arrToSeed for the seed
+
+	public int toSeed(byte [] seed, int seedpos, int id, int REDUNDANCY, int ISQRY)
+	{
+		if (SEED_LEN <= 32)
+		{
+			return DNAString.seedBitsToSeed(bits, SEED_LEN, seed, seedpos, id, REDUNDANCY, ISQRY);
+		}
+
+		if (isFlipped())
+		{
+			return rcToSeed(seed, seedpos, id, REDUNDANCY, ISQRY);
+		}
+
+		if (chunk != null)
+		{
+			return chunk.toSeed(start(), SEED_LEN, seed, seedpos, id, REDUNDANCY, ISQRY);
+		}
+
+		return DNAString.arrToSeed(seq, start(), SEED_LEN, seed, seedpos, id, REDUNDANCY, ISQRY);
+	}
+
+
+	//------------------------- rcToSeed --------------------------
+	// Like DNAString.arrToSeed for the reverse complement of the seed
+
+	private int rcToSeed(byte [] seed, int seedpos, int id, int REDUNDANCY, int ISQRY)
+	{
+		int seedlen = (SEED_LEN+3)/4+1;
+		int last    = start() + SEED_LEN - 1;
+
+		for (int i = 0; i < SEED_LEN; i += 4)
+		{
+			int b = 0;
+
+			for (int j = i; j < i + 4; j++)
+			{
+				b = (b << 2) | ((j < SEED_LEN) ? (code(last - j) ^ 0x03) : 0);
+			}
+
+			seed[seedpos++] = (byte) b;
+		}
+
+		if (REDUNDANCY > 1)
+		{
+			seed[seedpos] = (byte) ((id % REDUNDANCY) & 0xff);
+			seedpos++;
+			seedlen++;
+		}
+
+		seed[seedpos] = (byte) ISQRY;
+
+		return seedlen;
+	}
+
+
+	//------------------------- key --------------------------
+	// The MaskedSeeds.key of the seed
+
+	public long key()
+	{
+		if (SEED_LEN <= 32)
+		{
+			// the packed bytes read as a number are the bases padded to a whole byte
+			return bits << (2 * (4 * ((SEED_LEN+3)/4) - SEED_LEN));
+		}
+
+		toSeed(packed, 0, 0, 1, 0);
+		return MaskedSeeds.key(packed, 0, packed.length-1);
+	}
+
+
+	//------------------------- order --------------------------
+	// A pseudo-random rank of the seed for picking minimizers, so they don't favor runs
+	// of A's the way the seeds themselves would. Canonical seeds rank the same on both strands.
+
+	public long order()
+	{
+		long h = key() * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 31);
+	}
+
+
+	//------------------------- main --------------------------
+	// Make sure the rolling seeds match the ones made from scratch
+
+	public static void main(String[] args) throws java.io.IOException
+	{
+		java.util.Random rand = new java.util.Random(4321);
+
+		for (int trial = 0; trial < 2000; trial++)
+		{
+			int SEED_LEN = 1 + rand.nextInt(40);
+			byte [] seq = new byte [SEED_LEN + rand.nextInt(200)];
+
+			for (int i = 0; i < seq.length; i++)
+			{
+				int r = rand.nextInt(100);
+				seq[i] = (byte) ((r < 3) ? 'N' : ((r < 50) ? 'A' : "ACGT".charAt(r & 3)));
+			}
+
+			RollingSeed roll = new RollingSeed(SEED_LEN);
+			byte [] expect = new byte [DNAString.arrToSeedLen(SEED_LEN, 3)];
+			byte [] actual = new byte [DNAString.arrToSeedLen(SEED_LEN, 3)];
+
+			// the same sequence as a 4-bit chunk
+			PackedChunk chunk = new PackedChunk();
+			byte [] dna = DNAString.arrToDNA(seq);
+			chunk.setDNA(dna, 0, dna.length);
+
+			for (int packed = 0; packed < 2; packed++)
+			{
+				int first = rand.nextInt(seq.length - SEED_LEN + 1);
+
+				if (packed == 0) { roll.reset(seq, first); } else { roll.reset(chunk, first); }
+
+				for (int start = first; start + SEED_LEN <= seq.length; start++, roll.advance())
+				{
+					boolean hasN = DNAString.arrHasN(seq, start, SEED_LEN);
+
+					DNAString.arrToSeed(seq, start, SEED_LEN, expect, 0, start, 3, 1);
+					roll.toSeed(actual, 0, start, 3, 1);
+
+					// a chunk only has to match on the seeds that are used
+					if ((roll.start() != start) ||
+					    (roll.hasN() != hasN) ||
+					    ((packed == 0 || !hasN) &&
+					     ((roll.isRepeat() != DNAString.repseed(seq, start, SEED_LEN)) ||
+					      !java.util.Arrays.equals(expect, actual) ||
+					      (roll.key() != MaskedSeeds.key(expect, 0, (SEED_LEN+3)/4)) ||
+					      ((SEED_LEN <= 32) && (roll.bits != DNAString.arrToSeedBits(seq, start, SEED_LEN))))))
+					{
+						throw new java.io.IOException("Mismatch at " + start + " of " + DNAString.bytesToString(seq) + " seedlen " + SEED_LEN + " packed " + packed);
+					}
+				}
+			}
+
+			// canonical seeds are the smaller of the seed and its reverse complement
+			RollingSeed canon = new RollingSeed(SEED_LEN, true);
+			byte [] rcexpect = new byte [DNAString.arrToSeedLen(SEED_LEN, 3)];
+
+			for (int packed = 0; packed < 2; packed++)
+			{
+				if (packed == 0) { canon.reset(seq, 0); } else { canon.reset(chunk, 0); }
+
+				for (int start = 0; start + SEED_LEN <= seq.length; start++, canon.advance())
+				{
+					if (DNAString.arrHasN(seq, start, SEED_LEN)) { continue; }
+
+					byte [] rcseq = DNAString.rcarr_new(java.util.Arrays.copyOfRange(seq, start, start + SEED_LEN));
+
+					DNAString.arrToSeed(seq, start, SEED_LEN, expect, 0, start, 3, 0);
+					DNAString.arrToSeed(rcseq, 0, SEED_LEN, rcexpect, 0, start, 3, 0);
+
+					int cmp = 0;
+					for (int i = 0; (cmp == 0) && (i < (SEED_LEN+3)/4); i++)
+					{
+						cmp = (expect[i] & 0xFF) - (rcexpect[i] & 0xFF);
+					}
+
+					canon.toSeed(actual, 0, start, 3, 0);
+
+					if ((canon.isFlipped() != (cmp > 0)) ||
+					    (canon.isPalindrome() != (cmp == 0)) ||
+					    !java.util.Arrays.equals((cmp > 0) ? rcexpect : expect, actual) ||
+					    (canon.key() != MaskedSeeds.key(actual, 0, (SEED_LEN+3)/4)))
+					{
+						throw new java.io.IOException("Canonical mismatch at " + start + " of " + DNAString.bytesToString(seq) + " seedlen " + SEED_LEN + " packed " + packed);
+					}
+				}
+			}
+		}
+
+		// spaced seeds gather the care positions of the window
+		for (int trial = 0; trial < 500; trial++)
+		{
+			SpacedSeeds pattern = new SpacedSeeds(SpacedSeeds.TABLE[rand.nextInt(SpacedSeeds.TABLE.length)][2]);
+			byte [] seq = new byte [pattern.span + rand.nextInt(200)];
+
+			for (int i = 0; i < seq.length; i++)
+			{
+				int r = rand.nextInt(100);
+				seq[i] = (byte) ((r < 3) ? 'N' : "ACGT".charAt(r & 3));
+			}
+
+			RollingSeed spaced = new RollingSeed(pattern);
+			byte [] expect = new byte [DNAString.arrToSeedLen(pattern.weight, 3)];
+			byte [] actual = new byte [DNAString.arrToSeedLen(pattern.weight, 3)];
+
+			PackedChunk chunk = new PackedChunk();
+			byte [] dna = DNAString.arrToDNA(seq);
+			chunk.setDNA(dna, 0, dna.length);
+
+			for (int packed = 0; packed < 2; packed++)
+			{
+				if (packed == 0) { spaced.reset(seq, 0); } else { spaced.reset(chunk, 0); }
+
+				for (int start = 0; start + pattern.span <= seq.length; start++, spaced.advance())
+				{
+					boolean hasN = false;
+
+					for (int i = 0; i < pattern.span; i++)
+					{
+						if (((pattern.care & (1L << i)) != 0) && DNAString.isN(seq[start + i])) { hasN = true; }
+					}
+
+					DNAString.arrToSeed(seq, start, pattern, expect, 0, start, 3, 1);
+					spaced.toSeed(actual, 0, start, 3, 1);
+
+					if ((spaced.start() != start) || (spaced.hasN() != hasN) ||
+					    (!hasN && (!java.util.Arrays.equals(expect, actual) ||
+					               (spaced.bits != DNAString.arrToSeedBits(seq, start, pattern)))))
+					{
+						throw new java.io.IOException("Spaced mismatch at " + start + " of " + DNAString.bytesToString(seq) + " pattern " + pattern.pattern + " packed " + packed);
+					}
+				}
+			}
+		}
+
+		System.out.println("RollingSeed ok");
+	}
+}
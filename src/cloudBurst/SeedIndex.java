@@ -0,0 +1,137 @@
+package cloudBurst;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Read-only, memory-mapped seed index of a reference built by BuildSeedIndex. The
+// distinct seed keys (MaskedSeeds.key of the packed seed) are sorted in KEYS, the
+// positions of key i are POSITIONS[STARTS[i] .. STARTS[i+1]-1], and the sequences
+// themselves are in a PackedSequenceStore. INFO holds the seed length the index was
+// built for, and the number of keys and positions.
+
+public class SeedIndex
+{
+	public static final String INFO      = "seeds.info";
+	public static final String KEYS      = "seeds.keys";
+	public static final String STARTS    = "seeds.starts";
+	public static final String POSITIONS = "seeds.positions";
+	public static final String GENOME    = "genome.packed";
+
+	public static final String [] FILES = { INFO, KEYS, STARTS, POSITIONS, GENOME };
+
+	public int SEED_LEN;
+	public MappedLongs keys;
+	public MappedLongs starts;
+	public MappedLongs positions;
+	public PackedSequenceStore genome;
+
+
+	//------------------------- position --------------------------
+	// Pack a sequence id and offset into one position
+
+	public static long position(int id, int offset)
+	{
+		return ((long) id << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+
+	//------------------------- positionId --------------------------
+	public static int positionId(long position)
+	{
+		return (int) (position >>> 32);
+	}
+
+
+	//------------------------- positionOffset --------------------------
+	public static int positionOffset(long position)
+	{
+		return (int) position;
+	}
+
+
+	//------------------------- readSeedLen --------------------------
+	// The seed length of an index from its INFO file
+
+	public static int readSeedLen(DataInputStream info) throws IOException
+	{
+		int seedlen = info.readInt();
+		info.close();
+		return seedlen;
+	}
+
+
+	//------------------------- open --------------------------
+	// Map the index files, found by name in dir
+
+	public static SeedIndex open(File dir) throws IOException
+	{
+		return open(new File(dir, INFO), new File(dir, KEYS), new File(dir, STARTS),
+				    new File(dir, POSITIONS), new File(dir, GENOME));
+	}
+
+
+	//------------------------- open --------------------------
+	public static SeedIndex open(File info, File keys, File starts, File positions, File genome) throws IOException
+	{
+		SeedIndex index = new SeedIndex();
+
+		DataInputStream in = new DataInputStream(new FileInputStream(info));
+		index.SEED_LEN = in.readInt();
+		long numkeys   = in.readLong();
+		long numpos    = in.readLong();
+		in.close();
+
+		index.keys      = map(keys, numkeys);
+		index.starts    = map(starts, numkeys + 1);
+		index.positions = map(positions, numpos);
+		index.genome    = PackedSequenceStore.open(genome);
+
+		return index;
+	}
+
+
+	//------------------------- map --------------------------
+	private static MappedLongs map(File file, long size) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		if (raf.length() != size * 8)
+		{
+			raf.close();
+			throw new IOException(file + " should have " + size + " entries");
+		}
+
+		MappedLongs longs = new MappedLongs(raf.getChannel(), 0, size);
+		raf.close();
+
+		return longs;
+	}
+
+
+	//------------------------- find --------------------------
+	// Slot of a seed key, or -1 if the seed isn't in the reference
+
+	public long find(long key)
+	{
+		return keys.search(key);
+	}
+
+
+	//------------------------- start --------------------------
+	// Index in positions of the first position of the key in slot
+
+	public long start(long slot)
+	{
+		return starts.get(slot);
+	}
+
+
+	//------------------------- end --------------------------
+	public long end(long slot)
+	{
+		return starts.get(slot + 1);
+	}
+}
@@ -0,0 +1,165 @@
+package cloudBurst;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+// Fixed width seed key for seeds short enough to fit in a long with their shard and
+// ref/qry flag. From the high bits down: the bases at 2 bits each in the order of
+// arrToSeed, the shard in shardBits(keyShards) bits, and the flag (0 ref, 1 qry) in
+// the lowest bit. Keys sort as signed longs, so the reference tuples of a seed and
+// shard come right before its query tuples, and a group is every key with the same
+// value above the flag bit.
+
+public class SeedKey implements WritableComparable<SeedKey>
+{
+	public long key;
+
+	static
+	{
+		WritableComparator.define(SeedKey.class, new Comparator());
+	}
+
+
+	//------------------------- set --------------------------
+	public void set(long key)
+	{
+		this.key = key;
+	}
+
+
+	//------------------------- get --------------------------
+	public long get()
+	{
+		return key;
+	}
+
+
+	//------------------------- shardBits --------------------------
+	// Bits needed for the shard of a key with keyShards shards
+
+	public static int shardBits(int keyShards)
+	{
+		return 32 - Integer.numberOfLeadingZeros(keyShards - 1);
+	}
+
+
+	//------------------------- fits --------------------------
+	// True if seeds of SEED_LEN with keyShards shards fit in a SeedKey
+
+	public static boolean fits(int SEED_LEN, int keyShards)
+	{
+		return 2 * SEED_LEN + shardBits(keyShards) + 1 <= 64;
+	}
+
+
+	//------------------------- make --------------------------
+	// The key of a seed given its 2-bit bases (DNAString.arrToSeedBits)
+
+	public static long make(long bases, int shard, int shardBits, int isqry)
+	{
+		return (bases << (shardBits + 1)) | ((long) shard << 1) | isqry;
+	}
+
+
+	//------------------------- bases --------------------------
+	public static long bases(long key, int shardBits)
+	{
+		return key >>> (shardBits + 1);
+	}
+
+
+	//------------------------- shard --------------------------
+	public static int shard(long key, int shardBits)
+	{
+		return (int) ((key >>> 1) & ((1L << shardBits) - 1));
+	}
+
+
+	//------------------------- maskKey --------------------------
+	// The MaskedSeeds.key of the seed, which reads the zero padded arrToSeed bytes as a number
+
+	public static long maskKey(long key, int shardBits, int SEED_LEN)
+	{
+		return bases(key, shardBits) << (2 * (4 * ((SEED_LEN+3)/4) - SEED_LEN));
+	}
+
+
+	//------------------------- seedString --------------------------
+	// The bases of the seed as letters, for messages
+
+	public static String seedString(long key, int shardBits, int SEED_LEN)
+	{
+		long bases = bases(key, shardBits);
+		StringBuilder sb = new StringBuilder(SEED_LEN);
+
+		for (int i = SEED_LEN-1; i >= 0; i--)
+		{
+			sb.append((char) DNAString.seedToByte((int) (bases >>> (2*i))));
+		}
+
+		return sb.toString();
+	}
+
+
+	//------------------------- write --------------------------
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeLong(key);
+	}
+
+
+	//------------------------- readFields --------------------------
+	public void readFields(DataInput in) throws IOException
+	{
+		key = in.readLong();
+	}
+
+
+	//------------------------- compareTo --------------------------
+	public int compareTo(SeedKey o)
+	{
+		return (key < o.key) ? -1 : ((key == o.key) ? 0 : 1);
+	}
+
+
+	public boolean equals(Object o)
+	{
+		return (o instanceof SeedKey) && (((SeedKey) o).key == key);
+	}
+
+
+	public int hashCode()
+	{
+		return (int) (key ^ (key >>> 32));
+	}
+
+
+	public String toString()
+	{
+		return Long.toHexString(key);
+	}
+
+
+	//------------------------- Comparator --------------------------
+	// Compare serialized keys as whole longs, without deserializing them
+
+	public static class Comparator extends WritableComparator
+	{
+		public Comparator()
+		{
+			super(SeedKey.class);
+		}
+
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+		{
+			long k1 = readLong(b1, s1);
+			long k2 = readLong(b2, s2);
+
+			return (k1 < k2) ? -1 : ((k1 == k2) ? 0 : 1);
+		}
+	}
+}
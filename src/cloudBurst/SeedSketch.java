@@ -0,0 +1,181 @@
+package cloudBurst;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+
+// Count-min sketch of seed frequencies. Every seed is counted in one cell of each of
+// the DEPTH rows and its estimate is the smallest of those cells, so hash collisions
+// can only make a seed look more frequent than it is, never less. Sketches of different
+// parts of the reference add up cell by cell. Seeds are the packed bytes of arrToSeed,
+// without the shard and ref/qry bytes.
+
+public class SeedSketch implements Writable
+{
+	public static enum Counter { HOT_REF_SEEDS, HOT_QRY_SEEDS };
+
+	public static final int DEPTH = 4;
+
+	private int width;
+	private int mask;
+	private int [] counts;
+
+
+	//------------------------- Constructor --------------------------
+	public SeedSketch()
+	{
+		this(1);
+	}
+
+
+	//------------------------- Constructor --------------------------
+	// width is rounded up to a power of 2
+
+	public SeedSketch(int width)
+	{
+		setWidth(width);
+	}
+
+
+	//------------------------- setWidth --------------------------
+	private void setWidth(int w)
+	{
+		width = 1;
+		while (width < w) { width <<= 1; }
+
+		mask   = width - 1;
+		counts = new int [DEPTH * width];
+	}
+
+
+	//------------------------- hash --------------------------
+	// 64-bit FNV-1a of the seed bytes
+
+	private static long hash(byte [] key, int off, int len)
+	{
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = off; i < off + len; i++)
+		{
+			h ^= key[i] & 0xFF;
+			h *= 0x100000001b3L;
+		}
+
+		return h;
+	}
+
+
+	//------------------------- cell --------------------------
+	// Index of the cell of a seed hash in a row, each row uses a differently mixed hash
+
+	private int cell(long h, int row)
+	{
+		h += (row + 1) * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return row * width + ((int) h & mask);
+	}
+
+
+	//------------------------- add --------------------------
+	public void add(byte [] key, int off, int len)
+	{
+		long h = hash(key, off, len);
+
+		for (int row = 0; row < DEPTH; row++)
+		{
+			int c = cell(h, row);
+			if (counts[c] != Integer.MAX_VALUE) { counts[c]++; }
+		}
+	}
+
+
+	//------------------------- estimate --------------------------
+	// Upper bound on the number of times a seed was added
+
+	public int estimate(byte [] key, int off, int len)
+	{
+		long h = hash(key, off, len);
+		int min = Integer.MAX_VALUE;
+
+		for (int row = 0; row < DEPTH; row++)
+		{
+			int c = counts[cell(h, row)];
+			if (c < min) { min = c; }
+		}
+
+		return min;
+	}
+
+
+	//------------------------- merge --------------------------
+	// Add in the counts of a sketch of the same width
+
+	public void merge(SeedSketch other) throws IOException
+	{
+		if (other.width != width)
+		{
+			throw new IOException("Can't merge sketches of width " + width + " and " + other.width);
+		}
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			long sum = (long) counts[i] + other.counts[i];
+			counts[i] = (sum > Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) sum;
+		}
+	}
+
+
+	//------------------------- write --------------------------
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeInt(width);
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			out.writeInt(counts[i]);
+		}
+	}
+
+
+	//------------------------- readFields --------------------------
+	public void readFields(DataInput in) throws IOException
+	{
+		setWidth(in.readInt());
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = in.readInt();
+		}
+	}
+
+
+	//------------------------- toBytes --------------------------
+	public BytesWritable toBytes() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + 4 * counts.length);
+		DataOutputStream out = new DataOutputStream(bytes);
+		write(out);
+		out.flush();
+
+		return new BytesWritable(bytes.toByteArray());
+	}
+
+
+	//------------------------- fromBytes --------------------------
+	public void fromBytes(BytesWritable b) throws IOException
+	{
+		readFields(new DataInputStream(new ByteArrayInputStream(b.get(), 0, b.getSize())));
+	}
+}
@@ -0,0 +1,208 @@
+package cloudBurst;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+// Pre-pass over the reference that builds a count-min sketch of the seeds the
+// alignment mappers will emit. Each mapper sketches its chunks and emits the sketch
+// when it closes, and a single reducer adds them up. The result is saved as one
+// file that is shipped to the alignment mappers through the distributed cache.
+
+public class SketchSeeds {
+
+	public static final int DEFAULT_WIDTH = 1 << 20;
+
+	public static class SketchMapClass extends MapReduceBase implements
+			Mapper<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		private FastaRecord record = new FastaRecord();
+		private SeedSketch sketch;
+		private byte [] seedbuffer = null;
+		private RollingSeed roll = null;
+		private PackedChunk chunk = new PackedChunk();
+		private int SEED_LEN;
+		private int FLANK_LEN;
+		private OutputCollector<IntWritable, BytesWritable> output = null;
+
+		public void configure(JobConf conf)
+		{
+			SEED_LEN   = Integer.parseInt(conf.get("SEED_LEN"));
+			FLANK_LEN  = Integer.parseInt(conf.get("FLANK_LEN"));
+			sketch     = new SeedSketch(Integer.parseInt(conf.get("HOT_SEED_SKETCH_WIDTH", Integer.toString(DEFAULT_WIDTH))));
+			seedbuffer = new byte[DNAString.arrToSeedLen(SEED_LEN, 1)];
+			roll       = new RollingSeed(SEED_LEN, Integer.parseInt(conf.get("CANONICAL_SEEDS", "0")) == 1);
+		}
+
+		public void map(IntWritable id, BytesWritable rawRecord,
+				OutputCollector<IntWritable, BytesWritable> output, Reporter reporter) throws IOException
+		{
+			this.output = output;
+			record.fromBytes(rawRecord, chunk);
+
+			int realoffsetstart = record.m_offset;
+			boolean isLast      = record.m_lastChunk;
+			int seqlen          = chunk.len;
+
+			// the same seeds as MerReduce.MapClass, so the overlap between chunks is only counted once
+			int startoffset = 0;
+
+			if (realoffsetstart != 0)
+			{
+				startoffset = CloudBurst.CHUNK_OVERLAP + 1 - FLANK_LEN - SEED_LEN;
+			}
+
+			int end = seqlen - SEED_LEN + 1;
+
+			if (!isLast)
+			{
+				end -= FLANK_LEN;
+			}
+
+			if (startoffset < end)
+			{
+				roll.reset(chunk, startoffset);
+			}
+
+			for (int start = startoffset; start < end; start++, roll.advance())
+			{
+				if (roll.hasN()) { continue; }
+
+				roll.toSeed(seedbuffer, 0, 0, 1, 0);
+				sketch.add(seedbuffer, 0, seedbuffer.length-1);
+			}
+		}
+
+		public void close() throws IOException
+		{
+			if (output != null)
+			{
+				output.collect(new IntWritable(0), sketch.toBytes());
+			}
+		}
+	}
+
+
+	public static class SketchReduceClass extends MapReduceBase implements
+			Reducer<IntWritable, BytesWritable, IntWritable, BytesWritable>
+	{
+		public void reduce(IntWritable key, Iterator<BytesWritable> values,
+				OutputCollector<IntWritable, BytesWritable> output, Reporter reporter)
+				throws IOException
+		{
+			SeedSketch sum  = null;
+			SeedSketch part = new SeedSketch();
+
+			while (values.hasNext())
+			{
+				if (sum == null)
+				{
+					sum = new SeedSketch();
+					sum.fromBytes(values.next());
+				}
+				else
+				{
+					part.fromBytes(values.next());
+					sum.merge(part);
+				}
+
+				reporter.progress();
+			}
+
+			output.collect(key, sum.toBytes());
+		}
+	}
+
+
+	//------------------------- sketch --------------------------
+	// Run the pre-pass over the reference in refpath, and return the path of the sketch file
+
+	public static Path sketch(String refpath, String outpath, int SEED_LEN, int FLANK_LEN, boolean CANONICAL_SEEDS,
+			                  int width, int NUM_MAP_TASKS) throws IOException
+	{
+		JobConf conf = new JobConf(SketchSeeds.class);
+		conf.setJobName("SketchSeeds");
+		conf.setNumMapTasks(NUM_MAP_TASKS);
+		conf.setNumReduceTasks(1);
+
+		FileInputFormat.addInputPath(conf, new Path(refpath));
+		conf.set("SEED_LEN",              Integer.toString(SEED_LEN));
+		conf.set("FLANK_LEN",             Integer.toString(FLANK_LEN));
+		conf.set("CANONICAL_SEEDS",       (CANONICAL_SEEDS ? "1" : "0"));
+		conf.set("HOT_SEED_SKETCH_WIDTH", Integer.toString(width));
+
+		conf.setInputFormat(SequenceFileInputFormat.class);
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(BytesWritable.class);
+
+		conf.setOutputKeyClass(IntWritable.class);
+		conf.setOutputValueClass(BytesWritable.class);
+		conf.setOutputFormat(SequenceFileOutputFormat.class);
+
+		conf.setMapperClass(SketchMapClass.class);
+		conf.setReducerClass(SketchReduceClass.class);
+
+		FileSystem fs = FileSystem.get(conf);
+		Path oPath = new Path(outpath);
+		FileOutputFormat.setOutputPath(conf, oPath);
+		System.err.println("  Removing old sketch");
+		fs.delete(oPath);
+
+		JobClient.runJob(conf);
+
+		// pull the sketch out of the reducer output into a file of its own
+		SeedSketch sketch = new SeedSketch(width);
+		IntWritable key = new IntWritable();
+		BytesWritable value = new BytesWritable();
+
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, new Path(oPath, "part-00000"), conf);
+
+		if (reader.next(key, value))
+		{
+			sketch.fromBytes(value);
+		}
+
+		reader.close();
+
+		Path sketchPath = new Path(oPath, "seeds.sketch");
+		FSDataOutputStream out = fs.create(sketchPath);
+		sketch.write(out);
+		out.close();
+
+		System.err.println("SketchSeeds Finished");
+		return sketchPath;
+	}
+
+
+	//------------------------- load --------------------------
+	// Read the sketch named by HOT_SEED_SKETCH
+
+	public static SeedSketch load(JobConf conf) throws IOException
+	{
+		SeedSketch sketch = new SeedSketch();
+
+		DataInputStream in = MerReduce.openCacheFile(conf, conf.get("HOT_SEED_SKETCH"));
+		sketch.readFields(in);
+		in.close();
+
+		return sketch;
+	}
+}
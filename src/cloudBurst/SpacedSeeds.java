@@ -0,0 +1,306 @@
+package cloudBurst;
+
+import java.io.IOException;
+
+// A spaced seed pattern like 1101101...: a seed is made from the bases under the 1's
+// ("care" positions) of a window of span bases, and the bases under the 0's are ignored,
+// so a mismatch there doesn't stop the seed from matching. Reads emit the pattern at
+// every placement, and the reference at every position, so the seeds can be much
+// heavier than the contiguous pigeonhole seeds of MIN_READ_LEN/(K+1) bases and still
+// find every alignment with K mismatches, as long as the pattern is fully sensitive
+// for the read length: no K mismatches can hit a care position of every placement.
+//
+// TABLE lists patterns found by search() that are fully sensitive for a read length and K,
+// longer reads only have more placements so they stay fully sensitive. With SEED_PATTERN=auto
+// the heaviest one that fits is used.
+
+public class SpacedSeeds
+{
+	// { read length, K, pattern }, contiguous pieces would be MIN_READ_LEN/(K+1) bases
+	public static final String [][] TABLE =
+	{
+		{ "36",  "2", "1111111000011101111111" },
+		{ "36",  "3", "11111011101111" },
+		{ "36",  "4", "1110100111011" },
+		{ "50",  "2", "110111111100111010110101111111" },
+		{ "50",  "3", "1111110111111011111" },
+		{ "50",  "4", "1110110100101011111" },
+		{ "76",  "2", "11111111101111111111111111111111" },
+		{ "76",  "3", "11111101111111011111010111101111" },
+		{ "76",  "4", "1001111110111101011101001001111" },
+		{ "100", "3", "11111111101111111111111111111111" },
+		{ "100", "4", "111111111011101111111111011111" },
+	};
+
+	public final String pattern;
+	public final int span;
+	public final int weight;
+
+	// bit i is set if position i of the pattern is a care position
+	public final long care;
+
+
+	//------------------------- Constructor --------------------------
+	public SpacedSeeds(String pattern) throws IOException
+	{
+		this.pattern = pattern;
+		span = pattern.length();
+
+		if ((span == 0) || (span > 32) || (pattern.charAt(0) != '1') || (pattern.charAt(span-1) != '1'))
+		{
+			throw new IOException("SEED_PATTERN=" + pattern + " must be 0's and 1's, at most 32 long, and start and end with a 1");
+		}
+
+		long c = 0;
+		int w = 0;
+
+		for (int i = 0; i < span; i++)
+		{
+			char ch = pattern.charAt(i);
+
+			if (ch == '1')      { c |= 1L << i; w++; }
+			else if (ch != '0') { throw new IOException("SEED_PATTERN=" + pattern + " must be 0's and 1's"); }
+		}
+
+		care   = c;
+		weight = w;
+	}
+
+
+	//------------------------- choose --------------------------
+	// The heaviest pattern of the table that is fully sensitive for reads of readlen with K
+	// mismatches, or null if there isn't one heavier than the contiguous seeds
+
+	public static String choose(int readlen, int K) throws IOException
+	{
+		String best = null;
+		int bestweight = readlen / (K+1);
+
+		for (String [] row : TABLE)
+		{
+			if ((Integer.parseInt(row[0]) > readlen) || (Integer.parseInt(row[1]) < K)) { continue; }
+
+			SpacedSeeds s = new SpacedSeeds(row[2]);
+
+			if ((s.weight > bestweight) && s.isFullySensitive(readlen, K))
+			{
+				best = row[2];
+				bestweight = s.weight;
+			}
+		}
+
+		return best;
+	}
+
+
+	//------------------------- isHit --------------------------
+	// True if a mismatch in the bitmap of read positions mm is under a care position of placement t
+
+	private boolean isHit(long [] mm, int t)
+	{
+		int word  = t >> 6;
+		int shift = t & 63;
+
+		long window = mm[word] >>> shift;
+
+		if ((shift != 0) && (word + 1 < mm.length))
+		{
+			window |= mm[word+1] << (64 - shift);
+		}
+
+		return (window & care) != 0;
+	}
+
+
+	//------------------------- isFullySensitive --------------------------
+	// True if every way of putting K mismatches in a read of readlen leaves a placement
+	// with no mismatch under its care positions. The first placement that is still clean
+	// has to get one of the mismatches, so only its care positions are tried at each level.
+
+	public boolean isFullySensitive(int readlen, int K)
+	{
+		if (readlen < span) { return false; }
+
+		return clean(new long [(readlen >> 6) + 1], readlen - span + 1, 0, K);
+	}
+
+
+	//------------------------- clean --------------------------
+	private boolean clean(long [] mm, int placements, int first, int k)
+	{
+		while ((first < placements) && isHit(mm, first)) { first++; }
+
+		if (first == placements) { return false; }
+		if (k == 0)              { return true; }
+
+		for (int i = 0; i < span; i++)
+		{
+			if ((care & (1L << i)) == 0) { continue; }
+
+			int p = first + i;
+			mm[p >> 6] |= 1L << (p & 63);
+
+			boolean ok = clean(mm, placements, first + 1, k - 1);
+
+			mm[p >> 6] &= ~(1L << (p & 63));
+
+			if (!ok) { return false; }
+		}
+
+		return true;
+	}
+
+
+	//------------------------- firstPlacement --------------------------
+	// The first placement in a read of readlen with no mismatch under its care positions,
+	// given the read positions of its num mismatches, or -1 if every placement has one
+
+	public int firstPlacement(int [] mismatches, int num, int readlen)
+	{
+		for (int t = 0; t + span <= readlen; t++)
+		{
+			boolean hit = false;
+
+			for (int i = 0; (i < num) && !hit; i++)
+			{
+				int d = mismatches[i] - t;
+				hit = (d >= 0) && (d < span) && ((care & (1L << d)) != 0);
+			}
+
+			if (!hit) { return t; }
+		}
+
+		return -1;
+	}
+
+
+	//------------------------- search --------------------------
+	// Random search for the heaviest fully sensitive pattern of up to maxspan for readlen and K
+
+	public static String search(int readlen, int K, int maxspan, int tries, java.util.Random rand) throws IOException
+	{
+		String best = null;
+		int bestweight = readlen / (K+1);
+
+		for (int weight = bestweight + 1; weight <= maxspan; weight++)
+		{
+			String found = null;
+
+			for (int t = 0; (t < tries) && (found == null); t++)
+			{
+				int span = weight + rand.nextInt(maxspan - weight + 1);
+				if ((weight < 2) && (span > weight)) { continue; }
+
+				// the ends are 1's, pick weight-2 of the positions in between
+				char [] p = new char [span];
+				java.util.Arrays.fill(p, '0');
+				p[0] = '1';
+				p[span-1] = '1';
+
+				for (int placed = 2; placed < weight; )
+				{
+					int i = 1 + rand.nextInt(span - 2);
+					if (p[i] == '0') { p[i] = '1'; placed++; }
+				}
+
+				String candidate = new String(p, 0, Math.max(span, 1));
+
+				if (new SpacedSeeds(candidate).isFullySensitive(readlen, K))
+				{
+					found = candidate;
+				}
+			}
+
+			if (found == null) { break; }
+			best = found;
+		}
+
+		return best;
+	}
+
+
+	//------------------------- main --------------------------
+	// Check the table, and firstPlacement against brute force. With arguments
+	// readlen K [maxspan tries], search for a pattern instead.
+
+	public static void main(String[] args) throws IOException
+	{
+		java.util.Random rand = new java.util.Random(2718);
+
+		if (args.length >= 2)
+		{
+			int readlen = Integer.parseInt(args[0]);
+			int K       = Integer.parseInt(args[1]);
+			int maxspan = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+			int tries   = (args.length > 3) ? Integer.parseInt(args[3]) : 2000;
+
+			System.out.println(readlen + " " + K + " " + search(readlen, K, maxspan, tries, rand));
+			return;
+		}
+
+		for (String [] row : TABLE)
+		{
+			int readlen = Integer.parseInt(row[0]);
+			int K       = Integer.parseInt(row[1]);
+			SpacedSeeds s = new SpacedSeeds(row[2]);
+
+			if (!s.isFullySensitive(readlen, K))
+			{
+				throw new IOException(row[2] + " is not fully sensitive for " + readlen + "bp with K=" + K);
+			}
+
+			System.out.println(readlen + "bp K=" + K + ": " + row[2] + " weight " + s.weight + " vs " + (readlen / (K+1)));
+		}
+
+		// a contiguous seed is fully sensitive exactly when K+1 of them fit, like the pigeonhole seeds
+		for (int span = 1; span < 12; span++)
+		{
+			SpacedSeeds s = new SpacedSeeds(new String(new char [span]).replace('\0', '1'));
+
+			for (int K = 0; K < 4; K++)
+			{
+				for (int readlen = span; readlen < 60; readlen++)
+				{
+					if (s.isFullySensitive(readlen, K) != ((K+1)*span <= readlen))
+					{
+						throw new IOException("Contiguous " + span + " wrong for " + readlen + "bp with K=" + K);
+					}
+				}
+			}
+		}
+
+		for (int trial = 0; trial < 2000; trial++)
+		{
+			SpacedSeeds s = new SpacedSeeds(TABLE[rand.nextInt(TABLE.length)][2]);
+			int readlen = s.span + rand.nextInt(60);
+			int num = rand.nextInt(5);
+			int [] mm = new int [num];
+
+			for (int i = 0; i < num; i++) { mm[i] = rand.nextInt(readlen); }
+
+			int expect = -1;
+
+			for (int t = 0; (expect == -1) && (t + s.span <= readlen); t++)
+			{
+				boolean clean = true;
+
+				for (int i = 0; i < s.span; i++)
+				{
+					for (int j = 0; j < num; j++)
+					{
+						if ((mm[j] == t + i) && (s.pattern.charAt(i) == '1')) { clean = false; }
+					}
+				}
+
+				if (clean) { expect = t; }
+			}
+
+			if (s.firstPlacement(mm, num, readlen) != expect)
+			{
+				throw new IOException("firstPlacement mismatch for " + s.pattern);
+			}
+		}
+
+		System.out.println("SpacedSeeds ok");
+	}
+}
@@ -0,0 +1,287 @@
+package cloudBurst;
+
+// Struct-of-arrays storage for the tuples of a seed group. Tuple i is described by
+// offset[i], id[i] and flags[i] (the same bits as MerRecordWritable), and its
+// flanks are stored back to back in one shared flanks array at 2 bits / bp: the left
+// flank (still reversed) of leftLen[i] bases starts at byte flankStart[i], directly 
+// followed by the right flank of rightLen[i] bases. The N runs of the left flank are
+// runs [runStart[i], runRight[i]) of the shared runs array, and those of the right
+// flank go up to runEnd[i]. Tuples are decoded straight from the shuffle bytes, and the
+// arrays are reused from group to group, so a saved tuple costs a few array slots
+// instead of a MerRecord and two flank arrays scattered around the heap.
+//
+// A tuple keyed by the reverse complement of its seed (FLIP_FLAG) is stored as the
+// reverse complement, so every tuple of a group reads the seed the same way. Read
+// outwards from the seed, the reverse complement of one flank is just the complement
+// of the other, so its flanks are swapped and complemented.
+
+public class TupleStore
+{
+	public static final byte REF_FLAG = 0x01;
+	public static final byte RC_FLAG  = 0x10;
+	public static final byte FLIP_FLAG = 0x04;
+
+	public int size = 0;
+
+	public int  [] offset     = new int [0];
+	public int  [] id         = new int [0];
+	public byte [] flags      = new byte [0];
+	public int  [] flankStart = new int [0];
+	public int  [] leftLen    = new int [0];
+	public int  [] rightLen   = new int [0];
+
+	public byte [] flanks = new byte [1024];
+	public int flankBytes = 0;
+
+	public int [] runStart = new int [0];
+	public int [] runRight = new int [0];
+	public int [] runEnd   = new int [0];
+	public int [] runs = new int [64];
+	public int numRuns = 0;
+
+	// only filled in if requested, the objects are reused by later tuples
+	public PackedDNA [] leftPacked  = new PackedDNA [0];
+	public PackedDNA [] rightPacked = new PackedDNA [0];
+	public FlankSignature [] leftSig  = new FlankSignature [0];
+	public FlankSignature [] rightSig = new FlankSignature [0];
+
+	private final boolean pack;
+	private final boolean sign;
+	private final PackedFlank view = new PackedFlank();
+
+
+	//------------------------- Constructor --------------------------
+	// pack: repack the flanks at 2 bits / bp, sign: also compute the flank signatures
+
+	public TupleStore(boolean pack, boolean sign)
+	{
+		this.pack = pack || sign;
+		this.sign = sign;
+		
+		grow(16);
+	}
+
+
+	//------------------------- add --------------------------
+	// Save a copy of a tuple, and return its index
+
+	public int add(MerRecordWritable value)
+	{
+		if (size == offset.length)
+		{
+			grow(size * 2);
+		}
+
+		int i = size++;
+
+		flags[i]  = value.flags;
+		offset[i] = value.offset;
+		id[i]     = value.id;
+
+		int left  = DNAString.arrToPackedLen(value.leftLen);
+		int right = DNAString.arrToPackedLen(value.rightLen);
+		byte [] raw = value.get();
+
+		if (flankBytes + left + right > flanks.length)
+		{
+			flanks = java.util.Arrays.copyOf(flanks, (flankBytes + left + right) * 2);
+		}
+
+		if (2 * (numRuns + value.numRuns) > runs.length)
+		{
+			runs = java.util.Arrays.copyOf(runs, 4 * (numRuns + value.numRuns));
+		}
+
+		flankStart[i] = flankBytes;
+		runStart[i]   = numRuns;
+		runEnd[i]     = numRuns + value.numRuns;
+
+		if (!value.isFlipped())
+		{
+			leftLen[i]  = value.leftLen;
+			rightLen[i] = value.rightLen;
+			runRight[i] = numRuns + value.leftRuns;
+
+			System.arraycopy(raw, value.flankStart, flanks, flankBytes, left + right);
+			System.arraycopy(value.runs, 0, runs, 2 * numRuns, 2 * value.numRuns);
+		}
+		else
+		{
+			int rightRuns = value.numRuns - value.leftRuns;
+
+			leftLen[i]  = value.rightLen;
+			rightLen[i] = value.leftLen;
+			runRight[i] = numRuns + rightRuns;
+
+			complement(raw, value.flankStart + left, value.rightLen, flanks, flankBytes);
+			complement(raw, value.flankStart, value.leftLen, flanks, flankBytes + right);
+
+			System.arraycopy(value.runs, 2 * value.leftRuns, runs, 2 * numRuns, 2 * rightRuns);
+			System.arraycopy(value.runs, 0, runs, 2 * runRight[i], 2 * value.leftRuns);
+
+			// the N's came out as 'T', put them back to 'A'
+			clearRuns(flankBytes, runStart[i], runRight[i]);
+			clearRuns(rightStart(i), runRight[i], runEnd[i]);
+		}
+
+		flankBytes += left + right;
+		numRuns += value.numRuns;
+
+		if (pack)
+		{
+			leftPacked[i].set(left(i, view));
+			rightPacked[i].set(right(i, view));
+		}
+
+		if (sign)
+		{
+			leftSig[i].set(leftPacked[i]);
+			rightSig[i].set(rightPacked[i]);
+		}
+
+		return i;
+	}
+
+
+	//------------------------- complement --------------------------
+	// Complement len bases packed at src[srcpos] into dst[dstpos], keeping the padding zero
+
+	private static void complement(byte [] src, int srcpos, int len, byte [] dst, int dstpos)
+	{
+		int bytes = DNAString.arrToPackedLen(len);
+
+		for (int j = 0; j < bytes; j++)
+		{
+			dst[dstpos + j] = (byte) ~src[srcpos + j];
+		}
+
+		if ((len & 3) != 0)
+		{
+			dst[dstpos + bytes - 1] &= (1 << ((len & 3) << 1)) - 1;
+		}
+	}
+
+
+	//------------------------- clearRuns --------------------------
+	// Pack the bases of runs [from, to) of the flank at byte pos of flanks as 'A'
+
+	private void clearRuns(int pos, int from, int to)
+	{
+		for (int r = from; r < to; r++)
+		{
+			for (int b = runs[2*r]; b < runs[2*r+1]; b++)
+			{
+				flanks[pos + (b >> 2)] &= ~(0x03 << ((b & 3) << 1));
+			}
+		}
+	}
+
+
+	//------------------------- grow --------------------------
+	private void grow(int capacity)
+	{
+		offset     = java.util.Arrays.copyOf(offset,     capacity);
+		id         = java.util.Arrays.copyOf(id,         capacity);
+		flags      = java.util.Arrays.copyOf(flags,      capacity);
+		flankStart = java.util.Arrays.copyOf(flankStart, capacity);
+		leftLen    = java.util.Arrays.copyOf(leftLen,    capacity);
+		rightLen   = java.util.Arrays.copyOf(rightLen,   capacity);
+		runStart   = java.util.Arrays.copyOf(runStart,   capacity);
+		runRight   = java.util.Arrays.copyOf(runRight,   capacity);
+		runEnd     = java.util.Arrays.copyOf(runEnd,     capacity);
+
+		if (pack)
+		{
+			int old = leftPacked.length;
+
+			leftPacked  = java.util.Arrays.copyOf(leftPacked,  capacity);
+			rightPacked = java.util.Arrays.copyOf(rightPacked, capacity);
+
+			for (int i = old; i < capacity; i++)
+			{
+				leftPacked[i]  = new PackedDNA();
+				rightPacked[i] = new PackedDNA();
+			}
+		}
+
+		if (sign)
+		{
+			int old = leftSig.length;
+
+			leftSig  = java.util.Arrays.copyOf(leftSig,  capacity);
+			rightSig = java.util.Arrays.copyOf(rightSig, capacity);
+
+			for (int i = old; i < capacity; i++)
+			{
+				leftSig[i]  = new FlankSignature();
+				rightSig[i] = new FlankSignature();
+			}
+		}
+	}
+
+
+	//------------------------- isReference --------------------------
+	public boolean isReference(int i)
+	{
+		return (flags[i] & REF_FLAG) != 0;
+	}
+
+
+	//------------------------- isRC --------------------------
+	public boolean isRC(int i)
+	{
+		return (flags[i] & RC_FLAG) != 0;
+	}
+
+
+	//------------------------- isFlipped --------------------------
+	public boolean isFlipped(int i)
+	{
+		return (flags[i] & FLIP_FLAG) != 0;
+	}
+
+
+	//------------------------- rightStart --------------------------
+	public int rightStart(int i)
+	{
+		return flankStart[i] + DNAString.arrToPackedLen(leftLen[i]);
+	}
+
+
+	//------------------------- packedLen --------------------------
+	// Bytes of both flanks of tuple i
+
+	public int packedLen(int i)
+	{
+		return DNAString.arrToPackedLen(leftLen[i]) + DNAString.arrToPackedLen(rightLen[i]);
+	}
+
+
+	//------------------------- left --------------------------
+	// Point f at the left flank of tuple i
+
+	public PackedFlank left(int i, PackedFlank f)
+	{
+		f.set(flanks, flankStart[i], leftLen[i], runs, runStart[i], runRight[i]);
+		return f;
+	}
+
+
+	//------------------------- right --------------------------
+	public PackedFlank right(int i, PackedFlank f)
+	{
+		f.set(flanks, rightStart(i), rightLen[i], runs, runRight[i], runEnd[i]);
+		return f;
+	}
+
+
+	//------------------------- clear --------------------------
+	// Forget the tuples, keeping the arrays for the next group
+
+	public void clear()
+	{
+		size = 0;
+		flankBytes = 0;
+		numRuns = 0;
+	}
+}